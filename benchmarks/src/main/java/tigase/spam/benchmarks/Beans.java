@@ -0,0 +1,44 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.benchmarks;
+
+import java.lang.reflect.Field;
+
+/**
+ * Helper used to set dependencies of beans, which are normally injected by the kernel, within benchmarks.
+ */
+public class Beans {
+
+	public static void inject(Object bean, String fieldName, Object value) {
+		Class<?> cls = bean.getClass();
+		while (cls != null) {
+			try {
+				Field field = cls.getDeclaredField(fieldName);
+				field.setAccessible(true);
+				field.set(bean, value);
+				return;
+			} catch (NoSuchFieldException ex) {
+				cls = cls.getSuperclass();
+			} catch (IllegalAccessException ex) {
+				throw new IllegalStateException("Could not set field " + fieldName + " of " + bean, ex);
+			}
+		}
+		throw new IllegalArgumentException("No field " + fieldName + " in " + bean.getClass());
+	}
+
+}
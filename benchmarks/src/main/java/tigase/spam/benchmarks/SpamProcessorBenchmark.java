@@ -0,0 +1,175 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.spam.ResultsAwareSpamFilter;
+import tigase.spam.SpamFilter;
+import tigase.spam.SpamProcessor;
+import tigase.spam.TrustedSenders;
+import tigase.spam.filters.*;
+import tigase.spam.lists.ListCompiler;
+import tigase.spam.lists.SpamLists;
+import tigase.vhosts.VHostManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of <code>SpamProcessor.preProcess()</code> with all bundled filters, lists of senders and trusted senders
+ * enabled, processing a mix of clean and spam stanzas. Deny list contains a quarter of spammers from the mix and
+ * allow list contains some of local users.
+ * <br>
+ * Run with <code>java -jar target/benchmarks.jar SpamProcessorBenchmark -prof gc</code> to get allocation rate.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2)
+@State(Scope.Benchmark)
+public class SpamProcessorBenchmark {
+
+	private static final int PACKETS = 1 << 14;
+
+	@Param({"0.0", "0.05", "0.5"})
+	public double spamRatio;
+
+	private MessageFilterBayes bayes;
+	private Path listsDir;
+	private SpamLists lists;
+	private Packet[] packets;
+	private SpamProcessor processor;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		processor = new SpamProcessor();
+		Beans.inject(processor, "vHostManager", new VHostManager());
+
+		KnownSpammersFilter knownSpammers = new KnownSpammersFilter();
+		Beans.inject(knownSpammers, "vHostManager", new VHostManager());
+
+		CopyOnWriteArrayList<SpamFilter> filters = new CopyOnWriteArrayList<>();
+		filters.add(new MessageFilterSameLongBody());
+		filters.add(new MessageErrorFilterEnsureErrorChild());
+		filters.add(new MucMessageFilterEnsureToFullJid());
+		filters.add(new PresenceSubscribeFilter());
+		filters.add(knownSpammers);
+
+		CopyOnWriteArrayList<ResultsAwareSpamFilter> resultsAware = new CopyOnWriteArrayList<>();
+		resultsAware.add(knownSpammers);
+		for (String filterId : FiltersBenchmark.OPTIONAL_FILTERS) {
+			AbstractSpamFilter filter = FiltersBenchmark.create(filterId);
+			filters.add(filter);
+			if (filter instanceof MessageFilterBayes) {
+				// starts training thread
+				bayes = (MessageFilterBayes) filter;
+				bayes.initialize();
+			}
+			if (filter instanceof ResultsAwareSpamFilter) {
+				resultsAware.add((ResultsAwareSpamFilter) filter);
+			}
+		}
+		processor.setFilters(filters);
+		processor.setResultsAwareFilters(resultsAware);
+
+		listsDir = Files.createTempDirectory("spam-lists");
+		List<String> allowed = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			allowed.add("user" + i + "@" + StanzaMix.LOCAL_DOMAIN);
+		}
+		List<String> denied = new ArrayList<>();
+		for (int i = 0; i < StanzaMix.SPAMMERS / 4; i++) {
+			denied.add("spammer" + i + "@" + StanzaMix.REMOTE_DOMAIN);
+		}
+		Path allowFile = listsDir.resolve("allow.bin");
+		Path denyFile = listsDir.resolve("deny.bin");
+		ListCompiler.compile(allowed, allowFile);
+		ListCompiler.compile(denied, denyFile);
+		lists = new SpamLists();
+		Beans.inject(lists, "allowFiles", new String[]{allowFile.toString()});
+		Beans.inject(lists, "denyFiles", new String[]{denyFile.toString()});
+		lists.initialize();
+		Beans.inject(processor, "lists", lists);
+
+		// without sessions senders are not trusted, but their trust is checked and revoked
+		Beans.inject(processor, "trustedSenders", new TrustedSenders());
+
+		packets = StanzaMix.create(PACKETS, spamRatio, 42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		bayes.beforeUnregister();
+		lists.beforeUnregister();
+		try (Stream<Path> files = Files.walk(listsDir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void preProcess_1(Cursor cursor, Blackhole bh) {
+		bh.consume(preProcess(cursor));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void preProcess_4(Cursor cursor, Blackhole bh) {
+		bh.consume(preProcess(cursor));
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void preProcess_16(Cursor cursor, Blackhole bh) {
+		bh.consume(preProcess(cursor));
+	}
+
+	private boolean preProcess(Cursor cursor) {
+		return processor.preProcess(packets[cursor.next(PACKETS)], null, null, cursor.results, cursor.settings);
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		final ArrayDeque<Packet> results = new ArrayDeque<>();
+		final HashMap<String, Object> settings = new HashMap<>();
+		private int position;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			position = (int) (Thread.currentThread().getId() * 7919);
+		}
+
+		int next(int size) {
+			return (position++ & Integer.MAX_VALUE) % size;
+		}
+	}
+
+}
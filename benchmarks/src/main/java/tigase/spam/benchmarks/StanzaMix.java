@@ -0,0 +1,131 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.benchmarks;
+
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.util.Random;
+
+/**
+ * Generator of a reproducible mix of clean and spam stanzas used by benchmarks.
+ * <br>
+ * Clean traffic consists mainly of presences and iq stanzas with a smaller number of short and long chat messages.
+ * Spam traffic is sent by a small group of spammers, each of them to many recipients, and consists of long messages
+ * with the same body, long messages with similar bodies (differing in a few words), bursts of presence subscription
+ * requests and message errors without an <code>error</code> child. Spam bodies contain {@link #SPAM_PHRASES}.
+ */
+public class StanzaMix {
+
+	public static final String LOCAL_DOMAIN = "example.com";
+	public static final String REMOTE_DOMAIN = "spam.example.net";
+	public static final int SPAMMERS = 16;
+	public static final String[] SPAM_PHRASES = {"exclusive reward", "limited time offer"};
+
+	private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+										   "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore",
+										   "et", "dolore", "magna", "aliqua", "enim", "ad", "minim", "veniam"};
+	private static final String SPAM_BODY =
+			"Congratulations! You have been selected to receive an exclusive reward. Visit http://spam.example.net/" +
+					"claim to get your prize before it expires! Limited time offer only for you!";
+
+	public static Packet[] create(int size, double spamRatio, long seed) {
+		Random random = new Random(seed);
+		Packet[] packets = new Packet[size];
+		try {
+			for (int i = 0; i < size; i++) {
+				packets[i] = random.nextDouble() < spamRatio ? createSpam(random) : createClean(random);
+			}
+		} catch (TigaseStringprepException ex) {
+			throw new IllegalStateException("Could not create stanza", ex);
+		}
+		return packets;
+	}
+
+	public static Packet createClean(Random random) throws TigaseStringprepException {
+		String from = user(random, LOCAL_DOMAIN) + "/res";
+		String to = user(random, LOCAL_DOMAIN);
+		double kind = random.nextDouble();
+		if (kind < 0.45) {
+			return Packet.packetInstance(new Element("presence", new Element[]{new Element("show", "away")},
+													 new String[]{"from", "to"}, new String[]{from, to}));
+		} else if (kind < 0.70) {
+			return Packet.packetInstance(new Element("iq", new Element[]{
+					new Element("query", new String[]{"xmlns"}, new String[]{"jabber:iq:roster"})},
+													 new String[]{"from", "to", "type", "id"},
+													 new String[]{from, to, "get", String.valueOf(random.nextInt())}));
+		} else {
+			return message(from, to, "chat", cleanBody(random));
+		}
+	}
+
+	public static Packet createSpam(Random random) throws TigaseStringprepException {
+		String spammer = "spammer" + random.nextInt(SPAMMERS) + "@" + REMOTE_DOMAIN;
+		String to = user(random, LOCAL_DOMAIN);
+		double kind = random.nextDouble();
+		if (kind < 0.45) {
+			return message(spammer, to, "chat", SPAM_BODY);
+		} else if (kind < 0.70) {
+			return message(spammer, to, "chat", spamBody(random));
+		} else if (kind < 0.90) {
+			return Packet.packetInstance(
+					new Element("presence", new String[]{"from", "to", "type"}, new String[]{spammer, to, "subscribe"}));
+		} else {
+			return message(spammer, to, "error", null);
+		}
+	}
+
+	/**
+	 * Returns body of a clean message (mostly short ones).
+	 */
+	public static String cleanBody(Random random) {
+		return text(random, random.nextDouble() < 0.8 ? 5 : 40);
+	}
+
+	/**
+	 * Returns body of a spam message, similar to other spam bodies but not the same.
+	 */
+	public static String spamBody(Random random) {
+		return "Dear " + WORDS[random.nextInt(WORDS.length)] + ", " + SPAM_BODY + " Code: " + random.nextInt(1000);
+	}
+
+	public static Packet message(String from, String to, String type, String body) throws TigaseStringprepException {
+		Element message = new Element("message", new String[]{"from", "to", "type"}, new String[]{from, to, type});
+		if (body != null) {
+			message.addChild(new Element("body", body));
+		}
+		return Packet.packetInstance(message);
+	}
+
+	private static String user(Random random, String domain) {
+		return "user" + random.nextInt(10000) + "@" + domain;
+	}
+
+	private static String text(Random random, int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+}
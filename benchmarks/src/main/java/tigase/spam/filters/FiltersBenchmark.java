@@ -0,0 +1,164 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.spam.benchmarks.Beans;
+import tigase.spam.benchmarks.StanzaMix;
+import tigase.spam.util.NaiveBayesModel;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.vhosts.VHostManager;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of <code>AbstractSpamFilter.filterPacket()</code> of every bundled filter processing a mix of clean
+ * and spam stanzas. Placed in the filters package to call <code>filterPacket()</code> directly, without statistics
+ * gathered by <code>AbstractSpamFilter.filter()</code>.
+ * <br>
+ * Run with <code>java -jar target/benchmarks.jar FiltersBenchmark -prof gc</code> to get allocation rate.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2)
+@State(Scope.Benchmark)
+public class FiltersBenchmark {
+
+	/**
+	 * Filters disabled by default, which are added to the chain benchmarked by <code>SpamProcessorBenchmark</code>.
+	 */
+	public static final String[] OPTIONAL_FILTERS = {MessageFilterSimilarBody.ID, MessageFilterFanOut.ID,
+													 MessageFilterKeywords.ID, MessageFilterBayes.ID,
+													 RateLimitFilter.ID};
+
+	private static final int PACKETS = 1 << 14;
+
+	@Param({KnownSpammersFilter.ID, MessageFilterSameLongBody.ID, MessageFilterSimilarBody.ID, MessageFilterFanOut.ID,
+			MessageFilterKeywords.ID, MessageFilterBayes.ID, RateLimitFilter.ID, MessageErrorFilterEnsureErrorChild.ID,
+			MucMessageFilterEnsureToFullJid.ID, PresenceSubscribeFilter.ID, PresenceSubscribeOutgoingFilter.ID})
+	public String filterId;
+
+	@Param({"0.0", "0.05", "0.5"})
+	public double spamRatio;
+
+	private AbstractSpamFilter filter;
+	private Packet[] packets;
+
+	/**
+	 * Creates filter with configuration needed to detect spam from {@link StanzaMix} (ie. known spammers, keywords,
+	 * trained model and rate limits applied without a session).
+	 */
+	public static AbstractSpamFilter create(String filterId) throws TigaseStringprepException {
+		switch (filterId) {
+			case KnownSpammersFilter.ID:
+				KnownSpammersFilter knownSpammers = new KnownSpammersFilter();
+				Beans.inject(knownSpammers, "vHostManager", new VHostManager());
+				// spammers from the mix are already known
+				Random random = new Random(42);
+				MessageFilterSameLongBody detector = new MessageFilterSameLongBody();
+				for (int i = 0; i < StanzaMix.SPAMMERS * 8; i++) {
+					knownSpammers.identifiedSpam(StanzaMix.createSpam(random), null, detector);
+				}
+				return knownSpammers;
+			case MessageFilterSameLongBody.ID:
+				return new MessageFilterSameLongBody();
+			case MessageFilterSimilarBody.ID:
+				return new MessageFilterSimilarBody();
+			case MessageFilterFanOut.ID:
+				return new MessageFilterFanOut();
+			case MessageFilterKeywords.ID:
+				MessageFilterKeywords keywords = new MessageFilterKeywords();
+				Beans.inject(keywords, "patterns", StanzaMix.SPAM_PHRASES);
+				keywords.reload(true);
+				return keywords;
+			case MessageFilterBayes.ID:
+				MessageFilterBayes bayes = new MessageFilterBayes();
+				// model is trained before, so that messages are classified
+				NaiveBayesModel model = new NaiveBayesModel(20, 256);
+				Random samples = new Random(42);
+				for (int i = 0; i < 1000; i++) {
+					model.train(StanzaMix.cleanBody(samples), false);
+					model.train(StanzaMix.spamBody(samples), true);
+				}
+				Beans.inject(bayes, "model", model);
+				return bayes;
+			case RateLimitFilter.ID:
+				RateLimitFilter rateLimit = new RateLimitFilter();
+				// contacts cannot be checked without a session, so rule does not select them
+				Beans.inject(rateLimit, "rules", new String[]{"element=message,type=chat,scope=jid,limit=10,window=1"});
+				rateLimit.beanConfigurationChanged(Collections.singleton("rules"));
+				return rateLimit;
+			case MessageErrorFilterEnsureErrorChild.ID:
+				return new MessageErrorFilterEnsureErrorChild();
+			case MucMessageFilterEnsureToFullJid.ID:
+				return new MucMessageFilterEnsureToFullJid();
+			case PresenceSubscribeFilter.ID:
+				return new PresenceSubscribeFilter();
+			case PresenceSubscribeOutgoingFilter.ID:
+				return new PresenceSubscribeOutgoingFilter();
+			default:
+				throw new IllegalArgumentException("Unknown filter " + filterId);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		packets = StanzaMix.create(PACKETS, spamRatio, 42);
+		filter = create(filterId);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void filterPacket_1(Cursor cursor, Blackhole bh) {
+		bh.consume(filter.filterPacket(packets[cursor.next(PACKETS)], null));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void filterPacket_4(Cursor cursor, Blackhole bh) {
+		bh.consume(filter.filterPacket(packets[cursor.next(PACKETS)], null));
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void filterPacket_16(Cursor cursor, Blackhole bh) {
+		bh.consume(filter.filterPacket(packets[cursor.next(PACKETS)], null));
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int position;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			position = (int) (Thread.currentThread().getId() * 7919);
+		}
+
+		int next(int size) {
+			return (position++ & Integer.MAX_VALUE) % size;
+		}
+	}
+
+}
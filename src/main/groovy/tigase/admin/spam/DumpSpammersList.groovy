@@ -58,7 +58,7 @@ def formType = Command.getFieldValue(p, "form-type");
 def result = p.commandResult(filepath ? Command.DataType.result : Command.DataType.form);
 
 def getSpammersByTypeAndDomain = { KnownSpammersFilter filter ->
-	return filter.spammers.values().
+	return filter.getSpammers().
 			stream().
 			collect(Collectors.groupingBy({ spammer -> spammer.isLocalUser() },
 										  Collectors.groupingBy({ spammer -> spammer.getJID().getDomain() },
@@ -95,7 +95,7 @@ if (!isServiceAdmin) {
 				Map<Boolean, Map<String, List<KnownSpammersFilter.Spammer>>> spammers = getSpammersByTypeAndDomain(
 						knownSpammersFilter.get());
 				file << "List of known spammers as of " << new Date() << "\n";
-				file << "Total spammers count: " << knownSpammersFilter.get().spammers.size() << "\n";
+				file << "Total spammers count: " << knownSpammersFilter.get().getSpammersCount() << "\n";
 				spammers.forEach({ local, domains ->
 					if (local) {
 						file << "Local domains: " << domains.size() << "\n";
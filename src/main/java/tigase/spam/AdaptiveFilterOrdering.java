@@ -0,0 +1,139 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import tigase.spam.filters.AbstractSpamFilter;
+import tigase.spam.filters.KnownSpammersFilter;
+
+import java.util.*;
+
+/**
+ * Calculates order of filters based on their cost and efficiency measured since the previous calculation.
+ * <br>
+ * Filters are ordered by ascending cost per detected spam (average processing time divided by ratio of detected spam),
+ * so cheap filters detecting a lot of spam are executed first and expensive filters process only packets which
+ * passed them. <code>KnownSpammersFilter</code> is always first. Filters without enough measurements keep their
+ * previous rank and filters which were never measured are executed last in the original order.
+ */
+public class AdaptiveFilterOrdering {
+
+	private final Map<SpamFilter, Measurement> measurements = new IdentityHashMap<>();
+	private final long minPackets;
+
+	/**
+	 * @param minPackets minimal number of packets which filter needs to process between calculations to update its
+	 * rank
+	 */
+	public AdaptiveFilterOrdering(long minPackets) {
+		this.minPackets = minPackets;
+	}
+
+	/**
+	 * Returns filters in a new order.
+	 */
+	public synchronized List<SpamFilter> reorder(List<SpamFilter> filters) {
+		List<Ranked> ranked = new ArrayList<>(filters.size());
+		SpamFilter first = null;
+		for (int i = 0; i < filters.size(); i++) {
+			SpamFilter filter = filters.get(i);
+			if (filter instanceof KnownSpammersFilter && first == null) {
+				first = filter;
+				continue;
+			}
+			ranked.add(new Ranked(filter, i, update(filter)));
+		}
+		measurements.keySet().retainAll(filters);
+
+		ranked.sort(Comparator.comparingDouble(Ranked::getCostPerSpam)
+							.thenComparingDouble(Ranked::getCost)
+							.thenComparingInt(r -> r.position));
+
+		List<SpamFilter> result = new ArrayList<>(filters.size());
+		if (first != null) {
+			result.add(first);
+		}
+		for (Ranked r : ranked) {
+			result.add(r.filter);
+		}
+		return result;
+	}
+
+	private Measurement update(SpamFilter filter) {
+		Measurement previous = measurements.get(filter);
+		if (!(filter instanceof AbstractSpamFilter)) {
+			return null;
+		}
+		AbstractSpamFilter measured = (AbstractSpamFilter) filter;
+		long filtered = measured.getFilteredPackets();
+		long spam = measured.getSpamPackets();
+		long sampled = measured.getMeasuredPackets();
+		long time = measured.getMeasuredProcessingTime();
+		if (previous == null) {
+			previous = new Measurement();
+			measurements.put(filter, previous);
+		}
+		long filteredDelta = filtered - previous.filtered;
+		long sampledDelta = sampled - previous.sampled;
+		if (filteredDelta < minPackets || sampledDelta <= 0) {
+			// not enough data to update rank of a filter
+			return previous.hasRank ? previous : null;
+		}
+		double cost = (time - previous.time) / (double) sampledDelta;
+		double spamRatio = (spam - previous.spam) / (double) filteredDelta;
+		previous.cost = cost;
+		previous.costPerSpam = spamRatio > 0 ? cost / spamRatio : Double.POSITIVE_INFINITY;
+		previous.hasRank = true;
+		previous.filtered = filtered;
+		previous.spam = spam;
+		previous.sampled = sampled;
+		previous.time = time;
+		return previous;
+	}
+
+	private static class Measurement {
+
+		private double cost;
+		private double costPerSpam;
+		private long filtered;
+		private boolean hasRank = false;
+		private long sampled;
+		private long spam;
+		private long time;
+	}
+
+	private static class Ranked {
+
+		private final SpamFilter filter;
+		private final Measurement measurement;
+		private final int position;
+
+		Ranked(SpamFilter filter, int position, Measurement measurement) {
+			this.filter = filter;
+			this.position = position;
+			this.measurement = measurement;
+		}
+
+		double getCost() {
+			return measurement == null ? Double.POSITIVE_INFINITY : measurement.cost;
+		}
+
+		double getCostPerSpam() {
+			return measurement == null ? Double.POSITIVE_INFINITY : measurement.costPerSpam;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import tigase.server.Iq;
+import tigase.server.Message;
+import tigase.server.Presence;
+import tigase.xmpp.StanzaType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of filters used by <code>SpamProcessor</code> with precompiled index of filters applicable to
+ * each kind (element name and type) of stanza. Stanzas with element names other than <code>message</code>,
+ * <code>presence</code> or <code>iq</code> are passed to all filters.
+ */
+public final class FilterChain {
+
+	private static final String[] ELEM_NAMES = {Message.ELEM_NAME, Presence.ELEM_NAME, Iq.ELEM_NAME};
+	private static final StanzaType[] TYPES = StanzaType.values();
+
+	public static final FilterChain EMPTY = new FilterChain(Collections.emptyList());
+
+	private final SpamFilter[] filters;
+	private final SpamFilter[][] index;
+
+	private static int typeIdx(StanzaType type) {
+		return type == null ? 0 : (type.ordinal() + 1);
+	}
+
+	public FilterChain(List<? extends SpamFilter> filters) {
+		this.filters = filters.toArray(new SpamFilter[0]);
+		this.index = new SpamFilter[ELEM_NAMES.length * (TYPES.length + 1)][];
+		for (int i = 0; i < ELEM_NAMES.length; i++) {
+			index[i * (TYPES.length + 1)] = applicable(ELEM_NAMES[i], null);
+			for (StanzaType type : TYPES) {
+				index[i * (TYPES.length + 1) + typeIdx(type)] = applicable(ELEM_NAMES[i], type);
+			}
+		}
+	}
+
+	/**
+	 * Method returns filters (in order of execution) which should process stanza of passed kind.
+	 *
+	 * @param elemName name of the stanza element (interned)
+	 * @param type type of the stanza
+	 *
+	 * @return array of filters which must not be modified
+	 */
+	public SpamFilter[] getFilters(String elemName, StanzaType type) {
+		for (int i = 0; i < ELEM_NAMES.length; i++) {
+			if (ELEM_NAMES[i] == elemName) {
+				return index[i * (TYPES.length + 1) + typeIdx(type)];
+			}
+		}
+		return filters;
+	}
+
+	/**
+	 * Method returns all filters in order of execution.
+	 */
+	public List<SpamFilter> getFilters() {
+		return Collections.unmodifiableList(Arrays.asList(filters));
+	}
+
+	public boolean isEmpty() {
+		return filters.length == 0;
+	}
+
+	private SpamFilter[] applicable(String elemName, StanzaType type) {
+		List<SpamFilter> result = new ArrayList<>();
+		for (SpamFilter filter : filters) {
+			if (filter.appliesTo(elemName, type)) {
+				result.add(filter);
+			}
+		}
+		return result.toArray(new SpamFilter[0]);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.filters.SpammersTable;
+import tigase.spam.util.XXHash64;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Facts about a stanza which are used by many filters, ie. body of a message or JID of a sender. Values are calculated
+ * lazily, when requested for the first time, and are reused by all filters processing the same stanza.
+ * <br>
+ * Instances are confined to a thread and reused for subsequent stanzas processed by the same thread, so no objects are
+ * allocated per stanza. <code>SpamProcessor</code> binds context to a stanza before executing filters and releases it
+ * afterwards. Filters should obtain context using {@link #of(Packet, XMPPResourceConnection)} and must not keep
+ * a reference to it.
+ */
+public final class PacketContext {
+
+	/**
+	 * Seed used to calculate fingerprints of message bodies. It is random to make it harder to craft messages with
+	 * colliding fingerprints.
+	 */
+	private static final long BODY_HASH_SEED = ThreadLocalRandom.current().nextLong();
+
+	private static final ThreadLocal<PacketContext> CONTEXT = ThreadLocal.withInitial(PacketContext::new);
+
+	private static final Logger log = Logger.getLogger(PacketContext.class.getCanonicalName());
+
+	private static final int BODY = 0x01;
+	private static final int BODY_FINGERPRINT = 0x02;
+	private static final int SENDER = 0x04;
+	private static final int SENDER_FINGERPRINT = 0x08;
+	private static final int LOCAL_USER = 0x10;
+	private static final int LOCAL_DOMAIN = 0x20;
+
+	private String body;
+	private long bodyFingerprint;
+	private boolean localDomain;
+	private boolean localUser;
+	private Packet packet;
+	private int resolved;
+	private BareJID sender;
+	private boolean senderBlamed;
+	private long senderFingerprint;
+	private XMPPResourceConnection session;
+
+	/**
+	 * Returns context of the stanza for the current thread. If context is not bound to this stanza (ie. filter is
+	 * called outside of <code>SpamProcessor</code>), it is bound to it.
+	 */
+	public static PacketContext of(Packet packet, XMPPResourceConnection session) {
+		PacketContext context = CONTEXT.get();
+		if (context.packet != packet || context.session != session) {
+			context.bind0(packet, session);
+		}
+		return context;
+	}
+
+	/**
+	 * Binds context of the current thread to the stanza.
+	 */
+	static PacketContext bind(Packet packet, XMPPResourceConnection session) {
+		PacketContext context = CONTEXT.get();
+		context.bind0(packet, session);
+		return context;
+	}
+
+	private PacketContext() {
+	}
+
+	/**
+	 * Returns CData of <code>body</code> element of a message or <code>null</code> if there is no body.
+	 */
+	public String getBody() {
+		if ((resolved & BODY) == 0) {
+			body = packet.getElemName() == Message.ELEM_NAME
+				   ? packet.getElemCDataStaticStr(Message.MESSAGE_BODY_PATH)
+				   : null;
+			resolved |= BODY;
+		}
+		return body;
+	}
+
+	/**
+	 * Returns 64-bit fingerprint of a message body or <code>0</code> if there is no body. Fingerprints are random
+	 * between restarts of the server.
+	 */
+	public long getBodyFingerprint() {
+		if ((resolved & BODY_FINGERPRINT) == 0) {
+			String body = getBody();
+			bodyFingerprint = body == null ? 0 : XXHash64.hash(body, BODY_HASH_SEED);
+			resolved |= BODY_FINGERPRINT;
+		}
+		return bodyFingerprint;
+	}
+
+	public Packet getPacket() {
+		return packet;
+	}
+
+	/**
+	 * Returns bare JID of a sender of the stanza (or JID of the user owning a session if stanza has no
+	 * <code>from</code> attribute) or <code>null</code> if it is not known.
+	 */
+	public BareJID getSender() {
+		if ((resolved & SENDER) == 0) {
+			JID from = packet.getStanzaFrom();
+			if (from == null && session != null) {
+				from = session.getjid();
+			}
+			sender = from == null ? null : from.getBareJID();
+			resolved |= SENDER;
+		}
+		return sender;
+	}
+
+	/**
+	 * Returns fingerprint of a sender calculated by <code>SpammersTable.fingerprint()</code> or <code>0</code> if
+	 * sender is not known.
+	 */
+	public long getSenderFingerprint() {
+		if ((resolved & SENDER_FINGERPRINT) == 0) {
+			BareJID sender = getSender();
+			senderFingerprint = sender == null ? 0 : SpammersTable.fingerprint(sender);
+			resolved |= SENDER_FINGERPRINT;
+		}
+		return senderFingerprint;
+	}
+
+	public XMPPResourceConnection getSession() {
+		return session;
+	}
+
+	/**
+	 * Checks if sender of the stanza is within a local domain, as seen by the session.
+	 */
+	public boolean isSenderLocalDomain() {
+		if ((resolved & LOCAL_DOMAIN) == 0) {
+			BareJID sender = getSender();
+			localDomain = session != null && sender != null && session.isLocalDomain(sender.getDomain(), false);
+			resolved |= LOCAL_DOMAIN;
+		}
+		return localDomain;
+	}
+
+	/**
+	 * Checks if sender of the stanza is a local user owning the session.
+	 */
+	public boolean isSenderLocalUser() {
+		if ((resolved & LOCAL_USER) == 0) {
+			BareJID sender = getSender();
+			try {
+				localUser = session != null && sender != null && session.isAuthorized() && session.isUserId(sender);
+			} catch (Exception ex) {
+				log.log(Level.FINE, "Could not check if " + sender + " is a local user", ex);
+				localUser = false;
+			}
+			resolved |= LOCAL_USER;
+		}
+		return localUser;
+	}
+
+	/**
+	 * Checks if sender of the stanza should be treated as a spammer if stanza is dropped.
+	 */
+	public boolean isSenderBlamed() {
+		return senderBlamed;
+	}
+
+	/**
+	 * Marks that stanza is dropped for a reason which does not prove that its sender is a spammer (ie. aggregated
+	 * limit of many senders was exceeded), so <code>SpamProcessor</code> drops it without reporting it to
+	 * <code>ResultsAwareSpamFilter</code>s.
+	 */
+	public void setSenderNotBlamed() {
+		senderBlamed = false;
+	}
+
+	/**
+	 * Releases stanza and session, so that they will not be retained by the thread.
+	 */
+	void release() {
+		bind0(null, null);
+	}
+
+	private void bind0(Packet packet, XMPPResourceConnection session) {
+		this.packet = packet;
+		this.session = session;
+		this.resolved = 0;
+		this.body = null;
+		this.sender = null;
+		this.senderBlamed = true;
+	}
+}
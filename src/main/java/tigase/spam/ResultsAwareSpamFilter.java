@@ -29,6 +29,18 @@ public interface ResultsAwareSpamFilter
 
 	boolean reportedSpammer(BareJID jid);
 
+	/**
+	 * Called when a spammer is reported by a local user.
+	 *
+	 * @param jid reported spammer
+	 * @param reporter local user who reported the spammer or <code>null</code> if it is not known
+	 *
+	 * @return true if account of the spammer was disabled
+	 */
+	default boolean reportedSpammer(BareJID jid, BareJID reporter) {
+		return reportedSpammer(jid);
+	}
+
 	void identifiedSpam(Packet packet, XMPPResourceConnection session, SpamFilter filter);
 
 }
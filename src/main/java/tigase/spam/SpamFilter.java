@@ -19,6 +19,7 @@ package tigase.spam;
 
 import tigase.server.Packet;
 import tigase.stats.StatisticsList;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPResourceConnection;
 
 /**
@@ -35,6 +36,20 @@ public interface SpamFilter {
 	 */
 	boolean filter(Packet packet, XMPPResourceConnection session);
 
+	/**
+	 * Method checks if stanzas with passed element name and type should be processed by this filter.
+	 * It is used by <code>SpamProcessor</code> to build index of filters for every kind of stanza, so returned value
+	 * should depend only on passed parameters. Default implementation accepts all stanzas.
+	 *
+	 * @param elemName name of the stanza element (interned)
+	 * @param type type of the stanza or <code>null</code> if not set
+	 *
+	 * @return false if filter will never mark stanza of this kind as a SPAM
+	 */
+	default boolean appliesTo(String elemName, StanzaType type) {
+		return true;
+	}
+
 	/**
 	 * Method returns ID of a filter
 	 */
@@ -58,4 +73,28 @@ public interface SpamFilter {
 	default double getSpamProbability() {
 		return 1;
 	}
+
+	/**
+	 * Method returns maximal score which may be assigned by this filter to a single stanza.
+	 * It is used by <code>SpamProcessor</code> to skip scoring of a stanza if remaining filters are not able to raise
+	 * its score above the threshold. Default implementation returns <code>0</code> which means that filter does not
+	 * support scoring and is used only by calling {@link #filter(Packet, XMPPResourceConnection)}.
+	 *
+	 * @return value equal or greater than 0
+	 */
+	default double getMaxScore() {
+		return 0;
+	}
+
+	/**
+	 * Method processes packet and returns its spam score. It is called instead of
+	 * {@link #filter(Packet, XMPPResourceConnection)} if scoring is enabled in <code>SpamProcessor</code> and
+	 * {@link #getMaxScore()} returns value greater than 0. Scores of all filters are summed and stanza is dropped
+	 * when the sum reaches the threshold.
+	 *
+	 * @return value between 0 and value returned by {@link #getMaxScore()}
+	 */
+	default double score(Packet packet, XMPPResourceConnection session) {
+		return 0;
+	}
 }
@@ -21,24 +21,30 @@ import tigase.db.NonAuthUserRepository;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBean;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
 import tigase.kernel.core.Kernel;
+import tigase.server.Iq;
 import tigase.server.Packet;
 import tigase.server.xmppsession.SessionManager;
 import tigase.spam.filters.KnownSpammersFilter;
+import tigase.spam.lists.SpamLists;
 import tigase.stats.StatisticsList;
 import tigase.vhosts.VHostManager;
+import tigase.xml.Element;
+import tigase.xmpp.NoConnectionIdException;
+import tigase.xmpp.NotAuthorizedException;
 import tigase.xmpp.SpamReportsConsumer;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPPreprocessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.impl.annotation.AnnotatedXMPPProcessor;
 import tigase.xmpp.impl.annotation.Id;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Queue;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,12 +58,31 @@ import static tigase.spam.SpamProcessor.ID;
 @Bean(name = ID, parent = SessionManager.class, active = true)
 public class SpamProcessor
 		extends AnnotatedXMPPProcessor
-		implements XMPPPreprocessorIfc, RegistrarBean, SpamReportsConsumer {
+		implements XMPPPreprocessorIfc, RegistrarBean, SpamReportsConsumer, ConfigurationChangedAware,
+				   UnregisterAware {
 
 	public static final String ID = "spam-filter";
 
 	private static final Logger log = Logger.getLogger(SpamProcessor.class.getCanonicalName());
 
+	private static final long ADAPTIVE_ORDERING_MIN_PACKETS = 1000;
+
+	private static final int MAX_PENDING_REPORTS = 10000;
+
+	private static final String[] REPORTING_XMLNS = {"urn:xmpp:reporting:0", "urn:xmpp:reporting:1"};
+
+	@ConfigField(desc = "Adaptive ordering of filters", alias = "adaptive-ordering")
+	private boolean adaptiveOrdering = false;
+
+	@ConfigField(desc = "Frequency of adaptive ordering of filters", alias = "adaptive-ordering-frequency")
+	private long adaptiveOrderingFrequency = 5;
+
+	private TimerTask adaptiveOrderingTask;
+
+	private volatile FilterChain chain = FilterChain.EMPTY;
+
+	private final AdaptiveFilterOrdering ordering = new AdaptiveFilterOrdering(ADAPTIVE_ORDERING_MIN_PACKETS);
+
 	@Inject(nullAllowed = true)
 	private CopyOnWriteArrayList<SpamFilter> filters = new CopyOnWriteArrayList<>();
 
@@ -70,9 +95,32 @@ public class SpamProcessor
 	@Inject(nullAllowed = true)
 	private KnownSpammersFilter knownSpammersFilter;
 
+	@Inject(nullAllowed = true)
+	private SpamLists lists;
+
+	@Inject(nullAllowed = true)
+	private TrustedSenders trustedSenders;
+
 	@ConfigField(desc = "Return error if packet is dropped", alias = "return-error")
 	private boolean returnError = false;
 
+	@ConfigField(desc = "Score at which packet is dropped", alias = "score-threshold")
+	private double scoreThreshold = 0;
+
+	// reporters of spammers reported by packets which were not processed by the spam reporting processor yet
+	private final ConcurrentHashMap<BareJID, BareJID> pendingReporters = new ConcurrentHashMap<>();
+
+	private Timer timer;
+
+	private static boolean isReport(Element item) {
+		for (String xmlns : REPORTING_XMLNS) {
+			if (item.getChild("report", xmlns) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public boolean preProcess(Packet packet, XMPPResourceConnection session,
 							  NonAuthUserRepository nonAuthUserRepository, Queue<Packet> queue,
@@ -80,20 +128,138 @@ public class SpamProcessor
 		if (packet.getStanzaFrom() != null && packet.getStanzaFrom().getLocalpart() == null && vHostManager.getDefVHostItem().equals(packet.getStanzaFrom().getBareJID())) {
 			return false;
 		}
-		for (SpamFilter filter : filters) {
-			if (!filter.filter(packet, session)) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "filter {0} detected spam message {1}, sending error = {2}",
-							new Object[]{filter.getId(), packet, returnError});
+		recordReporters(packet, session);
+		PacketContext context = PacketContext.bind(packet, session);
+		try {
+			SpamLists lists = this.lists;
+			if (lists != null) {
+				switch (lists.check(context.getSender())) {
+					case allow:
+						return false;
+					case deny:
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "sender of packet {0} is on a deny list, sending error = {1}",
+									new Object[]{packet, returnError});
+						}
+						if (!returnError) {
+							packet.processedBy(ID);
+						}
+						return true;
+					default:
+						break;
+				}
+			}
+			FilterChain chain = this.chain;
+			TrustedSenders trustedSenders = this.trustedSenders;
+			if (trustedSenders != null && trustedSenders.isTrusted(context)) {
+				chain = trustedSenders.getTrustedChain(chain);
+			}
+			SpamFilter filter = detectSpam(chain.getFilters(packet.getElemName(), packet.getType()), packet, session,
+										   scoreThreshold);
+			if (filter == null) {
+				if (trustedSenders != null) {
+					trustedSenders.packetClean(context);
+				}
+				return false;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "filter {0} detected spam message {1}, sending error = {2}",
+						new Object[]{filter.getId(), packet, returnError});
+			}
+			if (context.isSenderBlamed()) {
+				if (trustedSenders != null) {
+					trustedSenders.packetSpam(context);
 				}
 				resultsAwareFilters.forEach(resultAware -> resultAware.identifiedSpam(packet, session, filter));
-				if (!returnError) {
-					packet.processedBy(ID);
+			}
+			if (!returnError) {
+				packet.processedBy(ID);
+			}
+			return true;
+		} finally {
+			context.release();
+		}
+	}
+
+	/**
+	 * Method executes filters and returns filter which detected that packet is a spam.
+	 * <br>
+	 * If <code>scoreThreshold</code> is greater than 0, filters which support scoring are asked for a score and packet
+	 * is a spam when sum of scores reaches the threshold. Scoring filters are skipped when even maximal scores of all
+	 * remaining scoring filters would not raise the sum to the threshold, so that expensive filters placed at the end
+	 * of the chain are executed only for borderline packets. Other filters are always executed.
+	 *
+	 * @return filter which detected spam (for scoring, filter which raised score above the threshold) or
+	 * <code>null</code> if packet is not a spam
+	 */
+	static SpamFilter detectSpam(SpamFilter[] filters, Packet packet, XMPPResourceConnection session,
+								 double scoreThreshold) {
+		if (scoreThreshold <= 0) {
+			for (SpamFilter filter : filters) {
+				if (!filter.filter(packet, session)) {
+					return filter;
 				}
-				return true;
 			}
+			return null;
+		}
+
+		double remaining = 0;
+		for (SpamFilter filter : filters) {
+			remaining += filter.getMaxScore();
+		}
+		double score = 0;
+		for (SpamFilter filter : filters) {
+			double maxScore = filter.getMaxScore();
+			if (maxScore > 0) {
+				remaining -= maxScore;
+				if (score + maxScore + remaining < scoreThreshold) {
+					// no remaining scoring filter is able to raise score above the threshold
+					continue;
+				}
+				score += filter.score(packet, session);
+				if (score >= scoreThreshold) {
+					return filter;
+				}
+			} else if (!filter.filter(packet, session)) {
+				return filter;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void beanConfigurationChanged(Collection<String> changedFields) {
+		if (adaptiveOrderingTask != null) {
+			adaptiveOrderingTask.cancel();
+			adaptiveOrderingTask = null;
+		}
+		if (adaptiveOrdering) {
+			if (timer == null) {
+				timer = new Timer("spam-filter-ordering", true);
+			}
+			adaptiveOrderingTask = new TimerTask() {
+				@Override
+				public void run() {
+					SpamProcessor.this.reorderFilters();
+				}
+			};
+			timer.schedule(adaptiveOrderingTask, adaptiveOrderingFrequency * 60 * 1000,
+						   adaptiveOrderingFrequency * 60 * 1000);
+		} else {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			this.chain = new FilterChain(filters);
+		}
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
 		}
-		return false;
 	}
 
 	@Override
@@ -110,15 +276,24 @@ public class SpamProcessor
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		filters.forEach(filter -> filter.getStatistics(this.id(), list));
+		SpamLists lists = this.lists;
+		if (lists != null) {
+			lists.getStatistics(this.id(), list);
+		}
+		TrustedSenders trustedSenders = this.trustedSenders;
+		if (trustedSenders != null) {
+			trustedSenders.getStatistics(this.id(), list);
+		}
 	}
 
 	public Collection<KnownSpammersFilter.Spammer> getSpammers() {
 		return knownSpammersFilter.getSpammers();
 	}
 
-	public void setFilters(CopyOnWriteArrayList<SpamFilter> filters) {
+	public synchronized void setFilters(CopyOnWriteArrayList<SpamFilter> filters) {
 		if (filters == null) {
 			this.filters = new CopyOnWriteArrayList<>();
+			this.chain = FilterChain.EMPTY;
 		} else {
 			Optional<KnownSpammersFilter> knownSpammers = filters.stream()
 					.filter(filter -> filter instanceof KnownSpammersFilter)
@@ -131,9 +306,17 @@ public class SpamProcessor
 			});
 
 			this.filters = filters;
+			this.chain = new FilterChain(adaptiveOrdering ? ordering.reorder(filters) : filters);
 		}
 	}
 
+	/**
+	 * Method returns filters in order in which they are executed.
+	 */
+	public List<SpamFilter> getActiveFilters() {
+		return chain.getFilters();
+	}
+
 	public void setResultsAwareFilters(CopyOnWriteArrayList<ResultsAwareSpamFilter> resultsAwareFilters) {
 		if (resultsAwareFilters == null) {
 			resultsAwareFilters = new CopyOnWriteArrayList<>();
@@ -141,15 +324,67 @@ public class SpamProcessor
 		this.resultsAwareFilters = resultsAwareFilters;
 	}
 
+	protected synchronized void reorderFilters() {
+		List<SpamFilter> reordered = ordering.reorder(filters);
+		if (!reordered.equals(chain.getFilters())) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Changing order of filters to {0}", reordered);
+			}
+			// chain is replaced as a whole, so threads processing packets never see it partially updated
+			this.chain = new FilterChain(reordered);
+		}
+	}
+
 	@Override
 	public boolean spamReportedFrom(BareJID jid, ReportType type) {
 		boolean blocked = false;
+		TrustedSenders trustedSenders = this.trustedSenders;
+		if (trustedSenders != null) {
+			trustedSenders.spammerReported(jid);
+		}
+		// spam reporting processor passes only JID of a spammer, so reporter is recorded when report is preprocessed
+		BareJID reporter = pendingReporters.remove(jid);
 		for (ResultsAwareSpamFilter resultsAwareSpamFilter : resultsAwareFilters) {
-			blocked |= resultsAwareSpamFilter.reportedSpammer(jid);
+			blocked |= resultsAwareSpamFilter.reportedSpammer(jid, reporter);
 		}
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Spam from " + jid + " was reported resulting with account being disabled = " + blocked);
 		}
 		return blocked;
 	}
+
+	/**
+	 * Records local user sending XEP-0377 spam reports as a reporter of spammers, so that filters may count
+	 * independent reporters.
+	 */
+	private void recordReporters(Packet packet, XMPPResourceConnection session) {
+		if (session == null || packet.getElemName() != Iq.ELEM_NAME || packet.getType() != StanzaType.set) {
+			return;
+		}
+		Element block = packet.getElement().getChild("block", "urn:xmpp:blocking");
+		List<Element> items = block == null ? null : block.getChildren();
+		if (items == null) {
+			return;
+		}
+		try {
+			if (!session.isAuthorized() || packet.getPacketFrom() == null ||
+					!packet.getPacketFrom().equals(session.getConnectionId())) {
+				return;
+			}
+			BareJID reporter = session.getBareJID();
+			for (Element item : items) {
+				String jid = item.getAttributeStaticStr("jid");
+				if (jid == null || !isReport(item)) {
+					continue;
+				}
+				if (pendingReporters.size() >= MAX_PENDING_REPORTS) {
+					// reports which were not processed are forgotten
+					pendingReporters.clear();
+				}
+				pendingReporters.put(BareJID.bareJIDInstanceNS(jid), reporter);
+			}
+		} catch (NoConnectionIdException | NotAuthorizedException ex) {
+			log.log(Level.FINEST, "Could not record reporter of spam reported by " + packet, ex);
+		}
+	}
 }
@@ -0,0 +1,213 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Packet;
+import tigase.spam.filters.SpammersTable;
+import tigase.spam.util.TrustTable;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.impl.roster.RosterFactory;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of senders with a clean history, which packets are not checked by selected (expensive) filters.
+ * <br>
+ * Sender is trusted if it is an authenticated local user which sent at least <code>min-clean-packets</code> packets
+ * not detected as spam during at least <code>min-clean-time</code> minutes, or if it is a contact (roster item with
+ * a subscription approved by any side) of a local user receiving the packet. History of a sender expires if it sends no packets for <code>ttl</code> minutes.
+ * <br>
+ * Trust is revoked immediately when a packet of a sender is detected as spam or when a sender is reported as a spammer,
+ * also for contacts, and sender is not trusted again until <code>ttl</code> passes.
+ */
+@Bean(name = TrustedSenders.ID, parent = SpamProcessor.class, active = false)
+public class TrustedSenders
+		implements ConfigurationChangedAware {
+
+	public static final String ID = "trusted-senders";
+
+	private static final Logger log = Logger.getLogger(TrustedSenders.class.getCanonicalName());
+
+	private volatile ChainCache chainCache;
+	@ConfigField(desc = "Minimal number of clean packets sent by a local user to trust it", alias = "min-clean-packets")
+	private int minCleanPackets = 100;
+	@ConfigField(desc = "Minimal time (in minutes) since the first clean packet sent by a local user to trust it", alias = "min-clean-time")
+	private long minCleanTime = 24 * 60;
+	private final LongAdder revoked = new LongAdder();
+	@ConfigField(desc = "Filters which are not executed for packets of trusted senders", alias = "skip-filters")
+	private String[] skipFilters = new String[]{"message-same-long-body", "message-similar-body", "message-keywords"};
+	private volatile Set<String> skippedFilters = new HashSet<>(Arrays.asList(skipFilters));
+	private volatile TrustTable table;
+	@ConfigField(desc = "Maximal number of senders kept in memory", alias = "table-size")
+	private int tableSize = 100000;
+	private final LongAdder trusted = new LongAdder();
+	@ConfigField(desc = "Trust contacts of a local user receiving a packet", alias = "trust-contacts")
+	private boolean trustContacts = true;
+	@ConfigField(desc = "Time (in minutes) after which history of an inactive sender is forgotten", alias = "ttl")
+	private long ttl = 7 * 24 * 60;
+
+	public TrustedSenders() {
+		table = new TrustTable(tableSize, ttl * 60 * 1000);
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("tableSize") || changedFields.contains("ttl")) {
+			table = new TrustTable(tableSize, ttl * 60 * 1000);
+		}
+		if (changedFields.contains("skipFilters")) {
+			skippedFilters = new HashSet<>(skipFilters == null ? new ArrayList<>() : Arrays.asList(skipFilters));
+			chainCache = null;
+		}
+	}
+
+	/**
+	 * Returns chain of filters which should process packets of trusted senders.
+	 */
+	public FilterChain getTrustedChain(FilterChain chain) {
+		ChainCache cache = this.chainCache;
+		if (cache == null || cache.source != chain) {
+			Set<String> skippedFilters = this.skippedFilters;
+			List<SpamFilter> filters = new ArrayList<>();
+			for (SpamFilter filter : chain.getFilters()) {
+				if (!skippedFilters.contains(filter.getId())) {
+					filters.add(filter);
+				}
+			}
+			cache = new ChainCache(chain, new FilterChain(filters));
+			this.chainCache = cache;
+		}
+		return cache.trusted;
+	}
+
+	public void getStatistics(String name, StatisticsList list) {
+		if (list.checkLevel(Level.FINE)) {
+			TrustTable table = this.table;
+			list.add(name, ID + "/Trusted packets", trusted.sum(), Level.FINE);
+			list.add(name, ID + "/Revoked senders", revoked.sum(), Level.FINE);
+			list.add(name, ID + "/Table size", table.size(), Level.FINE);
+			list.add(name, ID + "/Evicted senders", table.getEvictions(), Level.FINE);
+			list.add(name, ID + "/Table memory usage", table.getMemoryUsage(), Level.FINE);
+		}
+	}
+
+	/**
+	 * Checks if sender of a packet is trusted.
+	 */
+	public boolean isTrusted(PacketContext context) {
+		long sender = context.getSenderFingerprint();
+		if (sender == 0) {
+			return false;
+		}
+		switch (table.check(sender, minCleanPackets, minCleanTime * 60 * 1000, System.currentTimeMillis())) {
+			case trusted:
+				trusted.increment();
+				return true;
+			case revoked:
+				return false;
+			default:
+				if (trustContacts && isContactOfRecipient(context)) {
+					trusted.increment();
+					return true;
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Records that packet was not detected as spam. Only packets sent by local users are recorded.
+	 */
+	public void packetClean(PacketContext context) {
+		if (context.isSenderLocalUser()) {
+			table.recordClean(context.getSenderFingerprint(), System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Revokes trust of a sender of the packet detected as spam.
+	 */
+	public void packetSpam(PacketContext context) {
+		long sender = context.getSenderFingerprint();
+		if (sender != 0) {
+			revoke(sender);
+		}
+	}
+
+	/**
+	 * Revokes trust of a sender reported as a spammer.
+	 */
+	public void spammerReported(BareJID jid) {
+		revoke(SpammersTable.fingerprint(jid));
+	}
+
+	private void revoke(long sender) {
+		table.revoke(sender, System.currentTimeMillis());
+		revoked.increment();
+	}
+
+	private static boolean isContactOfRecipient(PacketContext context) {
+		XMPPResourceConnection session = context.getSession();
+		Packet packet = context.getPacket();
+		JID from = packet.getStanzaFrom();
+		JID to = packet.getStanzaTo();
+		if (session == null || from == null || from.getLocalpart() == null || to == null ||
+				context.isSenderLocalUser()) {
+			return false;
+		}
+		try {
+			if (!session.isAuthorized() || !session.isUserId(to.getBareJID())) {
+				return false;
+			}
+			// roster item with pending subscription is created by any subscription request, so it does not make
+			// a sender a contact
+			RosterAbstract roster = RosterFactory.getRosterImplementation(true);
+			return roster.isSubscribedFrom(session, from) || roster.isSubscribedTo(session, from);
+		} catch (NotAuthorizedException | TigaseDBException ex) {
+			log.log(Level.FINEST, "Could not check if " + from + " is a contact of " + to, ex);
+			return false;
+		}
+	}
+
+	private static class ChainCache {
+
+		private final FilterChain source;
+		private final FilterChain trusted;
+
+		private ChainCache(FilterChain source, FilterChain trusted) {
+			this.source = source;
+			this.trusted = trusted;
+		}
+	}
+}
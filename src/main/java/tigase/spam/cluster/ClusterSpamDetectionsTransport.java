@@ -0,0 +1,112 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.cluster;
+
+import tigase.cluster.api.ClusterCommandException;
+import tigase.cluster.api.ClusterControllerIfc;
+import tigase.cluster.api.CommandListenerAbstract;
+import tigase.cluster.strategy.ClusteringStrategyIfc;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.selector.ClusterModeRequired;
+import tigase.server.Priority;
+import tigase.server.xmppsession.SessionManager;
+import tigase.spam.SpamProcessor;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tigase.spam.cluster.ClusterSpamDetectionsTransport.ID;
+
+/**
+ * Transport of spam detections using cluster connections between nodes.
+ */
+@Bean(name = ID, parent = SpamProcessor.class, active = true)
+@ClusterModeRequired(active = true)
+public class ClusterSpamDetectionsTransport
+		implements SpamDetectionsTransport, Initializable, UnregisterAware {
+
+	protected static final String ID = "spam-detections-transport";
+	private static final String DETECTIONS_CMD = "spam-detections";
+	private static final String DETECTIONS_KEY = "detections";
+	private static final Logger log = Logger.getLogger(ClusterSpamDetectionsTransport.class.getCanonicalName());
+
+	private final DetectionsCmd detectionsCmd = new DetectionsCmd();
+	@Inject
+	private ClusterControllerIfc clusterController;
+	private volatile Consumer<String> listener;
+	@Inject
+	private SessionManager sessionManager;
+	@Inject
+	private ClusteringStrategyIfc strategy;
+
+	@Override
+	public void send(String payload) {
+		List<JID> nodes = strategy.getNodesConnected();
+		if (nodes == null || nodes.isEmpty()) {
+			return;
+		}
+		Map<String, String> data = new HashMap<>();
+		data.put(DETECTIONS_KEY, payload);
+		clusterController.sendToNodes(DETECTIONS_CMD, data, sessionManager.getComponentId(),
+									  nodes.toArray(new JID[nodes.size()]));
+	}
+
+	@Override
+	public void setListener(Consumer<String> listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void initialize() {
+		clusterController.setCommandListener(detectionsCmd);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		clusterController.removeCommandListener(detectionsCmd);
+	}
+
+	private class DetectionsCmd
+			extends CommandListenerAbstract {
+
+		public DetectionsCmd() {
+			super(DETECTIONS_CMD, Priority.HIGH);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			String payload = data == null ? null : data.get(DETECTIONS_KEY);
+			Consumer<String> listener = ClusterSpamDetectionsTransport.this.listener;
+			if (payload == null || listener == null) {
+				return;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Received spam detections from node {0}", fromNode);
+			}
+			listener.accept(payload);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.cluster;
+
+import tigase.xmpp.jid.BareJID;
+
+/**
+ * Aggregated spam detections of a single sender, which were made on a cluster node since last broadcast.
+ */
+public class SpamDetection {
+
+	private final long counter;
+	private final BareJID jid;
+	private final boolean localUser;
+	private final double probability;
+	private final long timestamp;
+
+	public SpamDetection(BareJID jid, long counter, double probability, long timestamp, boolean localUser) {
+		this.jid = jid;
+		this.counter = counter;
+		this.probability = probability;
+		this.timestamp = timestamp;
+		this.localUser = localUser;
+	}
+
+	public BareJID getJid() {
+		return jid;
+	}
+
+	/**
+	 * Number of detections since last broadcast
+	 */
+	public long getCounter() {
+		return counter;
+	}
+
+	/**
+	 * Sum of probabilities of detections since last broadcast
+	 */
+	public double getProbability() {
+		return probability;
+	}
+
+	/**
+	 * Timestamp of the last detection
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isLocalUser() {
+		return localUser;
+	}
+
+	public SpamDetection merge(SpamDetection detection) {
+		return new SpamDetection(jid, counter + detection.counter, probability + detection.probability,
+								 Math.max(timestamp, detection.timestamp), localUser || detection.localUser);
+	}
+
+	@Override
+	public String toString() {
+		return jid + "[count: " + counter + ", probability: " + probability + ", last_at: " + timestamp + "]";
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.cluster;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects spam detections made on this node and broadcasts them in batches to other cluster nodes.
+ * <br>
+ * Detections of the same sender are coalesced into a single entry until the batch is sent. Batch is sent when it
+ * contains configured number of senders or when the oldest detection in it waits for the configured max delay.
+ * <br>
+ * Batches are encoded as text, with a line per sender, and fields separated by a tab (which is not allowed in a
+ * JID):
+ * <pre>
+ * 1	&lt;base timestamp&gt;
+ * &lt;jid&gt;	&lt;counter&gt;	&lt;probability&gt;	&lt;timestamp - base timestamp&gt;	&lt;flags&gt;
+ * </pre>
+ * Numbers are written in radix 36.
+ */
+public class SpamDetectionsBroadcaster {
+
+	private static final int FLAG_LOCAL = 0x01;
+	private static final int RADIX = 36;
+	private static final String VERSION = "1";
+	private static final Logger log = Logger.getLogger(SpamDetectionsBroadcaster.class.getCanonicalName());
+
+	private final Consumer<SpamDetection> consumer;
+	private final Timer timer = new Timer("spam-detections-broadcaster", true);
+	private final SpamDetectionsTransport transport;
+	private volatile int batchSize;
+	private TimerTask flushTask;
+	private volatile long maxDelay;
+	private Map<BareJID, SpamDetection> pending = new LinkedHashMap<>();
+	private long received = 0;
+	private long sentBatches = 0;
+	private long sentDetections = 0;
+
+	public static String encode(Collection<SpamDetection> detections) {
+		long base = Long.MAX_VALUE;
+		for (SpamDetection detection : detections) {
+			base = Math.min(base, detection.getTimestamp());
+		}
+		StringBuilder sb = new StringBuilder(detections.size() * 48);
+		sb.append(VERSION).append('\t').append(Long.toString(base, RADIX));
+		for (SpamDetection detection : detections) {
+			sb.append('\n')
+					.append(detection.getJid().toString())
+					.append('\t')
+					.append(Long.toString(detection.getCounter(), RADIX))
+					.append('\t')
+					.append(detection.getProbability())
+					.append('\t')
+					.append(Long.toString(detection.getTimestamp() - base, RADIX))
+					.append('\t')
+					.append(detection.isLocalUser() ? FLAG_LOCAL : 0);
+		}
+		return sb.toString();
+	}
+
+	public static List<SpamDetection> decode(String payload) throws IllegalArgumentException {
+		String[] lines = payload.split("\n");
+		String[] header = lines[0].split("\t");
+		if (header.length != 2 || !VERSION.equals(header[0])) {
+			throw new IllegalArgumentException("Unsupported format of spam detections: " + lines[0]);
+		}
+		long base = Long.parseLong(header[1], RADIX);
+		List<SpamDetection> detections = new ArrayList<>(lines.length - 1);
+		for (int i = 1; i < lines.length; i++) {
+			String[] fields = lines[i].split("\t");
+			if (fields.length < 5) {
+				throw new IllegalArgumentException("Invalid spam detection: " + lines[i]);
+			}
+			int flags = Integer.parseInt(fields[4]);
+			detections.add(new SpamDetection(BareJID.bareJIDInstanceNS(fields[0]), Long.parseLong(fields[1], RADIX),
+											 Double.parseDouble(fields[2]),
+											 base + Long.parseLong(fields[3], RADIX),
+											 (flags & FLAG_LOCAL) != 0));
+		}
+		return detections;
+	}
+
+	/**
+	 * @param transport transport used to exchange batches with other cluster nodes
+	 * @param consumer consumer of detections received from other cluster nodes
+	 */
+	public SpamDetectionsBroadcaster(SpamDetectionsTransport transport, Consumer<SpamDetection> consumer,
+									 int batchSize, long maxDelay) {
+		this.transport = transport;
+		this.consumer = consumer;
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+		transport.setListener(this::received);
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	public void spamDetected(BareJID jid, double probability, boolean localUser) {
+		SpamDetection detection = new SpamDetection(jid, 1, probability, System.currentTimeMillis(), localUser);
+		Map<BareJID, SpamDetection> batch = null;
+		synchronized (this) {
+			pending.merge(jid, detection, SpamDetection::merge);
+			if (pending.size() >= batchSize) {
+				batch = takePending();
+			} else if (flushTask == null) {
+				flushTask = new TimerTask() {
+					@Override
+					public void run() {
+						flush();
+					}
+				};
+				timer.schedule(flushTask, maxDelay);
+			}
+		}
+		if (batch != null) {
+			send(batch);
+		}
+	}
+
+	public void flush() {
+		Map<BareJID, SpamDetection> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = takePending();
+		}
+		send(batch);
+	}
+
+	public void close() {
+		flush();
+		timer.cancel();
+		transport.setListener(null);
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	public synchronized long getSentBatches() {
+		return sentBatches;
+	}
+
+	public synchronized long getSentDetections() {
+		return sentDetections;
+	}
+
+	private Map<BareJID, SpamDetection> takePending() {
+		Map<BareJID, SpamDetection> batch = pending;
+		pending = new LinkedHashMap<>();
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+		sentBatches++;
+		sentDetections += batch.size();
+		return batch;
+	}
+
+	private void send(Map<BareJID, SpamDetection> batch) {
+		try {
+			transport.send(encode(batch.values()));
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Could not broadcast " + batch.size() + " spam detections", ex);
+		}
+	}
+
+	private void received(String payload) {
+		List<SpamDetection> detections;
+		try {
+			detections = decode(payload);
+		} catch (IllegalArgumentException ex) {
+			log.log(Level.WARNING, "Could not decode spam detections", ex);
+			return;
+		}
+		synchronized (this) {
+			received += detections.size();
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Received spam detections: {0}", detections);
+		}
+		detections.forEach(consumer);
+	}
+}
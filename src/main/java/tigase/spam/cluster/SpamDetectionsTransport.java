@@ -0,0 +1,37 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Interface of a transport used to exchange encoded spam detections between cluster nodes.
+ */
+public interface SpamDetectionsTransport {
+
+	/**
+	 * Sends encoded batch of detections to all other cluster nodes.
+	 */
+	void send(String payload);
+
+	/**
+	 * Sets listener which will be called with encoded batch of detections received from other cluster nodes.
+	 */
+	void setListener(Consumer<String> listener);
+
+}
@@ -17,11 +17,15 @@
  */
 package tigase.spam.filters;
 
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.spam.SpamFilter;
+import tigase.spam.util.LatencyHistogram;
 import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPResourceConnection;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 /**
@@ -30,39 +34,121 @@ import java.util.logging.Level;
 public abstract class AbstractSpamFilter
 		implements SpamFilter {
 
-	private long avgProcessingTime = 0L;
-	private long filteredMessages = 0L;
-	private long spamMessages = 0L;
-	private long totalProcessingTime = 0L;
+	private final LongAdder filteredMessages = new LongAdder();
+	private final LongAdder measuredMessages = new LongAdder();
+	private final LatencyHistogram processingTimes = new LatencyHistogram();
+	private final LongAdder spamMessages = new LongAdder();
+	private final LongAdder totalProcessingTime = new LongAdder();
+	@ConfigField(desc = "Measure processing time of every N-th packet", alias = "latency-sampling")
+	private int latencySampling = 1;
+	private long lastStatisticsFilteredMessages = 0L;
+	private LatencyHistogram.Snapshot lastStatisticsProcessingTimes = LatencyHistogram.Snapshot.EMPTY;
+	private long lastStatisticsSpamMessages = 0L;
+	private long lastStatisticsTimestamp = System.nanoTime();
+	@ConfigField(desc = "Score of a stanza detected as spam", alias = "score")
+	private double score = 0;
 
 	@Override
 	public boolean filter(Packet packet, XMPPResourceConnection session) {
-		long start = System.currentTimeMillis();
-		filteredMessages++;
+		filteredMessages.increment();
 
-		boolean result = filterPacket(packet, session);
-
-		long time = System.currentTimeMillis() - start;
-		avgProcessingTime = (avgProcessingTime + time) / 2L;
-		totalProcessingTime += time;
+		boolean result;
+		int sampling = latencySampling;
+		if (sampling <= 1 || ThreadLocalRandom.current().nextInt(sampling) == 0) {
+			long start = System.nanoTime();
+			result = filterPacket(packet, session);
+			long time = System.nanoTime() - start;
+			processingTimes.record(time);
+			measuredMessages.increment();
+			totalProcessingTime.add(time);
+		} else {
+			result = filterPacket(packet, session);
+		}
 
 		if (!result) {
-			spamMessages++;
+			spamMessages.increment();
 		}
 
 		return result;
 	}
 
+	@Override
+	public double getMaxScore() {
+		return score;
+	}
+
+	/**
+	 * Returns configured score if stanza is detected as a spam by this filter or <code>0</code> otherwise.
+	 */
+	@Override
+	public double score(Packet packet, XMPPResourceConnection session) {
+		return filter(packet, session) ? 0 : score;
+	}
+
 	@Override
 	public void getStatistics(String name, StatisticsList list) {
 		if (list.checkLevel(Level.FINE)) {
-			list.add(name, getId() + "/Filtered packets", filteredMessages, Level.FINE);
-			list.add(name, getId() + "/Spam messages", spamMessages, Level.FINE);
-			list.add(name, getId() + "/Average processing time", avgProcessingTime, Level.FINE);
-			list.add(name, getId() + "/Total processing time", totalProcessingTime, Level.FINE);
+			long filtered = filteredMessages.sum();
+			long spam = spamMessages.sum();
+			LatencyHistogram.Snapshot processingTimes = this.processingTimes.snapshot();
+			LatencyHistogram.Snapshot interval;
+			double seconds;
+			// rates and percentiles are calculated for the period since statistics were retrieved last time
+			synchronized (this) {
+				long now = System.nanoTime();
+				seconds = Math.max(1, now - lastStatisticsTimestamp) / 1_000_000_000d;
+				interval = processingTimes.minus(lastStatisticsProcessingTimes);
+				list.add(name, getId() + "/Filtered packets/s",
+						 (float) ((filtered - lastStatisticsFilteredMessages) / seconds), Level.FINE);
+				list.add(name, getId() + "/Spam messages/s", (float) ((spam - lastStatisticsSpamMessages) / seconds),
+						 Level.FINE);
+				lastStatisticsTimestamp = now;
+				lastStatisticsFilteredMessages = filtered;
+				lastStatisticsSpamMessages = spam;
+				lastStatisticsProcessingTimes = processingTimes;
+			}
+			long totalTime = totalProcessingTime.sum();
+			list.add(name, getId() + "/Filtered packets", filtered, Level.FINE);
+			list.add(name, getId() + "/Spam messages", spam, Level.FINE);
+			float avgTime = processingTimes.getTotal() == 0
+							? 0f
+							: (float) (totalTime / 1_000_000d / processingTimes.getTotal());
+			list.add(name, getId() + "/Average processing time", avgTime, Level.FINE);
+			list.add(name, getId() + "/Total processing time", totalTime / 1_000_000L, Level.FINE);
+			list.add(name, getId() + "/Processing time p50 [ns]", interval.getQuantile(0.5), Level.FINE);
+			list.add(name, getId() + "/Processing time p99 [ns]", interval.getQuantile(0.99), Level.FINE);
+			list.add(name, getId() + "/Processing time p999 [ns]", interval.getQuantile(0.999), Level.FINE);
 		}
 	}
 
+	/**
+	 * Returns number of packets processed by this filter.
+	 */
+	public long getFilteredPackets() {
+		return filteredMessages.sum();
+	}
+
+	/**
+	 * Returns number of packets detected as spam by this filter.
+	 */
+	public long getSpamPackets() {
+		return spamMessages.sum();
+	}
+
+	/**
+	 * Returns number of packets for which processing time was measured.
+	 */
+	public long getMeasuredPackets() {
+		return measuredMessages.sum();
+	}
+
+	/**
+	 * Returns total processing time of measured packets in nanoseconds.
+	 */
+	public long getMeasuredProcessingTime() {
+		return totalProcessingTime.sum();
+	}
+
 	protected abstract boolean filterPacket(Packet packet, XMPPResourceConnection session);
 
 	@Override
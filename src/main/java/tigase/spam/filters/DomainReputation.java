@@ -0,0 +1,137 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spam scores of domains aggregated from spam detections of all users of a domain.
+ * <br>
+ * Score of a domain is a sum of probabilities of detections, which decays exponentially with configured half-life,
+ * so it reflects recent activity of spammers from the domain. When score of a domain reaches the threshold, domain is
+ * blocked for configured time.
+ */
+public class DomainReputation {
+
+	private final Map<String, Domain> domains = new ConcurrentHashMap<>();
+	private volatile long banTime;
+	private volatile double halfLife;
+
+	/**
+	 * @param halfLife time in ms after which score of a domain drops by half
+	 * @param banTime time in ms for which domain will be blocked after its score reached the threshold
+	 */
+	public DomainReputation(long halfLife, long banTime) {
+		setHalfLife(halfLife);
+		setBanTime(banTime);
+	}
+
+	public void setBanTime(long banTime) {
+		this.banTime = banTime;
+	}
+
+	public void setHalfLife(long halfLife) {
+		this.halfLife = halfLife;
+	}
+
+	/**
+	 * Checks if domain is blocked.
+	 */
+	public boolean isBlocked(String domain, long now) {
+		if (domains.isEmpty()) {
+			return false;
+		}
+		Domain state = domains.get(domain);
+		return state != null && state.blockedUntil > now;
+	}
+
+	/**
+	 * Adds spam detection to the score of a domain.
+	 *
+	 * @param threshold score at which domain should be blocked or value <code>&lt;= 0</code> if domain should not be
+	 * blocked
+	 *
+	 * @return true if domain was blocked due to this detection
+	 */
+	public boolean spamDetected(String domain, double probability, double threshold, long now) {
+		Domain state = domains.computeIfAbsent(domain, key -> new Domain());
+		synchronized (state) {
+			state.score = decay(state, now) + probability;
+			state.timestamp = now;
+			if (threshold > 0 && state.score >= threshold && state.blockedUntil <= now) {
+				state.blockedUntil = now + banTime;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns current score of a domain.
+	 */
+	public double getScore(String domain, long now) {
+		Domain state = domains.get(domain);
+		if (state == null) {
+			return 0;
+		}
+		synchronized (state) {
+			return decay(state, now);
+		}
+	}
+
+	/**
+	 * Removes domains which are not blocked and with score below the passed value.
+	 */
+	public void cleanUp(double minScore, long now) {
+		domains.values().removeIf(state -> {
+			synchronized (state) {
+				return state.blockedUntil <= now && decay(state, now) < minScore;
+			}
+		});
+	}
+
+	public int size() {
+		return domains.size();
+	}
+
+	public int getBlockedCount(long now) {
+		int count = 0;
+		for (Domain state : domains.values()) {
+			if (state.blockedUntil > now) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private double decay(Domain state, long now) {
+		long elapsed = now - state.timestamp;
+		if (elapsed <= 0) {
+			return state.score;
+		}
+		return state.score * Math.pow(0.5, elapsed / halfLife);
+	}
+
+	private static class Domain {
+
+		private volatile long blockedUntil = Long.MIN_VALUE;
+		private double score = 0;
+		private long timestamp;
+	}
+}
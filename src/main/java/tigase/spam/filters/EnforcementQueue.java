@@ -0,0 +1,263 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.db.AuthRepository;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of actions taken against detected spammers (closing sessions and disabling accounts), which are
+ * executed by a separate thread, so that slow repository does not block threads processing packets.
+ * <br>
+ * Actions requested for the same JID are coalesced until they are executed. Actions are executed in batches, closing
+ * sessions first and then writing account status changes to the repository. Account status changes which failed due
+ * to {@link TigaseDBException} are retried with an exponential backoff.
+ * <br>
+ * When queue is full, actions are executed by the thread requesting them.
+ */
+public class EnforcementQueue {
+
+	private static final Logger log = Logger.getLogger(EnforcementQueue.class.getCanonicalName());
+
+	private final LinkedHashMap<BareJID, Action> pending = new LinkedHashMap<>();
+	private final PriorityQueue<Action> retries = new PriorityQueue<>(
+			Comparator.comparingLong(action -> action.nextAttempt));
+	private volatile int batchSize;
+	private volatile int capacity;
+	private long callerRuns = 0;
+	private long disabledAccounts = 0;
+	private long failedAccounts = 0;
+	private long closedSessions = 0;
+	private volatile int maxRetries;
+	private volatile long retryDelay;
+	private boolean stopped = false;
+	private Thread worker;
+
+	/**
+	 * @param capacity max number of JIDs with pending actions
+	 * @param batchSize max number of JIDs processed in a single batch
+	 * @param maxRetries max number of retries of a failed account status change
+	 * @param retryDelay delay before first retry in ms (doubled with every retry)
+	 */
+	public EnforcementQueue(int capacity, int batchSize, int maxRetries, long retryDelay) {
+		setLimits(capacity, batchSize, maxRetries, retryDelay);
+	}
+
+	public void setLimits(int capacity, int batchSize, int maxRetries, long retryDelay) {
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Requests closing of a session of a spammer with a <code>policy-violation</code> error.
+	 */
+	public void closeSession(BareJID jid, XMPPResourceConnection session) {
+		submit(jid, action -> action.sessions.add(session));
+	}
+
+	/**
+	 * Requests change of the status of a spammer account to {@link AuthRepository.AccountStatus#spam}.
+	 */
+	public void disableAccount(BareJID jid, AuthRepository repository) {
+		submit(jid, action -> action.repository = repository);
+	}
+
+	/**
+	 * Stops the worker thread executing pending actions first. Pending retries are dropped.
+	 */
+	public void stop() {
+		Thread worker;
+		synchronized (this) {
+			stopped = true;
+			worker = this.worker;
+			notifyAll();
+		}
+		if (worker != null) {
+			try {
+				worker.join(10 * 1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return pending.size() + retries.size();
+	}
+
+	public synchronized long getCallerRuns() {
+		return callerRuns;
+	}
+
+	public synchronized long getClosedSessions() {
+		return closedSessions;
+	}
+
+	public synchronized long getDisabledAccounts() {
+		return disabledAccounts;
+	}
+
+	public synchronized long getFailedAccounts() {
+		return failedAccounts;
+	}
+
+	private void submit(BareJID jid, Consumer<Action> modifier) {
+		Action inline = null;
+		synchronized (this) {
+			Action action = pending.get(jid);
+			if (action == null) {
+				action = new Action(jid);
+				if (pending.size() >= capacity || stopped) {
+					callerRuns++;
+					inline = action;
+				} else {
+					pending.put(jid, action);
+					if (worker == null) {
+						worker = new Thread(this::run, "spam-enforcement");
+						worker.setDaemon(true);
+						worker.start();
+					}
+					notifyAll();
+				}
+			}
+			modifier.accept(action);
+		}
+		if (inline != null) {
+			execute(Collections.singletonList(inline));
+		}
+	}
+
+	private void run() {
+		List<Action> batch = new ArrayList<>();
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!hasWork()) {
+						if (stopped) {
+							worker = null;
+							return;
+						}
+						long now = System.currentTimeMillis();
+						Action retry = retries.peek();
+						wait(retry == null ? 0 : Math.max(1, retry.nextAttempt - now));
+					}
+				} catch (InterruptedException ex) {
+					worker = null;
+					return;
+				}
+				long now = System.currentTimeMillis();
+				while (!retries.isEmpty() && retries.peek().nextAttempt <= now && batch.size() < batchSize) {
+					batch.add(retries.poll());
+				}
+				Iterator<Action> it = pending.values().iterator();
+				while (it.hasNext() && batch.size() < batchSize) {
+					batch.add(it.next());
+					it.remove();
+				}
+			}
+			execute(batch);
+			batch.clear();
+		}
+	}
+
+	// must be called with lock held
+	private boolean hasWork() {
+		if (!pending.isEmpty()) {
+			return true;
+		}
+		Action retry = retries.peek();
+		return retry != null && !stopped && retry.nextAttempt <= System.currentTimeMillis();
+	}
+
+	private void execute(List<Action> batch) {
+		// closing sessions does not touch the repository, so it is done first for the whole batch
+		int closed = 0;
+		for (Action action : batch) {
+			for (XMPPResourceConnection session : action.sessions) {
+				try {
+					session.putSessionData("error-key", "policy-violation");
+					session.logout();
+					closed++;
+				} catch (Exception ex) {
+					log.log(Level.FINE, "Could not logout user " + action.jid, ex);
+				}
+			}
+			action.sessions.clear();
+		}
+		int disabled = 0;
+		int failed = 0;
+		List<Action> toRetry = null;
+		for (Action action : batch) {
+			if (action.repository == null) {
+				continue;
+			}
+			try {
+				action.repository.setAccountStatus(action.jid, AuthRepository.AccountStatus.spam);
+				disabled++;
+			} catch (TigaseDBException ex) {
+				if (action.attempts < maxRetries) {
+					log.log(Level.FINE, "Failed to disable spammer account " + action.jid + ", will retry", ex);
+					action.nextAttempt = System.currentTimeMillis() + (retryDelay << action.attempts);
+					action.attempts++;
+					if (toRetry == null) {
+						toRetry = new ArrayList<>();
+					}
+					toRetry.add(action);
+				} else {
+					log.log(Level.WARNING,
+							"Failed to disable spammer account " + action.jid + " due to repository exception", ex);
+					failed++;
+				}
+			}
+		}
+		synchronized (this) {
+			closedSessions += closed;
+			disabledAccounts += disabled;
+			failedAccounts += failed;
+			if (toRetry != null) {
+				if (stopped) {
+					failedAccounts += toRetry.size();
+				} else {
+					retries.addAll(toRetry);
+				}
+			}
+		}
+	}
+
+	private static class Action {
+
+		private final BareJID jid;
+		private final Set<XMPPResourceConnection> sessions = Collections.newSetFromMap(new IdentityHashMap<>());
+		private int attempts = 0;
+		private long nextAttempt;
+		private AuthRepository repository;
+
+		Action(BareJID jid) {
+			this.jid = jid;
+		}
+	}
+}
@@ -17,25 +17,32 @@
  */
 package tigase.spam.filters;
 
-import tigase.db.AuthRepository;
-import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.config.ConfigurationChangedAware;
 import tigase.server.Packet;
+import tigase.spam.PacketContext;
 import tigase.spam.ResultsAwareSpamFilter;
 import tigase.spam.SpamFilter;
 import tigase.spam.SpamProcessor;
+import tigase.spam.cluster.SpamDetection;
+import tigase.spam.cluster.SpamDetectionsBroadcaster;
+import tigase.spam.cluster.SpamDetectionsTransport;
+import tigase.spam.util.TimingWheel;
 import tigase.stats.StatisticsList;
 import tigase.vhosts.VHostManagerIfc;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -48,18 +55,53 @@ import static tigase.spam.filters.KnownSpammersFilter.ID;
 @Bean(name = ID, parent = SpamProcessor.class, active = true)
 public class KnownSpammersFilter
 		extends AbstractSpamFilter
-		implements ResultsAwareSpamFilter, ConfigurationChangedAware, Initializable {
+		implements ResultsAwareSpamFilter, ConfigurationChangedAware, Initializable, UnregisterAware {
 
 	protected static final String ID = "known-spammers";
+	private static final long ENFORCEMENT_RETRY_DELAY = 1000;
+	private static final long EXPIRY_TICK = 60 * 1000;
+	private static final int EXPIRY_TICKS_PER_WHEEL = 4096;
+	private static final long JOURNAL_FLUSH_INTERVAL = 5 * 1000;
+	private static final int JOURNAL_QUEUE_SIZE = 10000;
 	private static final Logger log = Logger.getLogger(KnownSpammersFilter.class.getCanonicalName());
 	@ConfigField(desc = "Ban time", alias = "ban-time")
 	private long banTime = 15;
+	@ConfigField(desc = "Max number of spammers in a broadcasted batch", alias = "broadcast-batch-size")
+	private int broadcastBatchSize = 100;
+	@ConfigField(desc = "Max delay of broadcasting detections (ms)", alias = "broadcast-max-delay")
+	private long broadcastMaxDelay = 1000;
+	private volatile SpamDetectionsBroadcaster broadcaster;
 	@ConfigField(desc = "Cache time", alias = "cache-time")
 	private long cacheTime = 7 * 24 * 60;
 	private TimerTask cleanUpTimerTask;
+	@ConfigField(desc = "Keep JIDs of remote spammers", alias = "keep-remote-jids")
+	private boolean keepRemoteJids = false;
 	private boolean disableAccount = true;
 	private double disableAccountProbability = 1.0;
-	private long disabledAccounts = 0;
+	@ConfigField(desc = "Max number of spammers processed in a single enforcement batch", alias = "enforcement-batch-size")
+	private int enforcementBatchSize = 100;
+	@ConfigField(desc = "Max number of retries of disabling an account", alias = "enforcement-max-retries")
+	private int enforcementMaxRetries = 5;
+	@ConfigField(desc = "Max number of spammers waiting for enforcement", alias = "enforcement-queue-size")
+	private int enforcementQueueSize = 10000;
+	private final EnforcementQueue enforcementQueue = new EnforcementQueue(enforcementQueueSize,
+																		   enforcementBatchSize,
+																		   enforcementMaxRetries,
+																		   ENFORCEMENT_RETRY_DELAY);
+	@ConfigField(desc = "Domain ban time", alias = "domain-ban-time")
+	private long domainBanTime = 15;
+	@ConfigField(desc = "Half-life of domain spam score", alias = "domain-score-half-life")
+	private long domainScoreHalfLife = 60;
+	@ConfigField(desc = "Spam score of a local domain at which it is blocked (0 - disabled)", alias = "domain-local-threshold")
+	private double domainLocalThreshold = 0;
+	@ConfigField(desc = "Spam score of a remote domain at which it is blocked (0 - disabled)", alias = "domain-remote-threshold")
+	private double domainRemoteThreshold = 0;
+	private final DomainReputation domainReputation = new DomainReputation(domainScoreHalfLife * 60 * 1000,
+																		   domainBanTime * 60 * 1000);
+	private final LongAdder domainBlockedPackets = new LongAdder();
+	private final TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK, EXPIRY_TICKS_PER_WHEEL,
+															System.currentTimeMillis());
+	private long expiredSpammers = 0;
 	private long localSpammers = 0;
 	@ConfigField(desc = "Print spammers", alias = "print-spammers")
 	private boolean printSpammers = false;
@@ -68,69 +110,116 @@ public class KnownSpammersFilter
 	@ConfigField(desc = "Reported spammer probability")
 	private double reportedSpammerProbability = 0.1;
 	private TimerTask printSpammersTimerTask;
+	private long remoteDetections = 0;
 	private long remoteSpammers = 0;
-	private ConcurrentHashMap<BareJID, Spammer> spammers = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Path to file with snapshot of known spammers", alias = "snapshot-file")
+	private String snapshotFile = null;
+	@ConfigField(desc = "Snapshot frequency", alias = "snapshot-frequency")
+	private long snapshotFrequency = 15;
+	private TimerTask snapshotTimerTask;
+	private final SpammersTable spammers = new SpammersTable();
+	// changes of spammers waiting to be appended to the journal by the timer
+	private final ArrayBlockingQueue<SpammersTable.Entry> journalQueue = new ArrayBlockingQueue<>(JOURNAL_QUEUE_SIZE);
+	private final LongAdder journalDropped = new LongAdder();
+	// fingerprints of spammers changed while the store is being loaded, persisted after loading
+	private Set<Long> spammersToPersist = null;
+	private volatile KnownSpammersStore store;
+	private volatile boolean storeLoaded = false;
 	private Timer timer;
+	@Inject(nullAllowed = true)
+	private SpamDetectionsTransport transport;
 	@Inject
 	private VHostManagerIfc vHostManager;
 
 	@Override
 	public boolean reportedSpammer(BareJID jid) {
-		Spammer spammer = spammers.computeIfAbsent(jid, this::createSpammer);
-		if (vHostManager.isLocalDomain(jid.getDomain())) {
-			spammer.localUser();
-		}
-		spammer.spamDetected(reportedSpammerProbability);
-		return spammer.hasProbabilityReached(disableAccountProbability);
+		boolean localDomain = vHostManager.isLocalDomain(jid.getDomain());
+		SpammersTable.Entry spammer = spammers.update(SpammersTable.fingerprint(jid), jid, 1,
+													  reportedSpammerProbability, System.currentTimeMillis(),
+													  localDomain);
+		// reports are not verified and may be repeated by a single user, so they are not added to domain score
+		scheduleExpiry(spammer, reportedSpammerProbability);
+		persist(spammer);
+		broadcast(jid, spammer, reportedSpammerProbability);
+		return hasProbabilityReached(spammer, disableAccountProbability);
 	}
 
 	@Override
 	public void identifiedSpam(Packet packet, XMPPResourceConnection session, SpamFilter filter) {
-		JID from = packet.getStanzaFrom();
-		if (from == null && session != null) {
-			from = session.getjid();
-		}
-		if (from == null) {
+		PacketContext context = PacketContext.of(packet, session);
+		BareJID spammerJid = context.getSender();
+		if (spammerJid == null) {
 			return;
 		}
-		Spammer spammer = spammers.computeIfAbsent(from.getBareJID(), spammerJid -> {
-			if (log.isLoggable(Level.FINE)) {
+		long fingerprint = context.getSenderFingerprint();
+		boolean localUser = context.isSenderLocalUser();
+		SpammersTable.Entry spammer;
+		if (filter != this) {
+			if (log.isLoggable(Level.FINE) && spammers.getLastSpamTimestamp(fingerprint) == Long.MIN_VALUE) {
 				log.log(Level.FINE, "User {0} was detected as a spammer by filter: {1}, packet: {2}",
 						new Object[]{spammerJid, filter, packet});
 			}
-			return createSpammer(spammerJid);
-		});
-		if (filter != this) {
-			spammer.spamDetected(filter);
+			spammer = spammers.update(fingerprint, spammerJid, 1, filter.getSpamProbability(),
+									  System.currentTimeMillis(), localUser);
+			scheduleExpiry(spammer, filter.getSpamProbability());
+			domainSpamDetected(spammerJid.getDomain(), vHostManager.isLocalDomain(spammerJid.getDomain()),
+							   filter.getSpamProbability());
+		} else if (spammers.getLastSpamTimestamp(fingerprint) == Long.MIN_VALUE) {
+			// packet blocked due to domain verdict, there is no need to track this user separately (entry without
+			// detection would never expire)
+			return;
+		} else {
+			spammer = spammers.update(fingerprint, spammerJid, 0, 0, Long.MIN_VALUE, localUser);
+			scheduleExpiry(spammer, 0);
 		}
-		try {
-			if (session != null && session.isAuthorized() && session.isUserId(from.getBareJID())) {
-				spammer.localUser();
+		if (filter != this || localUser) {
+			persist(spammer);
+		}
+		if (localUser) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Local user {0} was detected as a spammer by filter: {1}, packet: {2}. Closing session for this user...",
+						new Object[]{spammerJid, filter, packet});
+			}
+			enforcementQueue.closeSession(spammerJid, session);
+
+			if (hasProbabilityReached(spammer, disableAccountProbability)) {
 				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Local user {0} was detected as a spammer by filter: {1}, packet: {2}. Closing session for this user...",
-							new Object[]{from, filter, packet});
-				}
-				session.putSessionData("error-key", "policy-violation");
-				session.logout();
-
-				if (spammer.hasProbabilityReached(disableAccountProbability)) {
-					try {
-						if (log.isLoggable(Level.FINE)) {
-							log.log(Level.FINE,
-									"Disabling account {0} as it is most likely a spammer, probability > {1}, filter: {2}",
-									new Object[]{from, disableAccountProbability, filter});
-						}
-						session.getAuthRepository()
-								.setAccountStatus(from.getBareJID(), AuthRepository.AccountStatus.spam);
-						disabledAccounts++;
-					} catch (TigaseDBException ex) {
-						log.log(Level.WARNING,
-								"Failed to disable spammer account " + from + " due to repository exception", ex);
-					}
+					log.log(Level.FINE,
+							"Disabling account {0} as it is most likely a spammer, probability > {1}, filter: {2}",
+							new Object[]{spammerJid, disableAccountProbability, filter});
 				}
+				enforcementQueue.disableAccount(spammerJid, session.getAuthRepository());
 			}
-		} catch (Exception ex) {
-			log.log(Level.FINE, "Could not logout user " + from, ex);
+		}
+		if (filter != this) {
+			broadcast(spammerJid, spammer, filter.getSpamProbability());
+		}
+	}
+
+	/**
+	 * Merges spam detections made by other cluster node.
+	 */
+	public void remoteSpamDetected(SpamDetection detection) {
+		SpammersTable.Entry spammer = spammers.update(SpammersTable.fingerprint(detection.getJid()),
+													  detection.getJid(), detection.getCounter(),
+													  detection.getProbability(), detection.getTimestamp(),
+													  detection.isLocalUser());
+		scheduleExpiry(spammer, detection.getProbability());
+		domainSpamDetected(detection.getJid().getDomain(), vHostManager.isLocalDomain(detection.getJid().getDomain()),
+						   detection.getProbability());
+		remoteDetections += detection.getCounter();
+		persist(spammer);
+	}
+
+	public void setTransport(SpamDetectionsTransport transport) {
+		SpamDetectionsBroadcaster oldBroadcaster = this.broadcaster;
+		this.transport = transport;
+		this.broadcaster = transport == null
+						   ? null
+						   : new SpamDetectionsBroadcaster(transport, this::remoteSpamDetected, broadcastBatchSize,
+														   broadcastMaxDelay);
+		if (oldBroadcaster != null) {
+			oldBroadcaster.close();
 		}
 	}
 
@@ -146,6 +235,21 @@ public class KnownSpammersFilter
 
 	@Override
 	public void beanConfigurationChanged(Collection<String> collection) {
+		spammers.setKeepRemoteJids(keepRemoteJids);
+		enforcementQueue.setLimits(enforcementQueueSize, enforcementBatchSize, enforcementMaxRetries,
+								   ENFORCEMENT_RETRY_DELAY);
+		domainReputation.setHalfLife(domainScoreHalfLife * 60 * 1000);
+		domainReputation.setBanTime(domainBanTime * 60 * 1000);
+		if (collection.contains("cacheTime")) {
+			// entries are scheduled for expiry using previous cache time, so entries which already expired
+			// need to be removed now
+			expiredSpammers += spammers.removeIf(this::isExpired);
+		}
+		SpamDetectionsBroadcaster broadcaster = this.broadcaster;
+		if (broadcaster != null) {
+			broadcaster.setBatchSize(broadcastBatchSize);
+			broadcaster.setMaxDelay(broadcastMaxDelay);
+		}
 		if (cleanUpTimerTask != null) {
 			cleanUpTimerTask.cancel();
 			timer.purge();
@@ -154,6 +258,10 @@ public class KnownSpammersFilter
 			printSpammersTimerTask.cancel();
 			timer.purge();
 		}
+		if (snapshotTimerTask != null) {
+			snapshotTimerTask.cancel();
+			timer.purge();
+		}
 		if (timer != null) {
 			cleanUpTimerTask = new TimerTask() {
 				@Override
@@ -170,28 +278,110 @@ public class KnownSpammersFilter
 			};
 			timer.schedule(printSpammersTimerTask, printSpammersFrequency * 60 * 1000,
 						   printSpammersFrequency * 60 * 1000);
+			if (store != null) {
+				snapshotTimerTask = new TimerTask() {
+					@Override
+					public void run() {
+						KnownSpammersFilter.this.snapshot();
+					}
+				};
+				timer.schedule(snapshotTimerTask, snapshotFrequency * 60 * 1000, snapshotFrequency * 60 * 1000);
+			}
 		}
 	}
 
 	@Override
 	public void initialize() {
 		timer = new Timer("known-spammers", true);
+		if (snapshotFile != null) {
+			store = new KnownSpammersStore(Paths.get(snapshotFile));
+			synchronized (this) {
+				spammersToPersist = new HashSet<>();
+			}
+			Thread loader = new Thread(this::load, "known-spammers-loader");
+			loader.setDaemon(true);
+			loader.start();
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					KnownSpammersFilter.this.flush();
+				}
+			}, JOURNAL_FLUSH_INTERVAL, JOURNAL_FLUSH_INTERVAL);
+		}
 		beanConfigurationChanged(Collections.emptyList());
 	}
 
+	@Override
+	public void beforeUnregister() {
+		setTransport(null);
+		enforcementQueue.stop();
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		KnownSpammersStore store = this.store;
+		if (store != null) {
+			flush();
+			snapshot();
+			try {
+				store.close();
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not close known spammers journal", ex);
+			}
+			this.store = null;
+		}
+	}
+
 	@Override
 	public void getStatistics(String name, StatisticsList list) {
 		super.getStatistics(name, list);
 		if (list.checkLevel(Level.FINE)) {
 			list.add(name, getId() + "/Known spammers", spammers.size(), Level.FINE);
+			list.add(name, getId() + "/Journal queue size", journalQueue.size(), Level.FINE);
+			list.add(name, getId() + "/Dropped journal records", journalDropped.sum(), Level.FINE);
+			list.add(name, getId() + "/Spammers table memory usage", spammers.getMemoryUsage(), Level.FINE);
+			list.add(name, getId() + "/Expired spammers", expiredSpammers, Level.FINE);
+			long now = System.currentTimeMillis();
+			list.add(name, getId() + "/Tracked domains", domainReputation.size(), Level.FINE);
+			list.add(name, getId() + "/Blocked domains", domainReputation.getBlockedCount(now), Level.FINE);
+			list.add(name, getId() + "/Packets blocked by domain", domainBlockedPackets.sum(), Level.FINE);
 			list.add(name, getId() + "/Known local spammers", localSpammers, Level.FINE);
 			list.add(name, getId() + "/Known remote spammers", remoteSpammers, Level.FINE);
-			list.add(name, getId() + "/Disabled accounts", disabledAccounts, Level.FINE);
+			list.add(name, getId() + "/Disabled accounts", enforcementQueue.getDisabledAccounts(), Level.FINE);
+			list.add(name, getId() + "/Failed to disable accounts", enforcementQueue.getFailedAccounts(),
+					 Level.FINE);
+			list.add(name, getId() + "/Closed sessions", enforcementQueue.getClosedSessions(), Level.FINE);
+			list.add(name, getId() + "/Pending enforcements", enforcementQueue.size(), Level.FINE);
+			list.add(name, getId() + "/Enforcements run inline", enforcementQueue.getCallerRuns(), Level.FINE);
+			SpamDetectionsBroadcaster broadcaster = this.broadcaster;
+			if (broadcaster != null) {
+				list.add(name, getId() + "/Broadcasted batches", broadcaster.getSentBatches(), Level.FINE);
+				list.add(name, getId() + "/Broadcasted detections", broadcaster.getSentDetections(), Level.FINE);
+				list.add(name, getId() + "/Received detections", broadcaster.getReceived(), Level.FINE);
+				list.add(name, getId() + "/Merged remote detections", remoteDetections, Level.FINE);
+			}
 		}
 	}
 
+	/**
+	 * Returns snapshot of known spammers with known JIDs (JIDs of remote spammers are kept only if
+	 * <code>keep-remote-jids</code> is enabled).
+	 */
 	public Collection<Spammer> getSpammers() {
-		return Collections.unmodifiableCollection(spammers.values());
+		List<Spammer> result = new ArrayList<>();
+		spammers.forEach(entry -> {
+			if (entry.getJid() != null) {
+				result.add(new Spammer(entry));
+			}
+		});
+		return Collections.unmodifiableCollection(result);
+	}
+
+	/**
+	 * Returns number of all known spammers, including those without known JIDs.
+	 */
+	public int getSpammersCount() {
+		return spammers.size();
 	}
 
 	@Override
@@ -200,41 +390,216 @@ public class KnownSpammersFilter
 		if (from == null) {
 			return true;
 		}
-		Spammer spammer = spammers.get(from.getBareJID());
-		return spammer == null || spammer.hasTimeoutPassed(banTime * 60 * 1000);
+		long now = System.currentTimeMillis();
+		if (domainReputation.isBlocked(from.getDomain(), now)) {
+			domainBlockedPackets.increment();
+			return false;
+		}
+		long fingerprint = PacketContext.of(packet, session).getSenderFingerprint();
+		long lastSpamTimestamp = spammers.getLastSpamTimestamp(fingerprint);
+		return lastSpamTimestamp == Long.MIN_VALUE || hasTimeoutPassed(lastSpamTimestamp, banTime * 60 * 1000);
+	}
+
+	private static boolean hasTimeoutPassed(long lastSpamTimestamp, long timeout) {
+		return (System.currentTimeMillis() - lastSpamTimestamp) > timeout;
 	}
 
-	private Spammer createSpammer(BareJID spammerJid) {
-		return new Spammer(spammerJid);
+	private static boolean hasProbabilityReached(SpammersTable.Entry spammer, double value) {
+		return spammer.getProbability() >= value;
+	}
+
+	private void broadcast(BareJID jid, SpammersTable.Entry spammer, double probability) {
+		SpamDetectionsBroadcaster broadcaster = this.broadcaster;
+		if (broadcaster != null) {
+			broadcaster.spamDetected(jid, probability, spammer.isLocalUser());
+		}
+	}
+
+	private void persist(SpammersTable.Entry spammer) {
+		KnownSpammersStore store = this.store;
+		if (store != null) {
+			synchronized (this) {
+				if (spammersToPersist != null) {
+					// state persisted now would not contain state being loaded, so it would replace it
+					spammersToPersist.add(spammer.getFingerprint());
+					return;
+				}
+			}
+			// journal is written by the timer, so threads processing packets do not wait for the disk, changes
+			// which do not fit in the queue are stored by the next snapshot
+			if (!journalQueue.offer(spammer)) {
+				journalDropped.increment();
+			}
+		}
+	}
+
+	private void load() {
+		KnownSpammersStore store = this.store;
+		long start = System.currentTimeMillis();
+		boolean failed = false;
+		try {
+			// records contain full state of a spammer, so the last one wins
+			SpammersTable records = new SpammersTable();
+			records.setKeepRemoteJids(true);
+			try {
+				store.load(records::put);
+			} catch (Exception ex) {
+				// records loaded before the failure are kept and stored by a new snapshot, so that journal does not
+				// grow until the next restart
+				log.log(Level.WARNING,
+						"Could not load known spammers from " + snapshotFile + ", starting with a new snapshot", ex);
+				store.discard();
+				failed = true;
+			}
+			records.forEach(record -> {
+				if (hasProbabilityReached(record, disableAccountProbability) ||
+						hasTimeoutPassed(record.getLastSpamTimestamp(), cacheTime * 60 * 1000)) {
+					return;
+				}
+				// loaded state replaces missing entry, entries created while the store was being loaded contain
+				// only detections which were not persisted yet, so they are added to the loaded state
+				SpammersTable.Entry spammer = spammers.update(record.getFingerprint(), record.getJid(),
+															  record.getCounter(), record.getProbability(),
+															  record.getLastSpamTimestamp(), record.isLocalUser());
+				scheduleExpiry(spammer, record.getProbability());
+			});
+			log.log(Level.CONFIG, "Loaded {0} known spammers in {1}ms",
+					new Object[]{records.size(), System.currentTimeMillis() - start});
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Could not load known spammers from " + snapshotFile, ex);
+			failed = true;
+		} finally {
+			storeLoaded = true;
+			Set<Long> fingerprints;
+			synchronized (this) {
+				fingerprints = spammersToPersist;
+				spammersToPersist = null;
+			}
+			for (long fingerprint : fingerprints) {
+				SpammersTable.Entry spammer = spammers.get(fingerprint);
+				if (spammer != null) {
+					persist(spammer);
+				}
+			}
+		}
+		if (failed) {
+			scheduleSnapshot();
+		}
+	}
+
+	private void scheduleSnapshot() {
+		Timer timer = this.timer;
+		if (timer != null) {
+			// snapshots are written by the timer, so they are never written concurrently
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					KnownSpammersFilter.this.snapshot();
+				}
+			}, 0);
+		}
+	}
+
+	private void flush() {
+		KnownSpammersStore store = this.store;
+		if (store == null) {
+			return;
+		}
+		try {
+			SpammersTable.Entry spammer;
+			while ((spammer = journalQueue.poll()) != null) {
+				store.append(spammer);
+			}
+			store.flush();
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Could not flush known spammers journal", ex);
+		}
+	}
+
+	private void snapshot() {
+		KnownSpammersStore store = this.store;
+		// snapshot replaces stored data, so it cannot be written before it was loaded
+		if (store == null || !storeLoaded) {
+			return;
+		}
+		try {
+			List<SpammersTable.Entry> records = new ArrayList<>(spammers.size());
+			spammers.forEach(records::add);
+			store.snapshot(records);
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Could not write snapshot of known spammers to " + snapshotFile, ex);
+		}
 	}
 
 	private void cleanUp() {
-		if (!spammers.isEmpty()) {
-			spammers.entrySet()
-					.stream()
-					.filter(e -> e.getValue().hasProbabilityReached(disableAccountProbability))
-					.map(e -> e.getKey())
-					.forEach(this.spammers::remove);
-			spammers.entrySet()
-					.stream()
-					.filter(e -> e.getValue().hasTimeoutPassed(cacheTime * 60 * 1000))
-					.map(e -> e.getKey())
-					.forEach(this.spammers::remove);
+		long now = System.currentTimeMillis();
+		// domains with score below the lowest possible detection are no longer interesting
+		domainReputation.cleanUp(0.01, now);
+		int checked = expiryWheel.advance(now, this::expire);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Checked {0} spammers for expiration, {1} spammers left",
+					new Object[]{checked, spammers.size()});
+		}
+	}
+
+	private void domainSpamDetected(String domain, boolean localDomain, double probability) {
+		double threshold = localDomain ? domainLocalThreshold : domainRemoteThreshold;
+		if (domainReputation.spamDetected(domain, probability, threshold, System.currentTimeMillis())) {
+			log.log(Level.INFO, "Blocking {0} domain {1} for {2} minutes as its spam score reached {3}",
+					new Object[]{localDomain ? "local" : "remote", domain, domainBanTime, threshold});
+		}
+	}
+
+	private void expire(long fingerprint) {
+		SpammersTable.Entry spammer = spammers.removeIf(fingerprint, this::isExpired);
+		if (spammer != null) {
+			expiryWheel.schedule(fingerprint, getExpiryDeadline(spammer));
+		} else {
+			expiredSpammers++;
+		}
+	}
+
+	private boolean isExpired(SpammersTable.Entry spammer) {
+		// entry without any detection (ie. created concurrently with expiry of the previous one) is not banned
+		return spammer.getLastSpamTimestamp() == Long.MIN_VALUE ||
+				hasProbabilityReached(spammer, disableAccountProbability) ||
+				hasTimeoutPassed(spammer.getLastSpamTimestamp(), cacheTime * 60 * 1000);
+	}
+
+	private long getExpiryDeadline(SpammersTable.Entry spammer) {
+		if (hasProbabilityReached(spammer, disableAccountProbability) ||
+				spammer.getLastSpamTimestamp() == Long.MIN_VALUE) {
+			return 0;
+		}
+		return spammer.getLastSpamTimestamp() + cacheTime * 60 * 1000;
+	}
+
+	// entries are scheduled only when created or when they reach probability of disabled account, later changes
+	// of the last spam timestamp are handled when the scheduled deadline passes
+	private void scheduleExpiry(SpammersTable.Entry spammer, double probability) {
+		if (spammer.isCreated() || (hasProbabilityReached(spammer, disableAccountProbability) &&
+				spammer.getProbability() - probability < disableAccountProbability)) {
+			expiryWheel.schedule(spammer.getFingerprint(), getExpiryDeadline(spammer));
 		}
 	}
 
 	private void printSpammers() {
 		if (log.isLoggable(Level.FINEST) || printSpammers) {
-			Map<Boolean, List<Spammer>> grouped = spammers.values()
-					.stream()
-					.collect(Collectors.groupingBy(spammer -> spammer.isLocalUser(), Collectors.toList()));
-
-			List<Spammer> list = grouped.getOrDefault(true, Collections.emptyList());
-			localSpammers = list.size();
-			printSpammersGroup(printSpammers ? Level.INFO : Level.FINEST, true, list);
-			list = grouped.getOrDefault(false, Collections.emptyList());
-			remoteSpammers = list.size();
-			printSpammersGroup(printSpammers ? Level.INFO : Level.FINEST, false, list);
+			long[] counts = new long[2];
+			Map<Boolean, List<Spammer>> grouped = new HashMap<>();
+			spammers.forEach(entry -> {
+				counts[entry.isLocalUser() ? 0 : 1]++;
+				if (entry.getJid() != null) {
+					grouped.computeIfAbsent(entry.isLocalUser(), local -> new ArrayList<>()).add(new Spammer(entry));
+				}
+			});
+
+			localSpammers = counts[0];
+			printSpammersGroup(printSpammers ? Level.INFO : Level.FINEST, true,
+							   grouped.getOrDefault(true, Collections.emptyList()));
+			remoteSpammers = counts[1];
+			printSpammersGroup(printSpammers ? Level.INFO : Level.FINEST, false,
+							   grouped.getOrDefault(false, Collections.emptyList()));
 		}
 	}
 
@@ -255,64 +620,104 @@ public class KnownSpammersFilter
 		});
 	}
 
+	/**
+	 * Snapshot of a state of a known spammer with a known JID.
+	 */
 	public class Spammer
 			implements Comparable<Spammer> {
 
-		private final BareJID jid;
-		private long counter = 0;
-		private long lastSpamTimestamp = System.currentTimeMillis();
-		private boolean localUser;
-		private double probability = 0;
+		private SpammersTable.Entry entry;
 
+		/**
+		 * Creates snapshot of a spammer which is not known to the filter.
+		 *
+		 * @deprecated spammers are kept by the filter, use {@link #getSpammers()} to retrieve them
+		 */
+		@Deprecated
 		public Spammer(BareJID jid) {
-			this.jid = jid;
+			this(new SpammersTable.Entry(SpammersTable.fingerprint(jid), jid, 0, System.currentTimeMillis(), 0, false));
+		}
+
+		Spammer(SpammersTable.Entry entry) {
+			this.entry = entry;
 		}
 
 		public BareJID getJID() {
-			return jid;
+			return entry.getJid();
 		}
 
+		/**
+		 * Updates this snapshot only, state of the spammer kept by the filter is not changed.
+		 *
+		 * @deprecated use {@link KnownSpammersFilter#identifiedSpam(Packet, XMPPResourceConnection, SpamFilter)} instead
+		 */
+		@Deprecated
 		public void spamDetected(SpamFilter reporter) {
 			this.spamDetected(reporter.getSpamProbability());
 		}
 
+		/**
+		 * Updates this snapshot only, state of the spammer kept by the filter is not changed.
+		 *
+		 * @deprecated use {@link KnownSpammersFilter#identifiedSpam(Packet, XMPPResourceConnection, SpamFilter)} instead
+		 */
+		@Deprecated
 		public void spamDetected(double probability) {
-			lastSpamTimestamp = System.currentTimeMillis();
-			counter++;
-			this.probability += probability;
+			entry = new SpammersTable.Entry(entry.getFingerprint(), entry.getJid(), entry.getCounter() + 1,
+											System.currentTimeMillis(), entry.getProbability() + probability,
+											entry.isLocalUser());
 		}
 
 		public boolean hasTimeoutPassed(long timeout) {
-			return (System.currentTimeMillis() - lastSpamTimestamp) > timeout;
+			return KnownSpammersFilter.hasTimeoutPassed(entry.getLastSpamTimestamp(), timeout);
 		}
 
 		public boolean hasProbabilityReached(double value) {
-			return probability >= value;
+			return KnownSpammersFilter.hasProbabilityReached(entry, value);
 		}
 
+		/**
+		 * Updates this snapshot only, state of the spammer kept by the filter is not changed.
+		 *
+		 * @deprecated local users are detected by the filter
+		 */
+		@Deprecated
 		public void localUser() {
-			localUser = true;
+			entry = new SpammersTable.Entry(entry.getFingerprint(), entry.getJid(), entry.getCounter(),
+											entry.getLastSpamTimestamp(), entry.getProbability(), true);
 		}
 
 		public boolean isLocalUser() {
-			return localUser;
+			return entry.isLocalUser();
+		}
+
+		public long getCounter() {
+			return entry.getCounter();
+		}
+
+		public long getLastSpamTimestamp() {
+			return entry.getLastSpamTimestamp();
+		}
+
+		public double getProbability() {
+			return entry.getProbability();
 		}
 
 		@Override
 		public int compareTo(Spammer o) {
-			return jid.compareTo(o.jid);
+			return getJID().compareTo(o.getJID());
 		}
 
 		@Override
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
-			sb.append(jid.toString())
+			sb.append(getJID().toString())
 					.append("[last_at: ")
-					.append(lastSpamTimestamp)
+					.append(getLastSpamTimestamp())
 					.append(", count: ")
-					.append(counter)
+					.append(getCounter())
 					.append(", probability: ")
-					.append(probability)
+					.append(getProbability())
 					.append(", banned: ")
 					.append(!hasTimeoutPassed(banTime * 60 * 1000))
 					.append("]");
@@ -0,0 +1,276 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Persistent storage of known spammers consisting of a compact binary snapshot and of an append-only journal of
+ * changes made after the snapshot was written.
+ * <br>
+ * Every journal record contains full state of a spammer, so records are idempotent and replaying journal over
+ * a newer snapshot is safe. Files are read using memory-mapped buffers and truncated or damaged records at the end of
+ * the journal are ignored.
+ * <br>
+ * Records are identified by fingerprints of JIDs and JIDs are stored only if they were kept in
+ * {@link SpammersTable}.
+ * <br>
+ * Records appended while the store is being loaded are kept in memory and written to the journal after loading is
+ * completed, so they are never appended after a partially written record and they are not loaded back.
+ */
+public class KnownSpammersStore {
+
+	private static final int JOURNAL_MAGIC = 0x54534B4A;
+	private static final int SNAPSHOT_MAGIC = 0x54534B53;
+	private static final int VERSION = 1;
+	private static final byte FLAG_LOCAL = 0x01;
+
+	private final Path journalFile;
+	private final Path snapshotFile;
+	private DataOutputStream journal;
+	private long journalRecords = 0;
+	private long journalValidLength = -1;
+	private List<SpammersTable.Entry> pendingRecords = null;
+
+	public KnownSpammersStore(Path snapshotFile) {
+		this.snapshotFile = snapshotFile;
+		this.journalFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".journal");
+	}
+
+	/**
+	 * Loads spammers from the snapshot and from the journal. Records are passed to the consumer in order in which
+	 * they were written, so if there are many records for the same spammer, the last one is the most recent.
+	 *
+	 * @return number of loaded records
+	 */
+	public long load(Consumer<SpammersTable.Entry> consumer) throws IOException {
+		long journalLength;
+		synchronized (this) {
+			if (pendingRecords == null) {
+				pendingRecords = new ArrayList<>();
+			}
+			// journal is read only up to its length from before loading was started
+			journalLength = Files.exists(journalFile) ? Files.size(journalFile) : 0;
+		}
+		try {
+			long records = 0;
+			if (Files.exists(snapshotFile)) {
+				records += read(snapshotFile, SNAPSHOT_MAGIC, Long.MAX_VALUE, consumer);
+			}
+			// journal rotated by a snapshot which was not completed
+			Path rotatedJournal = rotatedJournalFile();
+			if (Files.exists(rotatedJournal)) {
+				records += read(rotatedJournal, JOURNAL_MAGIC, Long.MAX_VALUE, consumer);
+			}
+			if (journalLength > 0) {
+				records += read(journalFile, JOURNAL_MAGIC, journalLength, consumer);
+				synchronized (this) {
+					journalValidLength = lastValidPosition;
+				}
+			}
+			return records;
+		} finally {
+			synchronized (this) {
+				List<SpammersTable.Entry> pending = pendingRecords;
+				pendingRecords = null;
+				for (SpammersTable.Entry record : pending) {
+					append(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends record with current state of a spammer to the journal. Record is buffered and written to the disk
+	 * when buffer is full or on {@link #flush()}. If the store is being loaded, record is written after loading is
+	 * completed.
+	 */
+	public synchronized void append(SpammersTable.Entry record) throws IOException {
+		if (pendingRecords != null) {
+			pendingRecords.add(record);
+			return;
+		}
+		if (journal == null) {
+			journal = openJournal(StandardOpenOption.APPEND);
+		}
+		write(journal, record);
+		journalRecords++;
+	}
+
+	public synchronized void flush() throws IOException {
+		if (journal != null) {
+			journal.flush();
+		}
+	}
+
+	public synchronized long getJournalRecords() {
+		return journalRecords;
+	}
+
+	/**
+	 * Writes a new snapshot with passed records and starts a new journal. Passed records need to contain all records
+	 * previously loaded from this store. Changes appended to the journal while the
+	 * snapshot is written are kept in the new journal.
+	 */
+	public void snapshot(Iterable<SpammersTable.Entry> records) throws IOException {
+		Path rotatedJournal = rotatedJournalFile();
+		synchronized (this) {
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+			if (Files.exists(journalFile)) {
+				Files.move(journalFile, rotatedJournal, StandardCopyOption.REPLACE_EXISTING);
+			}
+			journal = openJournal(StandardOpenOption.TRUNCATE_EXISTING);
+			journalRecords = 0;
+			journalValidLength = -1;
+		}
+
+		Path tmpFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmpFile), 64 * 1024))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			for (SpammersTable.Entry record : records) {
+				write(out, record);
+			}
+		}
+		Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(rotatedJournal);
+	}
+
+	/**
+	 * Discards stored data which could not be loaded, so that a new snapshot may be written. Files are kept with
+	 * <code>.failed</code> suffix.
+	 */
+	public synchronized void discard() throws IOException {
+		close();
+		for (Path file : new Path[]{snapshotFile, journalFile, rotatedJournalFile()}) {
+			if (Files.exists(file)) {
+				Files.move(file, file.resolveSibling(file.getFileName() + ".failed"),
+						   StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		journalRecords = 0;
+		journalValidLength = -1;
+	}
+
+	public synchronized void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	private Path rotatedJournalFile() {
+		return journalFile.resolveSibling(journalFile.getFileName() + ".old");
+	}
+
+	private DataOutputStream openJournal(StandardOpenOption mode) throws IOException {
+		if (mode == StandardOpenOption.APPEND && journalValidLength >= 0 && Files.exists(journalFile) &&
+				Files.size(journalFile) > journalValidLength) {
+			// drop partially written record, so that new records will not be appended after it
+			try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+				channel.truncate(journalValidLength);
+			}
+		}
+		boolean exists =
+				mode == StandardOpenOption.APPEND && Files.exists(journalFile) && Files.size(journalFile) > 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)));
+		if (!exists) {
+			out.writeInt(JOURNAL_MAGIC);
+			out.writeInt(VERSION);
+		}
+		return out;
+	}
+
+	private long lastValidPosition;
+
+	private long read(Path file, int magic, long limit, Consumer<SpammersTable.Entry> consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = Math.min(limit, channel.size());
+			if (size < 8) {
+				return 0;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt() != magic) {
+				throw new IOException("Unsupported format of file " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported version " + version + " of file " + file);
+			}
+			long records = 0;
+			lastValidPosition = buffer.position();
+			byte[] jidBytes = new byte[1024];
+			while (buffer.hasRemaining()) {
+				SpammersTable.Entry record;
+				try {
+					long fingerprint = buffer.getLong();
+					int length = buffer.getShort() & 0xFFFF;
+					if (length > jidBytes.length) {
+						jidBytes = new byte[length];
+					}
+					buffer.get(jidBytes, 0, length);
+					String jid = length == 0 ? null : new String(jidBytes, 0, length, StandardCharsets.UTF_8);
+					record = new SpammersTable.Entry(fingerprint, jid == null ? null : BareJID.bareJIDInstanceNS(jid),
+													 buffer.getLong(), buffer.getLong(), buffer.getDouble(),
+													 (buffer.get() & FLAG_LOCAL) != 0);
+				} catch (BufferUnderflowException ex) {
+					// last record was not fully written
+					break;
+				}
+				consumer.accept(record);
+				records++;
+				lastValidPosition = buffer.position();
+			}
+			return records;
+		}
+	}
+
+	private static void write(DataOutputStream out, SpammersTable.Entry record) throws IOException {
+		out.writeLong(record.getFingerprint());
+		if (record.getJid() == null) {
+			out.writeShort(0);
+		} else {
+			byte[] jid = record.getJid().toString().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(jid.length);
+			out.write(jid);
+		}
+		out.writeLong(record.getCounter());
+		out.writeLong(record.getLastSpamTimestamp());
+		out.writeDouble(record.getProbability());
+		out.writeByte(record.isLocalUser() ? FLAG_LOCAL : 0);
+	}
+}
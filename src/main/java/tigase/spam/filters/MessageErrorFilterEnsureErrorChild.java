@@ -40,9 +40,14 @@ public class MessageErrorFilterEnsureErrorChild
 		return ID;
 	}
 
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type == StanzaType.error;
+	}
+
 	@Override
 	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
-		if (packet.getElemName() != Message.ELEM_NAME || packet.getType() != StanzaType.error) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
 			return true;
 		}
 
@@ -0,0 +1,391 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.ResultsAwareSpamFilter;
+import tigase.spam.SpamFilter;
+import tigase.spam.SpamProcessor;
+import tigase.spam.util.NaiveBayesModel;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter classifying bodies of messages using Naive Bayes classifier trained online.
+ * <br>
+ * Model is trained with bodies of messages detected as spam by filters checking content of messages (selected by
+ * <code>train-filters</code>) and with bodies of recent messages of senders reported as spammers (XEP-0377 reports
+ * contain only JID of a spammer, so bodies of recent messages are kept in a ring buffer). Messages dropped by other
+ * filters (ie. due to rate limits or a known spammer) are not used, as their bodies may be ordinary messages. Bodies of
+ * messages which leave the ring buffer without their sender being reported or detected are used as samples of ham
+ * (if enabled).
+ * <br>
+ * Model is trained by a separate thread with samples passed through a bounded queue, so that threads processing
+ * packets never wait for the model. Samples are dropped when the queue is full.
+ * <br>
+ * Model may be stored in a file, so that it is not lost on restart.
+ */
+@Bean(name = MessageFilterBayes.ID, parent = SpamProcessor.class, active = false)
+public class MessageFilterBayes
+		extends AbstractSpamFilter
+		implements ResultsAwareSpamFilter, Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	protected static final String ID = "message-bayes";
+
+	private static final Logger log = Logger.getLogger(MessageFilterBayes.class.getCanonicalName());
+
+	private final ThreadLocal<int[]> features = new ThreadLocal<>();
+	@ConfigField(desc = "Maximal number of tokens of a message body which are checked", alias = "max-tokens")
+	private int maxTokens = 256;
+	@ConfigField(desc = "Minimal number of trained messages containing a token to take it into account", alias = "min-token-samples")
+	private int minTokenSamples = 3;
+	@ConfigField(desc = "Minimal number of trained spam and ham messages to start classifying", alias = "min-samples")
+	private int minSamples = 100;
+	private volatile NaiveBayesModel model;
+	@ConfigField(desc = "File in which model is stored", alias = "model-file")
+	private String modelFile = null;
+	private volatile RecentMessages recent;
+	@ConfigField(desc = "Number of recent messages kept for training", alias = "recent-messages")
+	private int recentMessages = 10000;
+	@ConfigField(desc = "Frequency (in minutes) of storing model in a file", alias = "save-frequency")
+	private long saveFrequency = 15;
+	@ConfigField(desc = "Number of bits of token hash (model uses 2^bits * 8 bytes)", alias = "table-bits")
+	private int tableBits = 20;
+	@ConfigField(desc = "Probability from which message is assumed to be a spam", alias = "threshold")
+	private double threshold = 0.99;
+	private Timer timer;
+	@ConfigField(desc = "Train model with messages of senders not detected as spammers", alias = "train-ham")
+	private boolean trainHam = true;
+	@ConfigField(desc = "Filters checking content of messages which detections are used for training", alias = "train-filters")
+	private String[] trainFilters = new String[]{"message-same-long-body", "message-similar-body", "message-keywords"};
+	private volatile Set<String> trainedFilters = new HashSet<>(Arrays.asList(trainFilters));
+	private volatile BlockingQueue<Sample> trainingQueue;
+	@ConfigField(desc = "Maximal number of messages waiting for training", alias = "training-queue-size")
+	private int trainingQueueSize = 10000;
+	private final LongAdder trainingDropped = new LongAdder();
+	private Thread trainingWorker;
+
+	public MessageFilterBayes() {
+		model = new NaiveBayesModel(tableBits, maxTokens);
+		recent = new RecentMessages(recentMessages);
+		trainingQueue = new ArrayBlockingQueue<>(trainingQueueSize);
+	}
+
+	@Override
+	public synchronized void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("tableBits") || changedFields.contains("maxTokens") ||
+				changedFields.contains("modelFile")) {
+			model = loadModel();
+		}
+		if (changedFields.contains("recentMessages")) {
+			recent = new RecentMessages(recentMessages);
+		}
+		if (changedFields.contains("trainFilters")) {
+			trainedFilters = new HashSet<>(trainFilters == null ? new ArrayList<>() : Arrays.asList(trainFilters));
+		}
+		if (changedFields.contains("trainingQueueSize")) {
+			trainingQueue = new ArrayBlockingQueue<>(trainingQueueSize);
+		}
+		if (timer != null && changedFields.contains("saveFrequency")) {
+			timer.cancel();
+			timer = null;
+			initialize();
+		}
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public double getSpamProbability() {
+		return 0.4;
+	}
+
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type != StanzaType.groupchat && type != StanzaType.error;
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINE)) {
+			NaiveBayesModel model = this.model;
+			list.add(name, getId() + "/Trained spam messages", model.getSpamTexts(), Level.FINE);
+			list.add(name, getId() + "/Trained ham messages", model.getHamTexts(), Level.FINE);
+			list.add(name, getId() + "/Model memory usage", model.getMemoryUsage(), Level.FINE);
+			list.add(name, getId() + "/Training queue size", trainingQueue.size(), Level.FINE);
+			list.add(name, getId() + "/Dropped training messages", trainingDropped.sum(), Level.FINE);
+		}
+	}
+
+	@Override
+	public void identifiedSpam(Packet packet, XMPPResourceConnection session, SpamFilter filter) {
+		if (filter == this) {
+			// training with own detections would only reinforce mistakes
+			return;
+		}
+		PacketContext context = PacketContext.of(packet, session);
+		String body = context.getBody();
+		if (body != null && trainedFilters.contains(filter.getId())) {
+			train(body, true);
+		}
+		// other recent messages of a spammer should not be used as samples of ham
+		recent.remove(context.getSenderFingerprint(), null);
+	}
+
+	@Override
+	public synchronized void initialize() {
+		if (model.getSpamTexts() == 0 && model.getHamTexts() == 0) {
+			model = loadModel();
+		}
+		if (timer == null) {
+			timer = new Timer(ID + "-save", true);
+			timer.schedule(new SaveTask(), saveFrequency * 60 * 1000, saveFrequency * 60 * 1000);
+		}
+		if (trainingWorker == null) {
+			trainingWorker = new Thread(this::runTraining, ID + "-training");
+			trainingWorker.setDaemon(true);
+			trainingWorker.start();
+		}
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (trainingWorker != null) {
+			trainingWorker.interrupt();
+			try {
+				trainingWorker.join(10 * 1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			trainingWorker = null;
+		}
+		saveModel();
+	}
+
+	@Override
+	public boolean reportedSpammer(BareJID jid) {
+		recent.remove(SpammersTable.fingerprint(jid), body -> train(body, true));
+		return false;
+	}
+
+	@Override
+	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
+			return true;
+		}
+		PacketContext context = PacketContext.of(packet, session);
+		String body = context.getBody();
+		if (body == null) {
+			return true;
+		}
+		NaiveBayesModel model = this.model;
+		if (model.getSpamTexts() >= minSamples && model.getHamTexts() >= minSamples) {
+			int[] features = this.features.get();
+			if (features == null || features.length != maxTokens) {
+				features = new int[maxTokens];
+				this.features.set(features);
+			}
+			double probability = model.spamProbability(body, features, minTokenSamples);
+			if (probability >= threshold) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Message is assumed to be spam with probability {0}: {1}",
+							new Object[]{probability, body});
+				}
+				return false;
+			}
+		}
+		String evicted = recent.add(context.getSenderFingerprint(), body);
+		if (evicted != null && trainHam) {
+			train(evicted, false);
+		}
+		return true;
+	}
+
+	/**
+	 * Passes message to the training thread or drops it if the queue is full.
+	 */
+	private void train(String body, boolean spam) {
+		if (!trainingQueue.offer(new Sample(body, spam))) {
+			trainingDropped.increment();
+		}
+	}
+
+	private void runTraining() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				// queue is replaced when its size is changed, so it is checked again periodically
+				Sample sample = trainingQueue.poll(1, TimeUnit.SECONDS);
+				if (sample != null) {
+					model.train(sample.body, sample.spam);
+				}
+			} catch (InterruptedException ex) {
+				return;
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Exception during training of model", ex);
+			}
+		}
+	}
+
+	private NaiveBayesModel loadModel() {
+		if (modelFile != null && !modelFile.isEmpty()) {
+			Path file = Paths.get(modelFile);
+			if (Files.exists(file)) {
+				try {
+					NaiveBayesModel model = NaiveBayesModel.load(file, maxTokens);
+					log.log(Level.CONFIG, "Loaded model trained with {0} spam and {1} ham messages",
+							new Object[]{model.getSpamTexts(), model.getHamTexts()});
+					return model;
+				} catch (IOException ex) {
+					log.log(Level.WARNING, "Could not load model from file " + file, ex);
+				}
+			}
+		}
+		return new NaiveBayesModel(tableBits, maxTokens);
+	}
+
+	private void saveModel() {
+		if (modelFile == null || modelFile.isEmpty()) {
+			return;
+		}
+		try {
+			model.save(Paths.get(modelFile));
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Could not save model to file " + modelFile, ex);
+		}
+	}
+
+	/**
+	 * Ring buffer of recent message bodies with fingerprints of their senders. Messages are added and removed without
+	 * locking, each message is either returned as replaced or passed to the consumer of removed messages, never both.
+	 */
+	static class RecentMessages {
+
+		private final AtomicLong position = new AtomicLong();
+		private final AtomicReferenceArray<Entry> entries;
+		private final int size;
+
+		RecentMessages(int size) {
+			this.size = Math.max(1, size);
+			this.entries = new AtomicReferenceArray<>(this.size);
+		}
+
+		/**
+		 * Adds message replacing the oldest one.
+		 *
+		 * @return body of the replaced message or <code>null</code>
+		 */
+		String add(long sender, String body) {
+			int idx = (int) (position.getAndIncrement() % size);
+			Entry evicted = entries.getAndSet(idx, new Entry(sender, body));
+			return evicted == null ? null : evicted.body;
+		}
+
+		/**
+		 * Removes all messages of the sender passing them to the consumer (if not <code>null</code>).
+		 */
+		void remove(long sender, Consumer<String> consumer) {
+			if (sender == 0) {
+				return;
+			}
+			for (int i = 0; i < size; i++) {
+				Entry entry = entries.get(i);
+				if (entry != null && entry.sender == sender && entries.compareAndSet(i, entry, null)) {
+					if (consumer != null) {
+						consumer.accept(entry.body);
+					}
+				}
+			}
+		}
+
+		private static class Entry {
+
+			private final String body;
+			private final long sender;
+
+			private Entry(long sender, String body) {
+				this.sender = sender;
+				this.body = body;
+			}
+		}
+	}
+
+	/**
+	 * Message body waiting for training.
+	 */
+	private static class Sample {
+
+		private final String body;
+		private final boolean spam;
+
+		private Sample(String body, boolean spam) {
+			this.body = body;
+			this.spam = spam;
+		}
+	}
+
+	private class SaveTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				saveModel();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Exception during saving of model", ex);
+			}
+		}
+	}
+}
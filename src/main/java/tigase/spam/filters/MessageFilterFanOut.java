@@ -0,0 +1,171 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.SpamProcessor;
+import tigase.spam.util.WindowedHyperLogLog;
+import tigase.spam.util.XXHash64;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter detecting senders sending messages to many distinct recipients within a period of time, no matter of the
+ * length of message bodies. Number of distinct recipients of each sender is estimated using small
+ * <code>WindowedHyperLogLog</code> sketch, so it is possible to track all active senders.
+ */
+@Bean(name = MessageFilterFanOut.ID, parent = SpamProcessor.class, active = false)
+public class MessageFilterFanOut
+		extends AbstractSpamFilter
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	protected static final String ID = "message-fan-out";
+
+	private static final Logger log = Logger.getLogger(MessageFilterFanOut.class.getCanonicalName());
+
+	private static final int SKETCH_MEMORY_USAGE = new WindowedHyperLogLog().getMemoryUsage();
+
+	private final long hashSeed = ThreadLocalRandom.current().nextLong();
+	private final ConcurrentHashMap<BareJID, WindowedHyperLogLog> sketches = new ConcurrentHashMap<>();
+	private Timer cleanerTimer;
+	@ConfigField(desc = "Limit number of distinct recipients within the window", alias = "recipients-limit")
+	private int recipientsLimit = 50;
+	@ConfigField(desc = "Time window (in minutes) for counting distinct recipients", alias = "window")
+	private long window = 60;
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("window")) {
+			sketches.clear();
+		}
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public double getSpamProbability() {
+		return 0.4;
+	}
+
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type != StanzaType.groupchat && type != StanzaType.error;
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINE)) {
+			int size = sketches.size();
+			list.add(name, getId() + "/Tracked senders", size, Level.FINE);
+			list.add(name, getId() + "/Sketches memory usage", ((long) size) * SKETCH_MEMORY_USAGE, Level.FINE);
+		}
+	}
+
+	@Override
+	public void initialize() {
+		cleanerTimer = new Timer(ID + "-cleanup", true);
+		cleanerTimer.schedule(new CleanerTask(), 60 * 1000, 60 * 1000);
+	}
+
+	@Override
+	public void beforeUnregister() {
+		if (cleanerTimer != null) {
+			cleanerTimer.cancel();
+			cleanerTimer = null;
+		}
+	}
+
+	@Override
+	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
+			return true;
+		}
+		PacketContext context = PacketContext.of(packet, session);
+		if (context.getBody() == null) {
+			return true;
+		}
+		BareJID from = context.getSender();
+		JID to = packet.getStanzaTo();
+		if (from == null || from.getLocalpart() == null || to == null) {
+			return true;
+		}
+		BareJID recipient = to.getBareJID();
+		if (from.equals(recipient)) {
+			return true;
+		}
+		long epoch = currentEpoch();
+		WindowedHyperLogLog sketch = sketches.computeIfAbsent(from, x -> new WindowedHyperLogLog());
+		int recipients = sketch.add(XXHash64.hash(recipient.toString(), hashSeed), epoch);
+		if (recipients > recipientsLimit) {
+			if (log.isLoggable(Level.FINEST) && recipients < (recipientsLimit + 10)) {
+				log.log(Level.FINEST, "Message is assumed to be spam. {0} sent messages to {1} distinct recipients",
+						new Object[]{from, recipients});
+			}
+			return false;
+		}
+		return true;
+	}
+
+	protected void cleanUp() {
+		long epoch = currentEpoch();
+		sketches.entrySet()
+				.stream()
+				.filter(e -> e.getValue().isIdle(epoch))
+				.forEach(e -> sketches.remove(e.getKey(), e.getValue()));
+	}
+
+	// window is split into 2 slices
+	private long currentEpoch() {
+		return System.currentTimeMillis() / Math.max(1, window * 60 * 1000 / 2);
+	}
+
+	private class CleanerTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				cleanUp();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Exception during cleanup of recipients sketches", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.SpamProcessor;
+import tigase.spam.util.AhoCorasick;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter detecting messages with bodies containing any of configured phrases, ie. known spam URLs, domains or phone
+ * numbers. Patterns are literal and case-insensitive. All of them are compiled into a single
+ * <code>AhoCorasick</code> automaton, so body is scanned only once, no matter of the number of patterns.
+ * <br>
+ * Patterns may be loaded from a file (one pattern per line, lines starting with <code>#</code> are ignored), which is
+ * checked for changes periodically. New automaton replaces the old one atomically.
+ */
+@Bean(name = MessageFilterKeywords.ID, parent = SpamProcessor.class, active = false)
+public class MessageFilterKeywords
+		extends AbstractSpamFilter
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	protected static final String ID = "message-keywords";
+
+	private static final Logger log = Logger.getLogger(MessageFilterKeywords.class.getCanonicalName());
+
+	private volatile AhoCorasick automaton = AhoCorasick.EMPTY;
+	private long loadedFileModified = Long.MIN_VALUE;
+	private long loadedFileSize = -1;
+	@ConfigField(desc = "Phrases marking message as spam", alias = "patterns")
+	private String[] patterns = new String[0];
+	@ConfigField(desc = "File with phrases marking message as spam", alias = "patterns-file")
+	private String patternsFile = null;
+	@ConfigField(desc = "Frequency (in minutes) of checking file with phrases for changes", alias = "reload-frequency")
+	private long reloadFrequency = 1;
+	@ConfigField(desc = "Probability of sender being a spammer if message contains a phrase", alias = "spam-probability")
+	private double spamProbability = 0.5;
+	private Timer timer;
+
+	/**
+	 * Reads patterns from a file skipping empty lines and comments.
+	 */
+	static List<String> readPatterns(Path file) throws IOException {
+		List<String> result = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			String pattern = line.trim();
+			if (!pattern.isEmpty() && !pattern.startsWith("#")) {
+				result.add(pattern);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("patterns") || changedFields.contains("patternsFile")) {
+			reload(true);
+		}
+		if (timer != null && changedFields.contains("reloadFrequency")) {
+			timer.cancel();
+			timer = null;
+			initialize();
+		}
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public double getSpamProbability() {
+		return spamProbability;
+	}
+
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		// sender of a groupchat message is a room, so it would be blamed for messages of its occupants
+		return elemName == Message.ELEM_NAME && type != StanzaType.groupchat && type != StanzaType.error;
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINE)) {
+			AhoCorasick automaton = this.automaton;
+			list.add(name, getId() + "/Patterns", automaton.getPatternsCount(), Level.FINE);
+			list.add(name, getId() + "/Automaton states", automaton.getStatesCount(), Level.FINE);
+		}
+	}
+
+	@Override
+	public synchronized void initialize() {
+		if (timer == null) {
+			timer = new Timer(ID + "-reload", true);
+			timer.schedule(new ReloadTask(), reloadFrequency * 60 * 1000, reloadFrequency * 60 * 1000);
+		}
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	@Override
+	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
+			return true;
+		}
+		String body = PacketContext.of(packet, session).getBody();
+		if (body == null) {
+			return true;
+		}
+		AhoCorasick automaton = this.automaton;
+		int match = automaton.find(body);
+		if (match >= 0) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Message is assumed to be spam. Body contains {0}: {1}",
+						new Object[]{automaton.getPattern(match), body});
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuilds automaton. If <code>force</code> is not set, automaton is rebuilt only if content of the file with
+	 * patterns changed. If file cannot be read, previous automaton is kept.
+	 */
+	protected synchronized void reload(boolean force) {
+		boolean hasFile = patternsFile != null && !patternsFile.isEmpty();
+		if (!force && !hasFile) {
+			return;
+		}
+		List<String> patterns = new ArrayList<>();
+		if (this.patterns != null) {
+			patterns.addAll(Arrays.asList(this.patterns));
+		}
+		if (hasFile) {
+			Path file = Paths.get(patternsFile);
+			try {
+				long modified = Files.getLastModifiedTime(file).toMillis();
+				long size = Files.size(file);
+				if (!force && modified == loadedFileModified && size == loadedFileSize) {
+					return;
+				}
+				patterns.addAll(readPatterns(file));
+				loadedFileModified = modified;
+				loadedFileSize = size;
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not load patterns from file " + patternsFile, ex);
+				return;
+			}
+		}
+		AhoCorasick automaton = new AhoCorasick(patterns);
+		this.automaton = automaton;
+		log.log(Level.CONFIG, "Loaded {0} patterns", automaton.getPatternsCount());
+	}
+
+	private class ReloadTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				reload(false);
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Exception during reloading of patterns", ex);
+			}
+		}
+	}
+}
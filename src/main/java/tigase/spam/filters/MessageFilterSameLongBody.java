@@ -19,20 +19,32 @@ package tigase.spam.filters;
 
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
 import tigase.server.Message;
 import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.ResultsAwareSpamFilter;
+import tigase.spam.SpamFilter;
 import tigase.spam.SpamProcessor;
+import tigase.spam.util.CompiledElementMatcher;
+import tigase.spam.util.LongCounterTable;
+import tigase.spam.util.WindowedCountMinSketch;
 import tigase.stats.StatisticsList;
 import tigase.util.Algorithms;
-import tigase.xmpp.ElementMatcher;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
 
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,28 +53,80 @@ import java.util.logging.Logger;
  */
 @Bean(name = MessageFilterSameLongBody.ID, parent = SpamProcessor.class, active = true)
 public class MessageFilterSameLongBody
-		extends AbstractSpamFilter {
+		extends AbstractSpamFilter
+		implements ResultsAwareSpamFilter, ConfigurationChangedAware {
 
 	protected static final String ID = "message-same-long-body";
 	private static final Logger log = Logger.getLogger(MessageFilterSameLongBody.class.getCanonicalName());
 	private static final Charset CHARSET_UTF8 = Charset.forName("utf-8");
+	private static final int SKETCH_SLICES = 6;
 	private final AtomicBoolean cleanerRunning = new AtomicBoolean(false);
 	private final ConcurrentHashMap<String, Integer> counter = new ConcurrentHashMap<>();
+	private final LongCounterTable fingerprints;
+	@ConfigField(desc = "Mode of counting messages with same body", alias = "counter-mode")
+	private CounterMode counterMode = CounterMode.table;
+	@ConfigField(desc = "Algorithm used to calculate fingerprint of message body", alias = "hash-algorithm")
+	private HashAlgorithm hashAlgorithm = HashAlgorithm.xxhash64;
 	@ConfigField(desc = "Check message with body bigger that this limit", alias = "body-size")
 	private int longMessageSize = 100;
 	@ConfigField(desc = "Limit size of message counter cache", alias = "counter-size-limit")
 	private int messageCounterSizeLimit = 10000;
 	@ConfigField(desc = "Limit number of message with same body", alias = "number-limit")
 	private int messageNumberLimit = 20;
+	private volatile RecentFingerprints recent;
+	@ConfigField(desc = "Number of recent messages which may be reported", alias = "recent-messages")
+	private int recentMessages = 10000;
+	@ConfigField(desc = "Time (in minutes) for which body of reported messages is blocked", alias = "report-block-time")
+	private long reportBlockTime = 60;
+	@ConfigField(desc = "Number of users reporting body after which body of reported messages is blocked", alias = "report-limit")
+	private int reportLimit = 3;
+	private final LongAdder reportBlocked = new LongAdder();
+	private volatile boolean reportBlocks = false;
+	private volatile LongCounterTable reports;
 	@ConfigField(desc = "Skip checking OTR for spam", alias = "skip-otr-check")
 	private boolean skipOtrCheck = true;
+	private volatile WindowedCountMinSketch sketch;
+	@ConfigField(desc = "Number of rows of sketch used in sketch mode", alias = "sketch-depth")
+	private int sketchDepth = 4;
+	@ConfigField(desc = "Number of counters in a row of sketch used in sketch mode", alias = "sketch-width")
+	private int sketchWidth = 65536;
+	@ConfigField(desc = "Time window (in minutes) for counting messages in sketch mode", alias = "sketch-window")
+	private long sketchWindow = 60;
 	@ConfigField(desc = "Rules for skipping checking body for spam", alias = "skip-check-rules")
-	private ElementMatcher[] skipMatchers = new ElementMatcher[]{
-			new ElementMatcher(new String[]{Message.ELEM_NAME, "fallback"}, "urn:xmpp:fallback:0", true),
-			new ElementMatcher(new String[]{Message.ELEM_NAME, "encrypted"}, "eu.siacs.conversations.axolotl", true),
-			new ElementMatcher(new String[]{Message.ELEM_NAME, "openpgp"}, "urn:xmpp:openpgp:0", true),
-			new ElementMatcher(new String[] {Message.ELEM_NAME, "encrypted"}, "urn:xmpp:omemo:1", true)
-	};
+	private String[] skipRules = createDefaultSkipRules();
+	private volatile CompiledElementMatcher skipMatcher = new CompiledElementMatcher(skipRules);
+
+	static String[] createDefaultSkipRules() {
+		return new String[]{"/message/fallback[urn:xmpp:fallback:0]", "/message/encrypted[eu.siacs.conversations.axolotl]",
+							"/message/openpgp[urn:xmpp:openpgp:0]", "/message/encrypted[urn:xmpp:omemo:1]"};
+	}
+
+	public MessageFilterSameLongBody() {
+		fingerprints = new LongCounterTable(messageCounterSizeLimit, messageNumberLimit);
+		recent = new RecentFingerprints(recentMessages);
+		reports = new LongCounterTable(recentMessages, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		fingerprints.setLimits(messageCounterSizeLimit, messageNumberLimit);
+		if (changedFields.contains("skipRules")) {
+			skipMatcher = new CompiledElementMatcher(skipRules);
+		}
+		if (changedFields.contains("recentMessages")) {
+			recent = new RecentFingerprints(recentMessages);
+			reports = new LongCounterTable(recentMessages, Integer.MAX_VALUE);
+		}
+		if (counterMode == CounterMode.sketch) {
+			if (sketch == null || changedFields.contains("sketchDepth") || changedFields.contains("sketchWidth") ||
+					changedFields.contains("sketchWindow")) {
+				sketch = createSketch();
+			}
+			fingerprints.clear();
+		} else {
+			sketch = null;
+		}
+	}
 
 	@Override
 	public String getId() {
@@ -74,32 +138,75 @@ public class MessageFilterSameLongBody
 		return 0.4;
 	}
 
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type != StanzaType.groupchat;
+	}
+
 	@Override
 	public void getStatistics(String name, StatisticsList list) {
 		super.getStatistics(name, list);
 		if (list.checkLevel(Level.FINE)) {
-			list.add(name, getId() + "/Cache size", counter.size(), Level.FINE);
+			list.add(name, getId() + "/Cache size", counter.size() + fingerprints.size(), Level.FINE);
+			list.add(name, getId() + "/Blocked reported bodies", reportBlocked.sum(), Level.FINE);
+			WindowedCountMinSketch sketch = this.sketch;
+			if (sketch != null) {
+				list.add(name, getId() + "/Sketch memory usage", sketch.getMemoryUsage(), Level.FINE);
+			}
 		}
 	}
 
-	protected boolean shouldSkipBodyCheck(Packet packet) {
-		for (ElementMatcher matcher : skipMatchers) {
-			if (matcher.matches(packet)) {
-				return true;
+	@Override
+	public void identifiedSpam(Packet packet, XMPPResourceConnection session, SpamFilter filter) {
+		// bodies are blocked only when reported by users
+	}
+
+	@Override
+	public boolean reportedSpammer(BareJID jid) {
+		return reportedSpammer(jid, null);
+	}
+
+	/**
+	 * Counts reporters of bodies of recent messages of the reported spammer and blocks bodies reported by
+	 * <code>report-limit</code> distinct local users for <code>report-block-time</code> minutes. Reports without a
+	 * known reporter are not counted.
+	 */
+	@Override
+	public boolean reportedSpammer(BareJID jid, BareJID reporter) {
+		if (reportLimit <= 0 || reporter == null) {
+			return false;
+		}
+		long[] bodies = recent.getFingerprints(SpammersTable.fingerprint(jid));
+		long reporterFingerprint = SpammersTable.fingerprint(reporter);
+		long until = System.currentTimeMillis() + reportBlockTime * 60 * 1000;
+		for (long body : bodies) {
+			// each reporter is counted once for each body, no matter how many times and which senders it reports
+			if (reports.incrementDistinct(body, reporterFingerprint) >= reportLimit && !fingerprints.isBlocked(body)) {
+				fingerprints.block(body, until);
+				reportBlocks = true;
+				reportBlocked.increment();
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Blocking body of messages reported by {0} users, last sent by {1}",
+							new Object[]{reportLimit, jid});
+				}
 			}
 		}
-
 		return false;
 	}
 
+	protected boolean shouldSkipBodyCheck(Packet packet) {
+		return skipMatcher.matches(packet);
+	}
+
 	@Override
 	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
-		if (packet.getElemName() != Message.ELEM_NAME || packet.getType() == StanzaType.groupchat) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
 			return true;
 		}
 
 		try {
-			String body = packet.getElemCDataStaticStr(Message.MESSAGE_BODY_PATH);
+			PacketContext context = PacketContext.of(packet, session);
+			String body = context.getBody();
 			if (body == null || body.length() <= longMessageSize) {
 				return true;
 			}
@@ -114,23 +221,28 @@ public class MessageFilterSameLongBody
 				}
 			}
 
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			String hash = Algorithms.bytesToHex(md.digest(body.getBytes(CHARSET_UTF8)));
-
-			Integer count = counter.compute(hash, (k, v) -> {
-				if (v == null) {
-					return 1;
-				} else {
-					return v + 1;
-				}
-			});
+			long fingerprint = context.getBodyFingerprint();
+			int count;
+			if (counterMode == CounterMode.table && hashAlgorithm == HashAlgorithm.xxhash64) {
+				// blocks of reported bodies are kept in the same table, so this is a single lookup
+				count = fingerprints.increment(fingerprint);
+			} else if (reportBlocks && fingerprints.isBlocked(fingerprint)) {
+				count = LongCounterTable.BLOCKED;
+			} else if (counterMode == CounterMode.sketch) {
+				count = sketchFor().add(fingerprint);
+			} else {
+				count = incrementDigestCounter(body);
+			}
+			if (reportLimit > 0) {
+				recent.add(context.getSenderFingerprint(), fingerprint);
+			}
 
-			if (counter.size() > messageCounterSizeLimit) {
-				if (cleanerRunning.compareAndSet(false, true)) {
-					new CleanerTask().start();
+			if (count == LongCounterTable.BLOCKED) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Message is assumed to be spam. Body was reported as spam: {0}", body);
 				}
+				return false;
 			}
-
 			if (count > messageNumberLimit) {
 				if (log.isLoggable(Level.FINEST) && count < (messageNumberLimit + 10)) {
 					log.log(Level.FINEST, "Message is assumed to be spam. Already seen {0} message with body: {1}",
@@ -144,6 +256,122 @@ public class MessageFilterSameLongBody
 		return true;
 	}
 
+	private int incrementDigestCounter(String body) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		String hash = Algorithms.bytesToHex(md.digest(body.getBytes(CHARSET_UTF8)));
+
+		Integer count = counter.compute(hash, (k, v) -> {
+			if (v == null) {
+				return 1;
+			} else {
+				return v + 1;
+			}
+		});
+
+		if (counter.size() > messageCounterSizeLimit) {
+			if (cleanerRunning.compareAndSet(false, true)) {
+				new CleanerTask().start();
+			}
+		}
+		return count;
+	}
+
+	private WindowedCountMinSketch sketchFor() {
+		WindowedCountMinSketch sketch = this.sketch;
+		if (sketch == null) {
+			synchronized (this) {
+				if (this.sketch == null) {
+					this.sketch = createSketch();
+				}
+				sketch = this.sketch;
+			}
+		}
+		return sketch;
+	}
+
+	private WindowedCountMinSketch createSketch() {
+		return new WindowedCountMinSketch(sketchDepth, sketchWidth, SKETCH_SLICES, sketchWindow * 60 * 1000);
+	}
+
+	public enum CounterMode {
+		/**
+		 * Counters are kept in a table limited by <code>counter-size-limit</code>
+		 */
+		table,
+		/**
+		 * Counters are kept in a count-min sketch of fixed size and cover only messages sent within a time window
+		 */
+		sketch
+	}
+
+	public enum HashAlgorithm {
+		/**
+		 * SHA-256 digest of UTF-8 encoded body kept as a hex string
+		 */
+		sha256,
+		/**
+		 * 64-bit xxHash of body characters kept in a table of primitive values
+		 */
+		xxhash64
+	}
+
+	/**
+	 * Ring buffer of fingerprints of recent messages with fingerprints of their senders. Messages are added without
+	 * locking: sender of a slot is cleared before body is replaced and set after it, and reader checks sender again
+	 * after reading the body, so body is not paired with a sender of another message (unless the slot is replaced
+	 * by the whole ring of messages while it is being read).
+	 */
+	static class RecentFingerprints {
+
+		private final AtomicLongArray entries;
+		private final AtomicLong position = new AtomicLong();
+		private final int size;
+
+		RecentFingerprints(int size) {
+			this.size = Math.max(1, size);
+			this.entries = new AtomicLongArray(this.size * 2);
+		}
+
+		void add(long sender, long body) {
+			int idx = (int) (position.getAndIncrement() % size) * 2;
+			entries.set(idx, 0);
+			entries.set(idx + 1, body);
+			entries.set(idx, sender);
+		}
+
+		/**
+		 * Returns distinct fingerprints of recent messages of the sender.
+		 */
+		long[] getFingerprints(long sender) {
+			long[] result = new long[16];
+			int count = 0;
+			for (int i = 0; i < size * 2; i += 2) {
+				if (sender != 0 && entries.get(i) == sender) {
+					long body = entries.get(i + 1);
+					if (entries.get(i) != sender) {
+						// slot was replaced while reading
+						continue;
+					}
+					if (count == result.length) {
+						result = Arrays.copyOf(result, count * 2);
+					}
+					result[count++] = body;
+				}
+			}
+			if (count == 0) {
+				return new long[0];
+			}
+			Arrays.sort(result, 0, count);
+			int unique = 1;
+			for (int i = 1; i < count; i++) {
+				if (result[i] != result[unique - 1]) {
+					result[unique++] = result[i];
+				}
+			}
+			return Arrays.copyOf(result, unique);
+		}
+	}
+
 	private class CleanerTask
 			extends Thread {
 
@@ -0,0 +1,139 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.SpamProcessor;
+import tigase.spam.util.CompiledElementMatcher;
+import tigase.spam.util.MinHash;
+import tigase.spam.util.SimilarityIndex;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter detecting messages with similar (but not necessary identical) long bodies, ie. with random suffixes or
+ * with a few words replaced. Bodies are compared using MinHash signatures of word shingles indexed in
+ * <code>SimilarityIndex</code>.
+ */
+@Bean(name = MessageFilterSimilarBody.ID, parent = SpamProcessor.class, active = false)
+public class MessageFilterSimilarBody
+		extends AbstractSpamFilter
+		implements ConfigurationChangedAware {
+
+	protected static final String ID = "message-similar-body";
+	private static final Logger log = Logger.getLogger(MessageFilterSimilarBody.class.getCanonicalName());
+	@ConfigField(desc = "Maximal number of groups of similar messages kept in the index", alias = "index-size")
+	private int indexSize = 16384;
+	@ConfigField(desc = "Check message with body bigger that this limit", alias = "body-size")
+	private int longMessageSize = 100;
+	@ConfigField(desc = "Limit number of message with similar body", alias = "number-limit")
+	private int messageNumberLimit = 20;
+	private volatile SimilarityIndex index;
+	@ConfigField(desc = "Number of words in a single shingle", alias = "shingle-size")
+	private int shingleSize = 2;
+	@ConfigField(desc = "Minimal similarity of message bodies (from 0.0 to 1.0)", alias = "similarity")
+	private double similarity = 0.7;
+	@ConfigField(desc = "Rules for skipping checking body for spam", alias = "skip-check-rules")
+	private String[] skipRules = MessageFilterSameLongBody.createDefaultSkipRules();
+	private volatile CompiledElementMatcher skipMatcher = new CompiledElementMatcher(skipRules);
+	@ConfigField(desc = "Time window (in minutes) for counting similar messages", alias = "window")
+	private long window = 60;
+
+	public MessageFilterSimilarBody() {
+		index = createIndex();
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("indexSize") || changedFields.contains("similarity") ||
+				changedFields.contains("window")) {
+			index = createIndex();
+		}
+		if (changedFields.contains("skipRules")) {
+			skipMatcher = new CompiledElementMatcher(skipRules);
+		}
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public double getSpamProbability() {
+		return 0.4;
+	}
+
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type != StanzaType.groupchat;
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINEST)) {
+			list.add(name, getId() + "/Index size", index.size(System.currentTimeMillis()), Level.FINEST);
+		}
+	}
+
+	protected boolean shouldSkipBodyCheck(Packet packet) {
+		return skipMatcher.matches(packet);
+	}
+
+	@Override
+	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
+			return true;
+		}
+
+		String body = PacketContext.of(packet, session).getBody();
+		if (body == null || body.length() <= longMessageSize) {
+			return true;
+		}
+
+		if (shouldSkipBodyCheck(packet)) {
+			return true;
+		}
+
+		int[] signature = MinHash.signature(body, Math.max(1, Math.min(shingleSize, MinHash.MAX_SHINGLE_SIZE)));
+		int count = index.add(signature, System.currentTimeMillis());
+		if (count > messageNumberLimit) {
+			if (log.isLoggable(Level.FINEST) && count < (messageNumberLimit + 10)) {
+				log.log(Level.FINEST, "Message is assumed to be spam. Already seen {0} messages similar to: {1}",
+						new Object[]{count, body});
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private SimilarityIndex createIndex() {
+		return new SimilarityIndex(indexSize, similarity, window * 60 * 1000);
+	}
+}
@@ -43,9 +43,14 @@ public class MucMessageFilterEnsureToFullJid
 		return ID;
 	}
 
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Message.ELEM_NAME && type == StanzaType.groupchat;
+	}
+
 	@Override
 	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
-		if (packet.getElemName() != Message.ELEM_NAME || packet.getType() != StanzaType.groupchat) {
+		if (!appliesTo(packet.getElemName(), packet.getType())) {
 			return true;
 		}
 
@@ -21,37 +21,58 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
 import tigase.server.Packet;
+import tigase.server.Presence;
+import tigase.spam.PacketContext;
 import tigase.spam.SpamProcessor;
+import tigase.spam.util.RateLimitTable;
+import tigase.spam.util.RateLimiter;
+import tigase.spam.util.XXHash64;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.NoConnectionIdException;
-import tigase.xmpp.NotAuthorizedException;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Bean(name = PresenceSubscribeFilter.ID, parent = SpamProcessor.class, active = true)
 public class PresenceSubscribeFilter
 		extends AbstractSpamFilter
-		implements Initializable, UnregisterAware {
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
 
 	private static final Logger log = Logger.getLogger(PresenceSubscribeFilter.class.getCanonicalName());
 
 	protected static final String ID = "presence-subscribe";
 
-	private final ConcurrentHashMap<BareJID, Counter> counters = new ConcurrentHashMap<>();
+	private static final int DOMAIN_TABLE_SIZE = 10000;
+
+	private final ConcurrentHashMap<BareJID, RateLimiter> counters = new ConcurrentHashMap<>();
+	private final RateLimitTable domainCounters = new RateLimitTable(DOMAIN_TABLE_SIZE);
+	private final LongAdder domainRejected = new LongAdder();
+	private final AtomicLong globalCounter = new AtomicLong(Long.MIN_VALUE);
+	private final LongAdder globalRejected = new LongAdder();
 
 	private Timer cleanerTimer;
 
-	@ConfigField(desc = "Number of allowed subscription requests per minute", alias = "limit-per-minute")
+	@ConfigField(desc = "Number of allowed subscription requests from a single remote domain within the window",
+			alias = "domain-limit")
+	private int numberOfAllowedDomainRequests = 0;
+	@ConfigField(desc = "Number of allowed subscription requests from remote domains within the window",
+			alias = "global-limit")
+	private int numberOfAllowedGlobalRequests = 0;
+	@ConfigField(desc = "Number of allowed subscription requests within the window", alias = "limit-per-minute")
 	private int numberOfAllowedRequestsPerMinute = 5;
+	@ConfigField(desc = "Time window (in minutes) for counting subscription requests", alias = "window")
+	private long window = 1;
 
 	@Override
 	public String getId() {
@@ -63,6 +84,35 @@ public class PresenceSubscribeFilter
 		return 0.5;
 	}
 
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Presence.ELEM_NAME && type == StanzaType.subscribe;
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("numberOfAllowedRequestsPerMinute") || changedFields.contains("window")) {
+			counters.clear();
+		}
+		if (changedFields.contains("numberOfAllowedDomainRequests") || changedFields.contains("window")) {
+			domainCounters.clear();
+		}
+		if (changedFields.contains("numberOfAllowedGlobalRequests") || changedFields.contains("window")) {
+			globalCounter.set(Long.MIN_VALUE);
+		}
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINE)) {
+			list.add(name, getId() + "/Counters", counters.size(), Level.FINE);
+			list.add(name, getId() + "/Domain counters", domainCounters.size(), Level.FINE);
+			list.add(name, getId() + "/Rejected by domain limit", domainRejected.sum(), Level.FINE);
+			list.add(name, getId() + "/Rejected by global limit", globalRejected.sum(), Level.FINE);
+		}
+	}
+
 	@Override
 	public void initialize() {
 		cleanerTimer = new Timer(ID + "-cleanup");
@@ -89,9 +139,10 @@ public class PresenceSubscribeFilter
 //			}
 			if (packet.getType() == StanzaType.subscribe) {
 				// if packet was send from local domain it means that it was already verified and counted
+				PacketContext context = PacketContext.of(packet, session);
 				if (session != null && session.isAuthorized() && packet.getPacketFrom() != null &&
 						!packet.getPacketFrom().equals(session.getConnectionId()) && packet.getStanzaFrom() != null &&
-						session.isLocalDomain(packet.getStanzaFrom().getDomain(), false)) {
+						context.isSenderLocalDomain()) {
 					return true;
 				}
 
@@ -101,53 +152,70 @@ public class PresenceSubscribeFilter
 					return true;
 				}
 
-				BareJID from = null;
-				if (packet.getStanzaFrom() != null) {
-					from = packet.getStanzaFrom().getBareJID();
-				} else if (session != null) {
-					from = session.getBareJID();
-				} else {
+				BareJID from = context.getSender();
+				if (from == null) {
 					return true;
 				}
-				Counter counter = counters.computeIfAbsent(from, x -> new Counter());
-				return counter.check(numberOfAllowedRequestsPerMinute);
+				// limits of remote domains are checked first, so that flood spread over many JIDs will not allocate
+				// counters for each of them, exceeding them does not prove that this sender is a spammer
+				if (!context.isSenderLocalDomain()) {
+					long now = System.currentTimeMillis();
+					if (!checkDomainLimit(from.getDomain(), now)) {
+						domainRejected.increment();
+						context.setSenderNotBlamed();
+						return false;
+					}
+					if (!checkGlobalLimit(now)) {
+						globalRejected.increment();
+						context.setSenderNotBlamed();
+						return false;
+					}
+				}
+				RateLimiter counter = counters.computeIfAbsent(from, x -> new RateLimiter(
+						numberOfAllowedRequestsPerMinute, window * 60 * 1000));
+				return counter.check();
 			}
-		} catch (NoConnectionIdException|NotAuthorizedException ex) {
+		} catch (NoConnectionIdException ex) {
 			// ignore this exception for now
 		}
 		return true;
 	}
 
-	protected void cleanUp() {
-		counters.entrySet()
-				.stream()
-				.filter(e -> e.getValue().cleanUp())
-				.forEach(e -> counters.remove(e.getKey(), e.getValue()));
+	private boolean checkDomainLimit(String domain, long now) {
+		int limit = numberOfAllowedDomainRequests;
+		if (limit <= 0) {
+			return true;
+		}
+		long interval = (window * 60 * 1000) / limit;
+		return domainCounters.tryAcquire(XXHash64.hash(domain, 0), interval, window * 60 * 1000 - interval, now);
 	}
 
-	public static class Counter {
-
-		protected List<Long> timestamps = new LinkedList<>();
-
-		public synchronized boolean check(int limit) {
-			timestamps.add(System.currentTimeMillis());
-			cleanUp();
-			if (timestamps.size() > limit) {
-				while (timestamps.size() > limit) {
-					timestamps.remove(0);
-				}
-				return false;
-			}
+	// the same algorithm as used by RateLimitTable, but without locking as there is only a single counter
+	private boolean checkGlobalLimit(long now) {
+		int limit = numberOfAllowedGlobalRequests;
+		if (limit <= 0) {
 			return true;
 		}
-
-		public synchronized boolean cleanUp() {
-			while ((!timestamps.isEmpty()) && (System.currentTimeMillis() - timestamps.get(0)) > (60 * 1000)) {
-				timestamps.remove(0);
+		long interval = (window * 60 * 1000) / limit;
+		long tolerance = window * 60 * 1000 - interval;
+		while (true) {
+			long current = globalCounter.get();
+			long tat = Math.max(current, now);
+			if (tat - now > tolerance) {
+				return false;
+			}
+			if (globalCounter.compareAndSet(current, tat + interval)) {
+				return true;
 			}
-			return timestamps.isEmpty();
 		}
+	}
 
+	protected void cleanUp() {
+		long now = System.currentTimeMillis();
+		counters.entrySet()
+				.stream()
+				.filter(e -> e.getValue().isIdle(now))
+				.forEach(e -> counters.remove(e.getKey(), e.getValue()));
 	}
 
 	private class CleanerTask
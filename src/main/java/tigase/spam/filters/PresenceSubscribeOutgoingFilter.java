@@ -20,14 +20,13 @@ package tigase.spam.filters;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
+import tigase.server.Presence;
 import tigase.spam.SpamProcessor;
+import tigase.spam.util.RateLimiter;
 import tigase.xmpp.NoConnectionIdException;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPResourceConnection;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
  * This class just filters outgoing presence-subscribe requests. For better SPAM filtering please use
  * PresenceSubscribeFilter.
@@ -37,8 +36,10 @@ public class PresenceSubscribeOutgoingFilter extends AbstractSpamFilter {
 
 	protected static final String ID = "presence-subscribe-outgoing";
 
-	@ConfigField(desc = "Number of allowed subscription requests per minute")
+	@ConfigField(desc = "Number of allowed subscription requests within the window")
 	private int numberOfAllowedRequestsPerMinute = 5;
+	@ConfigField(desc = "Time window (in minutes) for counting subscription requests", alias = "window")
+	private long window = 1;
 
 	@Override
 	public String getId() {
@@ -50,13 +51,25 @@ public class PresenceSubscribeOutgoingFilter extends AbstractSpamFilter {
 		return 0.4;
 	}
 
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return elemName == Presence.ELEM_NAME && type == StanzaType.subscribe;
+	}
+
 	@Override
 	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
 		if (packet.getType() == StanzaType.subscribe && packet.getPacketFrom() != null && session.isAuthorized()) {
 			try {
 				if (packet.getPacketFrom().equals(session.getConnectionId())) {
-					Counter counter = (Counter) session.computeCommonSessionDataIfAbsent(ID, x -> new Counter());
-					return counter.check(numberOfAllowedRequestsPerMinute);
+					RateLimiter counter = (RateLimiter) session.computeCommonSessionDataIfAbsent(ID,
+																								 x -> createCounter());
+					if (counter.getLimit() != numberOfAllowedRequestsPerMinute ||
+							counter.getWindow() != window * 60 * 1000) {
+						// configuration was changed
+						counter = createCounter();
+						session.putCommonSessionData(ID, counter);
+					}
+					return counter.check();
 				}
 			} catch (NoConnectionIdException e) {
 				// this should not happen
@@ -65,28 +78,7 @@ public class PresenceSubscribeOutgoingFilter extends AbstractSpamFilter {
 		return true;
 	}
 
-	public static class Counter {
-
-		protected List<Long> timestamps = new LinkedList<>();
-
-		public synchronized boolean check(int limit) {
-			timestamps.add(System.currentTimeMillis());
-			cleanUp();
-			if (timestamps.size() > limit) {
-				while (timestamps.size() > limit) {
-					timestamps.remove(0);
-				}
-				return false;
-			}
-			return true;
-		}
-
-		public synchronized boolean cleanUp() {
-			while ((!timestamps.isEmpty()) && (System.currentTimeMillis() - timestamps.get(0)) > (60 * 1000)) {
-				timestamps.remove(0);
-			}
-			return timestamps.isEmpty();
-		}
-
+	private RateLimiter createCounter() {
+		return new RateLimiter(numberOfAllowedRequestsPerMinute, window * 60 * 1000);
 	}
 }
@@ -0,0 +1,374 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.spam.SpamProcessor;
+import tigase.spam.util.RateLimitTable;
+import tigase.spam.util.XXHash64;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.NoConnectionIdException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.impl.roster.RosterFactory;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Filter limiting number of stanzas selected by configured rules which may be sent within a period of time by a single
+ * sender, from a single domain or from a single session.
+ * <br>
+ * Each rule is a list of comma separated <code>key=value</code> pairs, ie.
+ * <code>element=message,type=chat,contact=false,scope=jid,limit=10,window=1</code>. Supported keys are:
+ * <ul>
+ * <li><code>element</code> - name of the stanza element (<code>*</code> for any)</li>
+ * <li><code>type</code> - type of the stanza (optional)</li>
+ * <li><code>xmlns</code> - namespace of a child element of the stanza (optional)</li>
+ * <li><code>contact</code> - <code>true</code> or <code>false</code> to select only stanzas exchanged with a contact
+ * or a non-contact of a local user (optional), contact is a roster item with a subscription approved by any side</li>
+ * <li><code>scope</code> - <code>jid</code>, <code>domain</code> or <code>session</code></li>
+ * <li><code>limit</code> - number of allowed stanzas within the window</li>
+ * <li><code>window</code> - length of the window in minutes</li>
+ * </ul>
+ * State of limits is kept in {@link RateLimitTable} of bounded size.
+ */
+@Bean(name = RateLimitFilter.ID, parent = SpamProcessor.class, active = false)
+public class RateLimitFilter
+		extends AbstractSpamFilter
+		implements ConfigurationChangedAware {
+
+	protected static final String ID = "rate-limit";
+
+	private static final Logger log = Logger.getLogger(RateLimitFilter.class.getCanonicalName());
+
+	@ConfigField(desc = "Rate limiting rules", alias = "rules")
+	private String[] rules = new String[]{"element=message,type=chat,contact=false,scope=jid,limit=10,window=1"};
+	private volatile Rule[] compiledRules;
+	private volatile RateLimitTable table;
+	@ConfigField(desc = "Maximal number of rate limits kept in memory", alias = "table-size")
+	private int tableSize = 100000;
+
+	public RateLimitFilter() {
+		compiledRules = compile(rules);
+		table = new RateLimitTable(tableSize);
+	}
+
+	/**
+	 * Parses rules skipping (and logging) invalid ones.
+	 */
+	static Rule[] compile(String[] rules) {
+		List<Rule> result = new ArrayList<>();
+		if (rules != null) {
+			for (int i = 0; i < rules.length; i++) {
+				try {
+					result.add(Rule.parse(rules[i], i));
+				} catch (IllegalArgumentException ex) {
+					log.log(Level.WARNING, "Invalid rate limiting rule: " + rules[i] + ", " + ex.getMessage());
+				}
+			}
+		}
+		return result.toArray(new Rule[result.size()]);
+	}
+
+	@Override
+	public void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("rules")) {
+			compiledRules = compile(rules);
+		}
+		if (changedFields.contains("tableSize")) {
+			table = new RateLimitTable(tableSize);
+		}
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public double getSpamProbability() {
+		return 0.3;
+	}
+
+	/**
+	 * Rules may be changed at runtime, while chains of filters for each kind of stanzas are built only when filters
+	 * are reloaded, so filter applies to all stanzas and rules are selected when a packet is filtered.
+	 */
+	@Override
+	public boolean appliesTo(String elemName, StanzaType type) {
+		return true;
+	}
+
+	@Override
+	public void getStatistics(String name, StatisticsList list) {
+		super.getStatistics(name, list);
+		if (list.checkLevel(Level.FINE)) {
+			RateLimitTable table = this.table;
+			list.add(name, getId() + "/Table size", table.size(), Level.FINE);
+			list.add(name, getId() + "/Evicted limits", table.getEvictions(), Level.FINE);
+			list.add(name, getId() + "/Table memory usage", table.getMemoryUsage(), Level.FINE);
+		}
+	}
+
+	@Override
+	protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+		Rule[] rules = this.compiledRules;
+		RateLimitTable table = this.table;
+		long now = System.currentTimeMillis();
+		Boolean contact = null;
+		boolean contactChecked = false;
+		for (Rule rule : rules) {
+			if (!rule.matches(packet)) {
+				continue;
+			}
+			if (rule.contact != null) {
+				if (!contactChecked) {
+					contact = isContact(packet, session);
+					contactChecked = true;
+				}
+				if (!rule.contact.equals(contact)) {
+					continue;
+				}
+			}
+			if (rule.limit <= 0) {
+				return reject(rule, packet, session);
+			}
+			long key = key(rule.scope, packet, session);
+			if (key == 0) {
+				continue;
+			}
+			if (!table.tryAcquire(XXHash64.mix(key ^ rule.salt), rule.interval, rule.tolerance, now)) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Packet {0} exceeded rate limit {1}", new Object[]{packet, rule});
+				}
+				return reject(rule, packet, session);
+			}
+		}
+		return true;
+	}
+
+	private static boolean reject(Rule rule, Packet packet, XMPPResourceConnection session) {
+		if (rule.scope.isAggregate()) {
+			// limit is shared by many senders, so sender of this packet is not a spammer
+			PacketContext.of(packet, session).setSenderNotBlamed();
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if stanza is exchanged between a local user owning the session and its contact.
+	 *
+	 * @return <code>null</code> if it is not possible to check it
+	 */
+	private static Boolean isContact(Packet packet, XMPPResourceConnection session) {
+		if (session == null || !session.isAuthorized()) {
+			return null;
+		}
+		try {
+			JID peer;
+			if (packet.getPacketFrom() != null && packet.getPacketFrom().equals(session.getConnectionId())) {
+				peer = packet.getStanzaTo();
+			} else if (packet.getStanzaTo() != null && session.isUserId(packet.getStanzaTo().getBareJID())) {
+				peer = packet.getStanzaFrom();
+			} else {
+				return null;
+			}
+			if (peer == null || peer.getLocalpart() == null) {
+				return null;
+			}
+			// roster item with pending subscription is created by any subscription request, so it does not make
+			// a sender a contact
+			RosterAbstract roster = RosterFactory.getRosterImplementation(true);
+			return roster.isSubscribedFrom(session, peer) || roster.isSubscribedTo(session, peer);
+		} catch (NoConnectionIdException | NotAuthorizedException | TigaseDBException ex) {
+			log.log(Level.FINEST, "Could not check if " + packet + " is exchanged with a contact", ex);
+			return null;
+		}
+	}
+
+	private static long key(Scope scope, Packet packet, XMPPResourceConnection session) {
+		switch (scope) {
+			case jid:
+				return PacketContext.of(packet, session).getSenderFingerprint();
+			case domain:
+				BareJID sender = PacketContext.of(packet, session).getSender();
+				return sender == null ? 0 : XXHash64.hash(sender.getDomain(), 0);
+			case session:
+				try {
+					if (session != null && packet.getPacketFrom() != null &&
+							packet.getPacketFrom().equals(session.getConnectionId())) {
+						return XXHash64.hash(packet.getPacketFrom().toString(), 0);
+					}
+				} catch (NoConnectionIdException ex) {
+					// session is not connected, so it could not send this packet
+				}
+				return 0;
+			default:
+				return 0;
+		}
+	}
+
+	public enum Scope {
+		/**
+		 * Limit is applied to stanzas sent by a single bare JID
+		 */
+		jid(false),
+		/**
+		 * Limit is applied to stanzas sent from a single domain
+		 */
+		domain(true),
+		/**
+		 * Limit is applied to stanzas sent by a single local session
+		 */
+		session(false);
+
+		private final boolean aggregate;
+
+		Scope(boolean aggregate) {
+			this.aggregate = aggregate;
+		}
+
+		/**
+		 * Checks if limit is shared by many senders, so exceeding it does not make the sender a spammer.
+		 */
+		public boolean isAggregate() {
+			return aggregate;
+		}
+	}
+
+	/**
+	 * Rule selecting stanzas and defining the limit applied to them.
+	 */
+	public static class Rule {
+
+		private final Boolean contact;
+		private final String elemName;
+		private final long interval;
+		private final int limit;
+		private final long salt;
+		private final Scope scope;
+		private final long tolerance;
+		private final StanzaType type;
+		private final long window;
+		private final String xmlns;
+
+		public static Rule parse(String value, int index) {
+			String elemName = null;
+			StanzaType type = null;
+			String xmlns = null;
+			Boolean contact = null;
+			Scope scope = null;
+			int limit = -1;
+			long window = -1;
+			for (String part : value.split(",")) {
+				int idx = part.indexOf('=');
+				if (idx < 0) {
+					throw new IllegalArgumentException("missing value of '" + part.trim() + "'");
+				}
+				String key = part.substring(0, idx).trim();
+				String val = part.substring(idx + 1).trim();
+				switch (key) {
+					case "element":
+						elemName = "*".equals(val) ? null : val.intern();
+						break;
+					case "type":
+						type = StanzaType.valueOf(val);
+						break;
+					case "xmlns":
+						xmlns = val;
+						break;
+					case "contact":
+						contact = Boolean.valueOf(val);
+						break;
+					case "scope":
+						scope = Scope.valueOf(val);
+						break;
+					case "limit":
+						limit = Integer.parseInt(val);
+						break;
+					case "window":
+						window = Long.parseLong(val);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown key '" + key + "'");
+				}
+			}
+			if (scope == null || limit < 0 || window <= 0) {
+				throw new IllegalArgumentException("scope, limit and window are required");
+			}
+			return new Rule(elemName, type, xmlns, contact, scope, limit, window, index);
+		}
+
+		public Rule(String elemName, StanzaType type, String xmlns, Boolean contact, Scope scope, int limit,
+					long window, int index) {
+			this.elemName = elemName;
+			this.type = type;
+			this.xmlns = xmlns;
+			this.contact = contact;
+			this.scope = scope;
+			this.limit = limit;
+			this.window = window;
+			this.interval = limit == 0 ? 0 : (window * 60 * 1000) / limit;
+			this.tolerance = window * 60 * 1000 - interval;
+			this.salt = XXHash64.mix(index + 1);
+		}
+
+		public boolean appliesTo(String elemName, StanzaType type) {
+			return (this.elemName == null || this.elemName == elemName) && (this.type == null || this.type == type);
+		}
+
+		public boolean matches(Packet packet) {
+			if (!appliesTo(packet.getElemName(), packet.getType())) {
+				return false;
+			}
+			return xmlns == null || packet.getElement().findChild(el -> xmlns.equals(el.getXMLNS())) != null;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("element=").append(elemName == null ? "*" : elemName);
+			if (type != null) {
+				sb.append(",type=").append(type.name());
+			}
+			if (xmlns != null) {
+				sb.append(",xmlns=").append(xmlns);
+			}
+			if (contact != null) {
+				sb.append(",contact=").append(contact);
+			}
+			sb.append(",scope=").append(scope.name());
+			sb.append(",limit=").append(limit);
+			sb.append(",window=").append(window);
+			return sb.toString();
+		}
+	}
+}
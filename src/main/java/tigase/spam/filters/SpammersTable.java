@@ -0,0 +1,481 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import tigase.spam.util.XXHash64;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent table of known spammers indexed by 64-bit fingerprints of their JIDs.
+ * <br>
+ * State of spammers is kept in primitive arrays (struct of arrays with open addressing and linear probing), so
+ * a slot takes 29 bytes instead of a few objects per entry. Segments are kept between a quarter and a half full, so an
+ * entry takes about 60 to 120 bytes. JIDs are kept only for local users and, if enabled, for remote users as they are
+ * needed only for administrative commands (each adds a reference per slot and the JID itself).
+ * <br>
+ * Table is split into segments guarded by separate {@link StampedLock}s. Ban checks use optimistic reads, so they do
+ * not block each other.
+ */
+public class SpammersTable {
+
+	private static final byte FLAG_LOCAL = 0x01;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int SEGMENTS = 64;
+	private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(SEGMENTS);
+	// key 0 marks empty slot
+	private static final long ZERO_KEY_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+	// random seed of slots selection, so that position of an entry cannot be predicted
+	private final long indexSeed = ThreadLocalRandom.current().nextLong();
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private volatile boolean keepRemoteJids = false;
+
+	/**
+	 * Calculates fingerprint of a JID. Fingerprints are stable between restarts of the server and between cluster
+	 * nodes, so they may be persisted.
+	 */
+	public static long fingerprint(BareJID jid) {
+		return fingerprint(jid.toString());
+	}
+
+	public static long fingerprint(String jid) {
+		long fingerprint = XXHash64.hash(jid, 0);
+		return fingerprint == 0 ? ZERO_KEY_REPLACEMENT : fingerprint;
+	}
+
+	public SpammersTable() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	public void setKeepRemoteJids(boolean keepRemoteJids) {
+		this.keepRemoteJids = keepRemoteJids;
+	}
+
+	/**
+	 * Returns timestamp of the last detection of spam sent by spammer with this fingerprint or
+	 * <code>Long.MIN_VALUE</code> if it is not a known spammer.
+	 */
+	public long getLastSpamTimestamp(long fingerprint) {
+		long hash = hash(fingerprint);
+		return segmentFor(hash).getLastSpamTimestamp(fingerprint, hash);
+	}
+
+	/**
+	 * Returns state of a spammer or <code>null</code> if it is not a known spammer.
+	 */
+	public Entry get(long fingerprint) {
+		long hash = hash(fingerprint);
+		return segmentFor(hash).get(fingerprint, hash);
+	}
+
+	/**
+	 * Adds detections to the state of a spammer, creating a new entry if needed.
+	 *
+	 * @param jid JID of a spammer or <code>null</code> if not known
+	 * @param counter number of detections
+	 * @param probability sum of probabilities of detections
+	 * @param timestamp timestamp of the last detection
+	 * @param localUser true if spammer is a local user
+	 *
+	 * @return state of a spammer after update
+	 */
+	public Entry update(long fingerprint, BareJID jid, long counter, double probability, long timestamp,
+						boolean localUser) {
+		long hash = hash(fingerprint);
+		return segmentFor(hash).update(fingerprint, hash, jid, counter, probability, timestamp, localUser, false);
+	}
+
+	/**
+	 * Replaces state of a spammer.
+	 */
+	public void put(Entry entry) {
+		long hash = hash(entry.fingerprint);
+		segmentFor(hash).update(entry.fingerprint, hash, entry.jid, entry.counter, entry.probability,
+								entry.lastSpamTimestamp, entry.localUser, true);
+	}
+
+	/**
+	 * Removes entry of a spammer if it matches the predicate.
+	 *
+	 * @return state of a spammer if it was not removed or <code>null</code> if it was removed or not found
+	 */
+	public Entry removeIf(long fingerprint, Predicate<Entry> predicate) {
+		long hash = hash(fingerprint);
+		return segmentFor(hash).removeIf(fingerprint, hash, predicate);
+	}
+
+	/**
+	 * Removes all entries matching the predicate.
+	 *
+	 * @return number of removed entries
+	 */
+	public int removeIf(Predicate<Entry> predicate) {
+		int removed = 0;
+		for (Segment segment : segments) {
+			removed += segment.removeIf(predicate);
+		}
+		return removed;
+	}
+
+	/**
+	 * Passes snapshot of every entry to the consumer. Entries are passed outside of locks, so consumer may access
+	 * this table.
+	 */
+	public void forEach(Consumer<Entry> consumer) {
+		for (Segment segment : segments) {
+			for (Entry entry : segment.entries()) {
+				consumer.accept(entry);
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns estimated number of bytes used by arrays of this table (without JIDs).
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (Segment segment : segments) {
+			usage += segment.getMemoryUsage();
+		}
+		return usage;
+	}
+
+	private long hash(long fingerprint) {
+		return XXHash64.mix(fingerprint ^ indexSeed);
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments[(int) (hash >>> SEGMENT_SHIFT)];
+	}
+
+	/**
+	 * Snapshot of a state of a spammer.
+	 */
+	public static class Entry {
+
+		private final long counter;
+		private final long fingerprint;
+		private final BareJID jid;
+		private final long lastSpamTimestamp;
+		private final boolean localUser;
+		private final double probability;
+		boolean created;
+
+		public Entry(long fingerprint, BareJID jid, long counter, long lastSpamTimestamp, double probability,
+					 boolean localUser) {
+			this.fingerprint = fingerprint;
+			this.jid = jid;
+			this.counter = counter;
+			this.lastSpamTimestamp = lastSpamTimestamp;
+			this.probability = probability;
+			this.localUser = localUser;
+		}
+
+		public long getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Returns JID of a spammer or <code>null</code> if it was not kept.
+		 */
+		public BareJID getJid() {
+			return jid;
+		}
+
+		public long getCounter() {
+			return counter;
+		}
+
+		public long getLastSpamTimestamp() {
+			return lastSpamTimestamp;
+		}
+
+		public double getProbability() {
+			return probability;
+		}
+
+		public boolean isLocalUser() {
+			return localUser;
+		}
+
+		/**
+		 * Returns true if entry was created by the update which returned this snapshot.
+		 */
+		public boolean isCreated() {
+			return created;
+		}
+	}
+
+	// arrays are replaced together when segment is rebuilt, so optimistic readers see a consistent set of them
+	private static class Slots {
+
+		private final int[] counters;
+		private final byte[] flags;
+		private final long[] keys;
+		private final double[] probabilities;
+		private final long[] timestamps;
+		private BareJID[] jids;
+
+		Slots(int capacity) {
+			keys = new long[capacity];
+			counters = new int[capacity];
+			timestamps = new long[capacity];
+			probabilities = new double[capacity];
+			flags = new byte[capacity];
+		}
+
+		// returns index of the key or of an empty slot where key should be inserted
+		int find(long key, long hash) {
+			int mask = keys.length - 1;
+			int idx = (int) hash & mask;
+			long k;
+			while ((k = keys[idx]) != key && k != 0) {
+				idx = (idx + 1) & mask;
+			}
+			return idx;
+		}
+
+		Entry entry(int idx) {
+			return new Entry(keys[idx], jids == null ? null : jids[idx], counters[idx] & 0xFFFFFFFFL,
+							 timestamps[idx], probabilities[idx], (flags[idx] & FLAG_LOCAL) != 0);
+		}
+
+		void move(int from, int to) {
+			keys[to] = keys[from];
+			counters[to] = counters[from];
+			probabilities[to] = probabilities[from];
+			timestamps[to] = timestamps[from];
+			flags[to] = flags[from];
+			if (jids != null) {
+				jids[to] = jids[from];
+			}
+			clear(from);
+		}
+
+		void clear(int idx) {
+			keys[idx] = 0;
+			if (jids != null) {
+				jids[idx] = null;
+			}
+		}
+
+		void set(int idx, long key, BareJID jid, long counter, double probability, long timestamp, byte flags) {
+			keys[idx] = key;
+			counters[idx] = (int) Math.min(counter, 0xFFFFFFFFL);
+			probabilities[idx] = probability;
+			timestamps[idx] = timestamp;
+			this.flags[idx] = flags;
+			if (jid != null) {
+				if (jids == null) {
+					jids = new BareJID[keys.length];
+				}
+				jids[idx] = jid;
+			}
+		}
+	}
+
+	private class Segment {
+
+		private final StampedLock lock = new StampedLock();
+		private volatile int size = 0;
+		private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+
+		long getLastSpamTimestamp(long key, long hash) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				Slots slots = this.slots;
+				int idx = slots.find(key, hash);
+				long timestamp = slots.keys[idx] == key ? slots.timestamps[idx] : Long.MIN_VALUE;
+				if (lock.validate(stamp)) {
+					return timestamp;
+				}
+			}
+			stamp = lock.readLock();
+			try {
+				Slots slots = this.slots;
+				int idx = slots.find(key, hash);
+				return slots.keys[idx] == key ? slots.timestamps[idx] : Long.MIN_VALUE;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		Entry get(long key, long hash) {
+			long stamp = lock.readLock();
+			try {
+				Slots slots = this.slots;
+				int idx = slots.find(key, hash);
+				return slots.keys[idx] == key ? slots.entry(idx) : null;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		Entry update(long key, long hash, BareJID jid, long counter, double probability, long timestamp,
+					 boolean localUser, boolean replace) {
+			long stamp = lock.writeLock();
+			try {
+				Slots slots = this.slots;
+				int idx = slots.find(key, hash);
+				boolean created = false;
+				if (slots.keys[idx] != key) {
+					if ((size + 1) * 2 > slots.keys.length) {
+						slots = rebuild(slots.keys.length * 2, null);
+						idx = slots.find(key, hash);
+					}
+					size++;
+					replace = true;
+					created = true;
+				}
+				byte flags = localUser ? FLAG_LOCAL : 0;
+				if (!replace) {
+					counter += slots.counters[idx] & 0xFFFFFFFFL;
+					probability += slots.probabilities[idx];
+					timestamp = Math.max(timestamp, slots.timestamps[idx]);
+					flags |= slots.flags[idx];
+				}
+				boolean keepJid = jid != null && ((flags & FLAG_LOCAL) != 0 || keepRemoteJids) &&
+						(slots.jids == null || slots.jids[idx] == null);
+				slots.set(idx, key, keepJid ? jid : null, counter, probability, timestamp, flags);
+				Entry entry = slots.entry(idx);
+				entry.created = created;
+				return entry;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		Entry removeIf(long key, long hash, Predicate<Entry> predicate) {
+			long stamp = lock.writeLock();
+			try {
+				Slots slots = this.slots;
+				int idx = slots.find(key, hash);
+				if (slots.keys[idx] != key) {
+					return null;
+				}
+				Entry entry = slots.entry(idx);
+				if (!predicate.test(entry)) {
+					return entry;
+				}
+				remove(slots, idx);
+				size--;
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		int removeIf(Predicate<Entry> predicate) {
+			long stamp = lock.writeLock();
+			try {
+				int oldSize = size;
+				if (oldSize == 0) {
+					return 0;
+				}
+				int capacity = INITIAL_CAPACITY;
+				while (oldSize * 2 >= capacity) {
+					capacity <<= 1;
+				}
+				rebuild(capacity, predicate);
+				return oldSize - size;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		Entry[] entries() {
+			long stamp = lock.readLock();
+			try {
+				Slots slots = this.slots;
+				Entry[] entries = new Entry[size];
+				int i = 0;
+				for (int idx = 0; idx < slots.keys.length; idx++) {
+					if (slots.keys[idx] != 0) {
+						entries[i++] = slots.entry(idx);
+					}
+				}
+				return entries;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		long getMemoryUsage() {
+			Slots slots = this.slots;
+			int capacity = slots.keys.length;
+			return capacity * (8L + 4 + 8 + 8 + 1) + (slots.jids == null ? 0 : capacity * 4L);
+		}
+
+		// removes entry by shifting following entries of the same cluster back, so no tombstones are needed,
+		// must be called with write lock held
+		private void remove(Slots slots, int idx) {
+			int mask = slots.keys.length - 1;
+			slots.clear(idx);
+			int j = idx;
+			while (true) {
+				j = (j + 1) & mask;
+				long key = slots.keys[j];
+				if (key == 0) {
+					return;
+				}
+				int home = (int) hash(key) & mask;
+				// entry can be moved to the free slot if its home slot is not between free slot and its position
+				boolean between = idx <= j ? (idx < home && home <= j) : (idx < home || home <= j);
+				if (!between) {
+					slots.move(j, idx);
+					idx = j;
+				}
+			}
+		}
+
+		// must be called with write lock held
+		private Slots rebuild(int capacity, Predicate<Entry> removeIf) {
+			Slots oldSlots = this.slots;
+			Slots newSlots = new Slots(capacity);
+			int newSize = 0;
+			for (int i = 0; i < oldSlots.keys.length; i++) {
+				long key = oldSlots.keys[i];
+				if (key == 0 || (removeIf != null && removeIf.test(oldSlots.entry(i)))) {
+					continue;
+				}
+				int idx = newSlots.find(key, hash(key));
+				newSlots.set(idx, key, oldSlots.jids == null ? null : oldSlots.jids[i], oldSlots.counters[i] & 0xFFFFFFFFL,
+							 oldSlots.probabilities[i], oldSlots.timestamps[i], oldSlots.flags[i]);
+				newSize++;
+			}
+			this.slots = newSlots;
+			this.size = newSize;
+			return newSlots;
+		}
+	}
+}
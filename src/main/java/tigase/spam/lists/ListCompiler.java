@@ -0,0 +1,188 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.lists;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Utility converting text lists (one JID or domain per line, lines starting with <code>#</code> are ignored) into
+ * binary files used by {@link MappedHashList}.
+ * <br>
+ * Output is written to a temporary file which then replaces the destination file atomically, so it is safe to compile
+ * a list to a file which is in use by a running server.
+ * <br>
+ * Usage: <code>java -cp ... tigase.spam.lists.ListCompiler input.txt output.bin</code>
+ */
+public class ListCompiler {
+
+	private final long seed;
+	private long[] table = new long[16];
+	private int entries = 0;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: ListCompiler <input text file> <output binary file>");
+			System.exit(1);
+		}
+		int entries = compile(Paths.get(args[0]), Paths.get(args[1]));
+		System.out.println("Compiled " + entries + " entries into " + args[1]);
+	}
+
+	/**
+	 * Compiles text file into binary file.
+	 *
+	 * @return number of unique entries in the compiled list
+	 */
+	public static int compile(Path input, Path output) throws IOException {
+		ListCompiler compiler = new ListCompiler();
+		try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				compiler.add(line);
+			}
+		}
+		compiler.write(output);
+		return compiler.size();
+	}
+
+	/**
+	 * Compiles entries into binary file.
+	 *
+	 * @return number of unique entries in the compiled list
+	 */
+	public static int compile(Collection<String> entries, Path output) throws IOException {
+		ListCompiler compiler = new ListCompiler();
+		entries.forEach(compiler::add);
+		compiler.write(output);
+		return compiler.size();
+	}
+
+	public ListCompiler() {
+		this(ThreadLocalRandom.current().nextLong());
+	}
+
+	ListCompiler(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Adds entry to the list. Empty entries and comments are ignored.
+	 */
+	public void add(String line) {
+		String entry = MappedHashList.normalize(line);
+		if (entry.isEmpty() || entry.startsWith("#")) {
+			return;
+		}
+		if ((entries + 1) * 2 > table.length) {
+			if (table.length >= MappedHashList.MAX_SLOTS) {
+				throw new IllegalStateException("Too many entries");
+			}
+			long[] old = table;
+			table = new long[old.length * 2];
+			for (long fingerprint : old) {
+				if (fingerprint != 0) {
+					insert(fingerprint);
+				}
+			}
+		}
+		if (insert(MappedHashList.fingerprint(entry, seed))) {
+			entries++;
+		}
+	}
+
+	public int size() {
+		return entries;
+	}
+
+	/**
+	 * Writes compiled list to the file replacing it atomically.
+	 */
+	public void write(Path output) throws IOException {
+		Path dir = output.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, output.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+														StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer header = ByteBuffer.allocate(MappedHashList.HEADER_SIZE);
+				header.putInt(MappedHashList.MAGIC);
+				header.putInt(MappedHashList.VERSION);
+				header.putLong(seed);
+				header.putInt(table.length);
+				header.putInt(entries);
+				header.putLong(0);
+				header.flip();
+				writeFully(channel, header);
+
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				for (long fingerprint : table) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						writeFully(channel, buffer);
+						buffer.clear();
+					}
+					buffer.putLong(fingerprint);
+				}
+				buffer.flip();
+				writeFully(channel, buffer);
+				channel.force(true);
+			}
+			try {
+				Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ListCompiler[entries=" + entries + ", slots=" + table.length + "]";
+	}
+
+	private boolean insert(long fingerprint) {
+		int mask = table.length - 1;
+		int idx = MappedHashList.slot(fingerprint, mask);
+		while (table[idx] != 0) {
+			if (table[idx] == fingerprint) {
+				return false;
+			}
+			idx = (idx + 1) & mask;
+		}
+		table[idx] = fingerprint;
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
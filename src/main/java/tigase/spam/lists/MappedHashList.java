@@ -0,0 +1,153 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.lists;
+
+import tigase.spam.util.XXHash64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Read-only set of strings (ie. JIDs or domains) stored in a binary file which is mapped to memory, so that even lists
+ * with millions of entries do not use heap.
+ * <br>
+ * File contains a header followed by an open-addressing hash table of 64-bit fingerprints of entries (<code>0</code>
+ * marks an empty slot). Fingerprints are calculated using a seed stored in the header, which is random for each
+ * compiled file. At most half of the slots is used, so lookup checks only a few slots. As only fingerprints are
+ * stored, there is a negligible probability of a false positive match.
+ * <br>
+ * Files are created by {@link ListCompiler}. Mapped file must not be modified in place, new file should replace it
+ * instead.
+ */
+public class MappedHashList {
+
+	static final int HEADER_SIZE = 32;
+	static final int MAGIC = 0x5453504C;
+	static final int MAX_SLOTS = 1 << 27;
+	static final int VERSION = 1;
+
+	private final int entries;
+	private final Path file;
+	private final int mask;
+	private final ByteBuffer buffer;
+	private final long seed;
+
+	/**
+	 * Calculates fingerprint of an entry, never equal to <code>0</code>.
+	 */
+	static long fingerprint(CharSequence entry, long seed) {
+		long hash = XXHash64.hash(entry, seed);
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Converts entry to the form in which it is stored in a list.
+	 */
+	static String normalize(String entry) {
+		return entry.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Index of the first slot checked for a fingerprint.
+	 */
+	static int slot(long fingerprint, int mask) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	/**
+	 * Maps file to memory and validates its header.
+	 */
+	public static MappedHashList open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("File " + file + " is too short");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt(0) != MAGIC) {
+				throw new IOException("File " + file + " is not a compiled list");
+			}
+			if (buffer.getInt(4) != VERSION) {
+				throw new IOException("Unsupported version " + buffer.getInt(4) + " of file " + file);
+			}
+			long seed = buffer.getLong(8);
+			int slots = buffer.getInt(16);
+			int entries = buffer.getInt(20);
+			if (slots <= 0 || slots > MAX_SLOTS || Integer.bitCount(slots) != 1 || entries < 0 || entries >= slots ||
+					size != HEADER_SIZE + ((long) slots) * 8) {
+				throw new IOException("File " + file + " is corrupted");
+			}
+			// mapping stays valid after channel is closed
+			return new MappedHashList(file, buffer, seed, slots, entries);
+		}
+	}
+
+	private MappedHashList(Path file, ByteBuffer buffer, long seed, int slots, int entries) {
+		this.file = file;
+		this.buffer = buffer;
+		this.seed = seed;
+		this.mask = slots - 1;
+		this.entries = entries;
+	}
+
+	/**
+	 * Checks if entry is on the list. Entry should be already normalized (ie. be a <code>BareJID</code> or a domain).
+	 */
+	public boolean contains(CharSequence entry) {
+		if (entries == 0) {
+			return false;
+		}
+		long fingerprint = fingerprint(entry, seed);
+		int idx = slot(fingerprint, mask);
+		while (true) {
+			long value = buffer.getLong(HEADER_SIZE + (idx << 3));
+			if (value == fingerprint) {
+				return true;
+			}
+			if (value == 0) {
+				return false;
+			}
+			idx = (idx + 1) & mask;
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns size of the mapped file in bytes.
+	 */
+	public long getMappedSize() {
+		return HEADER_SIZE + ((long) mask + 1) * 8;
+	}
+
+	public int size() {
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		return "MappedHashList[file=" + file + ", entries=" + entries + "]";
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.lists;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.kernel.beans.config.ConfigurationChangedAware;
+import tigase.spam.SpamProcessor;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists of JIDs and domains of senders which packets are always allowed (trusted peers, bots) or always dropped
+ * (known spammers), checked by <code>SpamProcessor</code> before any filter is executed.
+ * <br>
+ * Lists are loaded from binary files created by {@link ListCompiler} and mapped to memory by {@link MappedHashList},
+ * so they do not use heap and checking a sender takes constant time. Files are checked for changes periodically and
+ * replaced lists are loaded without interrupting processing of packets. If sender is on both lists, packets are
+ * allowed.
+ */
+@Bean(name = SpamLists.ID, parent = SpamProcessor.class, active = true)
+public class SpamLists
+		implements Initializable, UnregisterAware, ConfigurationChangedAware {
+
+	public static final String ID = "lists";
+
+	private static final LoadedList[] NO_LISTS = new LoadedList[0];
+
+	private static final Logger log = Logger.getLogger(SpamLists.class.getCanonicalName());
+
+	@ConfigField(desc = "Files with lists of senders which packets are always allowed", alias = "allow-files")
+	private String[] allowFiles = new String[0];
+	private volatile LoadedList[] allowLists = NO_LISTS;
+	private final LongAdder allowed = new LongAdder();
+	@ConfigField(desc = "Files with lists of senders which packets are always dropped", alias = "deny-files")
+	private String[] denyFiles = new String[0];
+	private volatile LoadedList[] denyLists = NO_LISTS;
+	private final LongAdder denied = new LongAdder();
+	@ConfigField(desc = "Frequency (in minutes) of checking files with lists for changes", alias = "reload-frequency")
+	private long reloadFrequency = 1;
+	private Timer timer;
+
+	private static boolean contains(LoadedList[] lists, String jid, String domain) {
+		for (LoadedList list : lists) {
+			if (list.list.contains(jid) || (domain != null && list.list.contains(domain))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int size(LoadedList[] lists) {
+		int size = 0;
+		for (LoadedList list : lists) {
+			size += list.list.size();
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized void beanConfigurationChanged(Collection<String> changedFields) {
+		if (changedFields.contains("allowFiles") || changedFields.contains("denyFiles")) {
+			reload();
+		}
+		if (timer != null && changedFields.contains("reloadFrequency")) {
+			timer.cancel();
+			timer = null;
+			initialize();
+		}
+	}
+
+	/**
+	 * Checks if packets of the sender should be allowed or dropped without executing any filter.
+	 */
+	public Decision check(BareJID sender) {
+		LoadedList[] allowLists = this.allowLists;
+		LoadedList[] denyLists = this.denyLists;
+		if (sender == null || (allowLists.length == 0 && denyLists.length == 0)) {
+			return Decision.none;
+		}
+		String jid = sender.toString();
+		String domain = sender.getLocalpart() == null ? null : sender.getDomain();
+		if (contains(allowLists, jid, domain)) {
+			allowed.increment();
+			return Decision.allow;
+		}
+		if (contains(denyLists, jid, domain)) {
+			denied.increment();
+			return Decision.deny;
+		}
+		return Decision.none;
+	}
+
+	public void getStatistics(String name, StatisticsList list) {
+		if (list.checkLevel(Level.FINE)) {
+			list.add(name, ID + "/Allowed packets", allowed.sum(), Level.FINE);
+			list.add(name, ID + "/Denied packets", denied.sum(), Level.FINE);
+			list.add(name, ID + "/Allow list entries", size(allowLists), Level.FINE);
+			list.add(name, ID + "/Deny list entries", size(denyLists), Level.FINE);
+		}
+	}
+
+	@Override
+	public synchronized void initialize() {
+		reload();
+		if (timer == null) {
+			timer = new Timer("spam-filter-lists-reload", true);
+			timer.schedule(new ReloadTask(), reloadFrequency * 60 * 1000, reloadFrequency * 60 * 1000);
+		}
+	}
+
+	@Override
+	public synchronized void beforeUnregister() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Loads lists from files which were changed since they were loaded. If file cannot be loaded, previously loaded
+	 * version of the list is kept.
+	 */
+	protected synchronized void reload() {
+		allowLists = reload(allowFiles, allowLists);
+		denyLists = reload(denyFiles, denyLists);
+	}
+
+	private LoadedList[] reload(String[] files, LoadedList[] current) {
+		if (files == null || files.length == 0) {
+			return NO_LISTS;
+		}
+		LoadedList[] result = new LoadedList[files.length];
+		int count = 0;
+		for (String name : files) {
+			Path file = Paths.get(name);
+			LoadedList previous = null;
+			for (LoadedList list : current) {
+				if (list.list.getFile().equals(file)) {
+					previous = list;
+				}
+			}
+			try {
+				long modified = Files.getLastModifiedTime(file).toMillis();
+				long size = Files.size(file);
+				if (previous != null && previous.modified == modified && previous.size == size) {
+					result[count++] = previous;
+					continue;
+				}
+				MappedHashList list = MappedHashList.open(file);
+				result[count++] = new LoadedList(list, modified, size);
+				log.log(Level.CONFIG, "Loaded {0} entries from {1}", new Object[]{list.size(), file});
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not load list from file " + file, ex);
+				if (previous != null) {
+					result[count++] = previous;
+				}
+			}
+		}
+		if (count < result.length) {
+			LoadedList[] tmp = new LoadedList[count];
+			System.arraycopy(result, 0, tmp, 0, count);
+			result = tmp;
+		}
+		return result;
+	}
+
+	public enum Decision {
+		/**
+		 * Packet should be processed without executing filters
+		 */
+		allow,
+		/**
+		 * Packet should be dropped without executing filters
+		 */
+		deny,
+		/**
+		 * Sender is not on any list
+		 */
+		none
+	}
+
+	private static class LoadedList {
+
+		private final MappedHashList list;
+		private final long modified;
+		private final long size;
+
+		private LoadedList(MappedHashList list, long modified, long size) {
+			this.list = list;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	private class ReloadTask
+			extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				reload();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Exception during reloading of lists", ex);
+			}
+		}
+	}
+}
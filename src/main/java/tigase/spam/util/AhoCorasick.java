@@ -0,0 +1,173 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton searching text for many literal patterns at once in a single pass, no matter of the number
+ * of patterns. Matching is case-insensitive.
+ * <br>
+ * Automaton is immutable and may be safely shared between threads. Transitions are kept in primitive arrays, sorted by
+ * character within each state, so memory usage is proportional to the total length of patterns.
+ */
+public class AhoCorasick {
+
+	public static final AhoCorasick EMPTY = new AhoCorasick(Collections.emptyList());
+
+	// transitions of state s are at positions from edgeStart[s] to edgeStart[s + 1] (exclusive)
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+	private final int[] fail;
+	// index of a pattern ending in the state (or in any of its suffixes) or -1
+	private final int[] match;
+	private final String[] patterns;
+
+	/**
+	 * Creates automaton. Empty patterns are ignored.
+	 */
+	public AhoCorasick(Collection<String> patterns) {
+		List<String> list = new ArrayList<>();
+		for (String pattern : patterns) {
+			if (pattern != null && !pattern.isEmpty()) {
+				list.add(pattern);
+			}
+		}
+		this.patterns = list.toArray(new String[list.size()]);
+
+		// trie is built using maps and flattened later
+		List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		List<Integer> terminal = new ArrayList<>();
+		trie.add(new TreeMap<>());
+		terminal.add(-1);
+		for (int i = 0; i < this.patterns.length; i++) {
+			String pattern = this.patterns[i];
+			int state = 0;
+			for (int j = 0; j < pattern.length(); j++) {
+				char c = Character.toLowerCase(pattern.charAt(j));
+				Integer next = trie.get(state).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.get(state).put(c, next);
+					trie.add(new TreeMap<>());
+					terminal.add(-1);
+				}
+				state = next;
+			}
+			if (terminal.get(state) < 0) {
+				terminal.set(state, i);
+			}
+		}
+
+		int states = trie.size();
+		edgeStart = new int[states + 1];
+		edgeChars = new char[states - 1];
+		edgeTargets = new int[states - 1];
+		int edge = 0;
+		for (int s = 0; s < states; s++) {
+			edgeStart[s] = edge;
+			for (Map.Entry<Character, Integer> e : trie.get(s).entrySet()) {
+				edgeChars[edge] = e.getKey();
+				edgeTargets[edge] = e.getValue();
+				edge++;
+			}
+		}
+		edgeStart[states] = edge;
+
+		fail = new int[states];
+		match = new int[states];
+		match[0] = -1;
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+			int child = edgeTargets[e];
+			fail[child] = 0;
+			match[child] = terminal.get(child);
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			for (int e = edgeStart[state]; e < edgeStart[state + 1]; e++) {
+				int child = edgeTargets[e];
+				char c = edgeChars[e];
+				int f = fail[state];
+				int next;
+				while ((next = transition(f, c)) < 0 && f != 0) {
+					f = fail[f];
+				}
+				fail[child] = next < 0 ? 0 : next;
+				match[child] = terminal.get(child) >= 0 ? terminal.get(child) : match[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Searches text for patterns.
+	 *
+	 * @return index of the first found pattern (in order of occurrence in the text) or <code>-1</code> if text does not
+	 * contain any of patterns
+	 */
+	public int find(CharSequence text) {
+		if (patterns.length == 0) {
+			return -1;
+		}
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			int next;
+			while ((next = transition(state, c)) < 0 && state != 0) {
+				state = fail[state];
+			}
+			state = next < 0 ? 0 : next;
+			if (match[state] >= 0) {
+				return match[state];
+			}
+		}
+		return -1;
+	}
+
+	public String getPattern(int index) {
+		return patterns[index];
+	}
+
+	public int getPatternsCount() {
+		return patterns.length;
+	}
+
+	public int getStatesCount() {
+		return fail.length;
+	}
+
+	private int transition(int state, char c) {
+		int from = edgeStart[state];
+		int to = edgeStart[state + 1] - 1;
+		while (from <= to) {
+			int mid = (from + to) >>> 1;
+			char m = edgeChars[mid];
+			if (m < c) {
+				from = mid + 1;
+			} else if (m > c) {
+				to = mid - 1;
+			} else {
+				return edgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.ElementMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Matcher deciding a list of rules in a single pass over children of a stanza.
+ * <br>
+ * Rules use the same syntax as rules of <code>ElementMatcher</code>, ie. <code>/message/encrypted[urn:xmpp:omemo:1]</code>
+ * matches a message with <code>encrypted</code> child element in <code>urn:xmpp:omemo:1</code> namespace. Rule prefixed
+ * with <code>-</code> is a negative rule, while <code>*</code> may be used as a name of element matching any element.
+ * If more than one rule matches a stanza, the first one (in the configured order) decides about the result.
+ * <br>
+ * Rules matching a direct child of a stanza are indexed by name of a child element, so each child is visited once
+ * no matter how many rules are configured. Other rules (ie. with deeper paths) are compiled to
+ * <code>ElementMatcher</code> and checked one by one, only if no earlier rule matched.
+ */
+public class CompiledElementMatcher {
+
+	public static final CompiledElementMatcher EMPTY = new CompiledElementMatcher(new String[0]);
+
+	private static final int[] NO_RULES = new int[0];
+
+	private static final Logger log = Logger.getLogger(CompiledElementMatcher.class.getCanonicalName());
+
+	private final int[] anyChildRules;
+	private final Map<String, int[]> childRules;
+	private final ElementMatcher[] fallbackMatchers;
+	private final int[] fallbackRules;
+	private final String[] roots;
+	private final String[] rules;
+	private final boolean[] values;
+	private final String[] xmlnss;
+
+	/**
+	 * Compiles rules skipping (and logging) invalid ones.
+	 */
+	public CompiledElementMatcher(String[] rules) {
+		List<String> accepted = new ArrayList<>();
+		List<String> roots = new ArrayList<>();
+		List<String> xmlnss = new ArrayList<>();
+		List<Boolean> values = new ArrayList<>();
+		Map<String, List<Integer>> childRules = new HashMap<>();
+		List<Integer> anyChildRules = new ArrayList<>();
+		List<ElementMatcher> fallbackMatchers = new ArrayList<>();
+		List<Integer> fallbackRules = new ArrayList<>();
+
+		for (String rule : rules == null ? new String[0] : rules) {
+			if (rule == null || rule.trim().isEmpty()) {
+				continue;
+			}
+			String str = rule.trim();
+			boolean value = true;
+			if (str.charAt(0) == '-' || str.charAt(0) == '+') {
+				value = str.charAt(0) == '+';
+				str = str.substring(1);
+			}
+			String xmlns = null;
+			int idx = str.indexOf('[');
+			if (idx >= 0) {
+				if (!str.endsWith("]")) {
+					log.log(Level.WARNING, "Invalid element matching rule: " + rule);
+					continue;
+				}
+				xmlns = str.substring(idx + 1, str.length() - 1);
+				str = str.substring(0, idx);
+			}
+			String[] path = str.startsWith("/") ? str.substring(1).split("/") : str.split("/");
+			int ruleIdx = accepted.size();
+			if (path.length == 2 && !path[0].isEmpty() && !path[1].isEmpty() &&
+					(xmlns == null || (!xmlns.isEmpty() && xmlns.indexOf('=') < 0))) {
+				if ("*".equals(path[1])) {
+					anyChildRules.add(ruleIdx);
+				} else {
+					childRules.computeIfAbsent(path[1], name -> new ArrayList<>()).add(ruleIdx);
+				}
+				roots.add("*".equals(path[0]) ? null : path[0].intern());
+			} else {
+				ElementMatcher matcher = ElementMatcher.create(rule.trim());
+				if (matcher == null) {
+					log.log(Level.WARNING, "Invalid element matching rule: " + rule);
+					continue;
+				}
+				fallbackMatchers.add(matcher);
+				fallbackRules.add(ruleIdx);
+				roots.add(null);
+			}
+			accepted.add(rule.trim());
+			xmlnss.add(xmlns);
+			values.add(value);
+		}
+
+		this.rules = accepted.toArray(new String[accepted.size()]);
+		this.roots = roots.toArray(new String[roots.size()]);
+		this.xmlnss = xmlnss.toArray(new String[xmlnss.size()]);
+		this.values = new boolean[values.size()];
+		for (int i = 0; i < this.values.length; i++) {
+			this.values[i] = values.get(i);
+		}
+		this.childRules = new HashMap<>();
+		for (Map.Entry<String, List<Integer>> e : childRules.entrySet()) {
+			this.childRules.put(e.getKey(), toArray(e.getValue()));
+		}
+		this.anyChildRules = anyChildRules.isEmpty() ? NO_RULES : toArray(anyChildRules);
+		this.fallbackMatchers = fallbackMatchers.toArray(new ElementMatcher[fallbackMatchers.size()]);
+		this.fallbackRules = toArray(fallbackRules);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	public int getRulesCount() {
+		return rules.length;
+	}
+
+	public boolean isEmpty() {
+		return rules.length == 0;
+	}
+
+	/**
+	 * Checks if the stanza is matched by a positive rule.
+	 *
+	 * @return value of the first rule matching the stanza or <code>false</code> if no rule matches it
+	 */
+	public boolean matches(Packet packet) {
+		int rule = firstMatchingRule(packet);
+		return rule >= 0 && values[rule];
+	}
+
+	/**
+	 * Finds the first rule (in the configured order) matching the stanza.
+	 *
+	 * @return index of the rule or <code>-1</code> if no rule matches the stanza
+	 */
+	public int firstMatchingRule(Packet packet) {
+		if (rules.length == 0) {
+			return -1;
+		}
+		int best = Integer.MAX_VALUE;
+		if (rules.length > fallbackRules.length) {
+			String root = packet.getElemName();
+			List<Element> children = packet.getElement().getChildren();
+			if (children != null) {
+				// no rule may be matched earlier than the first one
+				for (int i = 0, size = children.size(); i < size && best != 0; i++) {
+					Element child = children.get(i);
+					best = match(root, child.getName(), child.getXMLNS(), best);
+				}
+			}
+		}
+		for (int i = 0; i < fallbackRules.length && fallbackRules[i] < best; i++) {
+			if (fallbackMatchers[i].matches(packet)) {
+				best = fallbackRules[i];
+				break;
+			}
+		}
+		return best == Integer.MAX_VALUE ? -1 : best;
+	}
+
+	public boolean getValue(int rule) {
+		return values[rule];
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(rules);
+	}
+
+	/**
+	 * Finds the first indexed rule matching the child element which is before <code>best</code>.
+	 *
+	 * @return index of the matching rule or <code>best</code> if there is no such rule
+	 */
+	int match(String root, String childName, String childXmlns, int best) {
+		int[] candidates = childName == null ? null : childRules.get(childName);
+		if (candidates != null) {
+			best = match(candidates, root, childXmlns, best);
+		}
+		if (anyChildRules.length > 0) {
+			best = match(anyChildRules, root, childXmlns, best);
+		}
+		return best;
+	}
+
+	private int match(int[] candidates, String root, String childXmlns, int best) {
+		for (int rule : candidates) {
+			if (rule >= best) {
+				break;
+			}
+			if ((roots[rule] == null || roots[rule].equals(root)) &&
+					(xmlnss[rule] == null || xmlnss[rule].equals(childXmlns))) {
+				return rule;
+			}
+		}
+		return best;
+	}
+}
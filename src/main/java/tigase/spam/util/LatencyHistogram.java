@@ -0,0 +1,126 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds with logarithmic buckets (every power of 2 is split into 8 linear
+ * sub-buckets, so relative error of reported values is below 12.5%).
+ * <br>
+ * Buckets are striped counters, so recording a value from many threads does not cause contention.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		int sub = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub)) << shift;
+	}
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		counts[index(nanos)].increment();
+	}
+
+	public Snapshot snapshot() {
+		long[] values = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			values[i] = counts[i].sum();
+		}
+		return new Snapshot(values);
+	}
+
+	/**
+	 * Immutable copy of counters of a histogram.
+	 */
+	public static class Snapshot {
+
+		public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS]);
+
+		private final long[] counts;
+		private final long total;
+
+		private Snapshot(long[] counts) {
+			this.counts = counts;
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			this.total = total;
+		}
+
+		/**
+		 * Returns histogram of values recorded after the passed snapshot was taken.
+		 */
+		public Snapshot minus(Snapshot previous) {
+			long[] values = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				values[i] = Math.max(0, counts[i] - previous.counts[i]);
+			}
+			return new Snapshot(values);
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns estimated value of the quantile (ie. <code>0.99</code>) or <code>0</code> if histogram is empty.
+		 */
+		public long getQuantile(double quantile) {
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += counts[i];
+				if (count >= rank) {
+					long lower = lowerBound(i);
+					long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+					return lower + (upper - lower) / 2;
+				}
+			}
+			return lowerBound(BUCKETS - 1);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+/**
+ * Concurrent table of counters indexed by 64-bit keys (ie. fingerprints), based on {@link SegmentedTable}.
+ * <br>
+ * When number of entries in a segment exceeds its share of the size limit, entries of this segment with counter below
+ * the retention threshold are removed. Other entries are never evicted.
+ * <br>
+ * Key may be blocked until a point in time, which makes its counter report {@link #BLOCKED} value until then. Blocked
+ * keys are not removed before their block expires. Block is stored in place of the counter (as a negated minute of
+ * its expiry), so it is checked by the same lookup which increments the counter.
+ */
+public class LongCounterTable
+		extends SegmentedTable<LongCounterTable.Segment> {
+
+	/**
+	 * Value of the counter of a blocked key.
+	 */
+	public static final int BLOCKED = Integer.MAX_VALUE;
+
+	private volatile int retainThreshold;
+
+	private static int currentMinute() {
+		return (int) (System.currentTimeMillis() / (60 * 1000));
+	}
+
+	/**
+	 * Creates table of counters.
+	 *
+	 * @param sizeLimit number of entries after which entries with low counters are removed
+	 * @param retainThreshold entries with counter equal or greater that this value are not removed
+	 */
+	public LongCounterTable(int sizeLimit, int retainThreshold) {
+		super(sizeLimit, 1);
+		this.retainThreshold = retainThreshold;
+	}
+
+	public void setLimits(int sizeLimit, int retainThreshold) {
+		setSizeLimit(sizeLimit);
+		this.retainThreshold = retainThreshold;
+	}
+
+	/**
+	 * Blocks the key until the passed time. Counter of the key is restarted when block expires.
+	 *
+	 * @param until time in milliseconds (rounded up to full minutes)
+	 */
+	public void block(long key, long until) {
+		key = normalize(key);
+		segmentFor(key).block(key, (int) ((until + 60 * 1000 - 1) / (60 * 1000)));
+	}
+
+	/**
+	 * Checks if the key is blocked.
+	 */
+	public boolean isBlocked(long key) {
+		return get(key) == BLOCKED;
+	}
+
+	/**
+	 * Increments counter for the key.
+	 *
+	 * @return value of the counter after increment or {@link #BLOCKED} if key is blocked
+	 */
+	public int increment(long key) {
+		key = normalize(key);
+		return segmentFor(key).increment(key);
+	}
+
+	/**
+	 * Increments counter for the key only once for each member (ie. counts distinct reporters of a key).
+	 * <br>
+	 * Marker of a counted member is kept in the same segment as the counter and is removed together with counters
+	 * below the retention threshold, so member is not counted again for the same counter. If counter is retained while
+	 * markers are removed, member may be counted again, so this method should be used in tables which retain only
+	 * blocked keys.
+	 *
+	 * @return value of the counter after increment or {@link #BLOCKED} if key is blocked
+	 */
+	public int incrementDistinct(long key, long member) {
+		key = normalize(key);
+		return segmentFor(key).incrementDistinct(key, keyInSegmentOf(key, XXHash64.mix(key ^ XXHash64.mix(member))));
+	}
+
+	/**
+	 * Returns current value of the counter for the key (or <code>0</code> if there is no counter for the key or
+	 * {@link #BLOCKED} if key is blocked).
+	 */
+	public int get(long key) {
+		key = normalize(key);
+		return segmentFor(key).get(key);
+	}
+
+	@Override
+	protected Segment createSegment() {
+		return new Segment(this);
+	}
+
+	// blocked entries survive until their block expires, other entries with counter below the threshold are removed
+	@Override
+	protected long rank(long[] values, int offset, long minute) {
+		long count = values[offset];
+		return (count < 0 ? -count > minute : count >= retainThreshold) ? PINNED : REMOVE;
+	}
+
+	static class Segment
+			extends SegmentedTable.Segment {
+
+		Segment(LongCounterTable table) {
+			super(table);
+		}
+
+		synchronized int get(long key) {
+			int idx = find(key);
+			if (!contains(idx, key)) {
+				return 0;
+			}
+			long count = values[idx];
+			if (count < 0) {
+				return -count > currentMinute() ? BLOCKED : 0;
+			}
+			return (int) count;
+		}
+
+		synchronized int increment(long key) {
+			int idx = find(key);
+			if (contains(idx, key)) {
+				long count = values[idx];
+				if (count < 0) {
+					if (-count > currentMinute()) {
+						return BLOCKED;
+					}
+					// block expired
+					count = 0;
+				}
+				if (count < BLOCKED - 1) {
+					count++;
+				}
+				values[idx] = count;
+				return (int) count;
+			}
+
+			idx = insert(key, idx, currentMinute());
+			values[idx] = 1;
+			return 1;
+		}
+
+		synchronized int incrementDistinct(long key, long marker) {
+			int idx = find(marker);
+			if (contains(idx, marker)) {
+				return get(key);
+			}
+			int count = increment(key);
+			// counter is inserted first, so purge triggered by the marker may only forget the counted member
+			idx = find(marker);
+			if (!contains(idx, marker)) {
+				insert(marker, idx, currentMinute());
+			}
+			return count;
+		}
+
+		synchronized void block(long key, int untilMinute) {
+			int idx = find(key);
+			if (!contains(idx, key)) {
+				idx = insert(key, idx, currentMinute());
+			}
+			values[idx] = -untilMinute;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.Arrays;
+
+/**
+ * Calculates MinHash signature of a text using shingles of consecutive words. Fraction of equal values in signatures
+ * of two texts estimates Jaccard similarity of sets of their shingles, so texts which differ only by a few words have
+ * signatures with most of the values equal.
+ * <br>
+ * Words are sequences of letters and digits compared case-insensitively. Hashes of words are calculated while
+ * scanning the text, so no objects are allocated per word or per shingle.
+ */
+public final class MinHash {
+
+	public static final int MAX_SHINGLE_SIZE = 8;
+	public static final int SIGNATURE_SIZE = 16;
+
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * Calculates MinHash signature of a text.
+	 *
+	 * @param text text to process
+	 * @param shingleSize number of consecutive words in a single shingle (from 1 to {@link #MAX_SHINGLE_SIZE})
+	 *
+	 * @return array of {@link #SIGNATURE_SIZE} values, which is reused by subsequent calls within the same thread
+	 */
+	public static int[] signature(CharSequence text, int shingleSize) {
+		if (shingleSize < 1 || shingleSize > MAX_SHINGLE_SIZE) {
+			throw new IllegalArgumentException("Invalid shingle size: " + shingleSize);
+		}
+		Scratch scratch = SCRATCH.get();
+		int[] signature = scratch.signature;
+		long[] words = scratch.words;
+		Arrays.fill(signature, Integer.MAX_VALUE);
+
+		int wordsCount = 0;
+		long word = FNV_OFFSET;
+		boolean inWord = false;
+		final int length = text.length();
+		for (int i = 0; i <= length; i++) {
+			char c = i < length ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word = (word ^ Character.toLowerCase(c)) * FNV_PRIME;
+				inWord = true;
+			} else if (inWord) {
+				words[wordsCount % shingleSize] = word;
+				wordsCount++;
+				if (wordsCount >= shingleSize) {
+					addShingle(signature, words, wordsCount, shingleSize);
+				}
+				word = FNV_OFFSET;
+				inWord = false;
+			}
+		}
+		if (wordsCount > 0 && wordsCount < shingleSize) {
+			addShingle(signature, words, wordsCount, wordsCount);
+		}
+		return signature;
+	}
+
+	/**
+	 * Returns estimated similarity (from 0 to 1) of texts with passed signatures.
+	 */
+	public static double similarity(int[] signature1, int[] signature2) {
+		int equal = 0;
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			if (signature1[i] == signature2[i]) {
+				equal++;
+			}
+		}
+		return ((double) equal) / SIGNATURE_SIZE;
+	}
+
+	private static void addShingle(int[] signature, long[] words, int wordsCount, int shingleSize) {
+		long shingle = 0;
+		for (int i = wordsCount - shingleSize; i < wordsCount; i++) {
+			shingle = shingle * 31 + words[i % shingleSize];
+		}
+		long h1 = XXHash64.mix(shingle);
+		long h2 = XXHash64.mix(h1) | 1;
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			// values are compared as non-negative integers
+			int value = (int) ((h1 + i * h2) >>> 33);
+			if (value < signature[i]) {
+				signature[i] = value;
+			}
+		}
+	}
+
+	private static class Scratch {
+
+		private final int[] signature = new int[SIGNATURE_SIZE];
+		private final long[] words = new long[MAX_SHINGLE_SIZE];
+	}
+
+	private MinHash() {
+	}
+}
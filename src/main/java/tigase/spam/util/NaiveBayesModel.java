@@ -0,0 +1,233 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Naive Bayes classifier of texts using hashed token features. For each feature (bucket of tokens with the same hash)
+ * it keeps number of spam and ham texts containing it in fixed-size primitive arrays, so memory usage does not depend
+ * on number of distinct tokens.
+ * <br>
+ * Texts are split into tokens of letters and digits (case-insensitive) and tokens are hashed while being read, so
+ * tokenization does not allocate any objects. Each feature is counted once per text.
+ * <br>
+ * Model is trained by a single thread at a time, while texts may be classified concurrently. Classification may see
+ * counters of a text being trained partially updated, which has no practical impact on results.
+ */
+public class NaiveBayesModel {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int MAGIC = 0x5453424D;
+	private static final int MAX_TOKEN_LENGTH = 32;
+	private static final int MIN_TOKEN_LENGTH = 2;
+	private static final int VERSION = 1;
+
+	private final int[] features;
+	private final int[] ham;
+	private volatile long hamTexts;
+	private final int mask;
+	private final int[] spam;
+	private volatile long spamTexts;
+
+	/**
+	 * Splits text into tokens and calculates their features.
+	 *
+	 * @param features array to store features (ie. of size equal to maximal number of tokens to check)
+	 *
+	 * @return number of distinct features stored at the beginning of the array (sorted)
+	 */
+	public static int tokenize(CharSequence text, int[] features, int mask) {
+		int count = 0;
+		long hash = FNV_OFFSET;
+		int length = 0;
+		int textLength = text.length();
+		for (int i = 0; i <= textLength && count < features.length; i++) {
+			char c = i < textLength ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+				length++;
+			} else if (length > 0) {
+				if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+					features[count++] = (int) XXHash64.mix(hash) & mask;
+				}
+				hash = FNV_OFFSET;
+				length = 0;
+			}
+		}
+		if (count < 2) {
+			return count;
+		}
+		Arrays.sort(features, 0, count);
+		int unique = 1;
+		for (int i = 1; i < count; i++) {
+			if (features[i] != features[unique - 1]) {
+				features[unique++] = features[i];
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Loads model from a file.
+	 *
+	 * @param maxTokens maximal number of tokens of a text used for training
+	 */
+	public static NaiveBayesModel load(Path file, int maxTokens) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("File " + file + " does not contain a model");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported version " + version + " of model in file " + file);
+			}
+			int bits = in.readInt();
+			if (bits < 1 || bits > 30) {
+				throw new IOException("File " + file + " is corrupted");
+			}
+			NaiveBayesModel model = new NaiveBayesModel(bits, maxTokens);
+			model.spamTexts = in.readLong();
+			model.hamTexts = in.readLong();
+			for (int i = 0; i < model.spam.length; i++) {
+				model.spam[i] = in.readInt();
+			}
+			for (int i = 0; i < model.ham.length; i++) {
+				model.ham[i] = in.readInt();
+			}
+			return model;
+		}
+	}
+
+	/**
+	 * Creates empty model.
+	 *
+	 * @param bits number of bits of feature hash (model uses <code>2^bits * 8</code> bytes)
+	 * @param maxTokens maximal number of tokens of a text used for training
+	 */
+	public NaiveBayesModel(int bits, int maxTokens) {
+		this.spam = new int[1 << bits];
+		this.ham = new int[1 << bits];
+		this.mask = (1 << bits) - 1;
+		this.features = new int[maxTokens];
+	}
+
+	/**
+	 * Calculates probability that text is a spam.
+	 *
+	 * @param features buffer for features of the text (not shared between threads), its size limits number of tokens
+	 * which are checked
+	 * @param minFeatureTexts minimal number of trained texts containing a feature to take it into account
+	 *
+	 * @return probability from <code>0.0</code> to <code>1.0</code> or <code>0.5</code> if model has no knowledge
+	 * about any of the tokens
+	 */
+	public double spamProbability(CharSequence text, int[] features, int minFeatureTexts) {
+		int count = tokenize(text, features, mask);
+		double spamTexts = this.spamTexts + 1;
+		double hamTexts = this.hamTexts + 1;
+		double logOdds = 0;
+		for (int i = 0; i < count; i++) {
+			int feature = features[i];
+			int s = spam[feature];
+			int h = ham[feature];
+			if (s + h < minFeatureTexts) {
+				continue;
+			}
+			// Laplace smoothing, so that token seen only in spam or only in ham does not decide alone
+			logOdds += Math.log((s + 0.5) / spamTexts) - Math.log((h + 0.5) / hamTexts);
+		}
+		return 1.0 / (1.0 + Math.exp(-logOdds));
+	}
+
+	public long getHamTexts() {
+		return hamTexts;
+	}
+
+	public long getMemoryUsage() {
+		return (spam.length + ham.length) * (long) Integer.BYTES;
+	}
+
+	public long getSpamTexts() {
+		return spamTexts;
+	}
+
+	/**
+	 * Writes model to a temporary file which then replaces the file atomically.
+	 */
+	public void save(Path file) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				synchronized (this) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(Integer.numberOfTrailingZeros(spam.length));
+					out.writeLong(spamTexts);
+					out.writeLong(hamTexts);
+					for (int value : spam) {
+						out.writeInt(value);
+					}
+					for (int value : ham) {
+						out.writeInt(value);
+					}
+				}
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Trains model with a text.
+	 *
+	 * @param spam <code>true</code> if text is a spam
+	 */
+	public synchronized void train(CharSequence text, boolean spam) {
+		int count = tokenize(text, features, mask);
+		if (count == 0) {
+			return;
+		}
+		int[] counters = spam ? this.spam : this.ham;
+		for (int i = 0; i < count; i++) {
+			if (counters[features[i]] < Integer.MAX_VALUE) {
+				counters[features[i]]++;
+			}
+		}
+		if (spam) {
+			spamTexts++;
+		} else {
+			hamTexts++;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+/**
+ * Concurrent table of rate limits indexed by 64-bit keys (ie. fingerprints of senders), using generic cell rate
+ * algorithm (equivalent of a token bucket) which requires only a single <code>long</code> value per key - theoretical
+ * arrival time of the next event. Keys and values are kept in primitive arrays of {@link SegmentedTable}.
+ * <br>
+ * Size of the table is bounded. Entries which became idle (their bucket is full again) are equivalent to missing
+ * entries and are removed when number of entries in a segment exceeds its share of the size limit. If there are still
+ * too many entries (ie. during a flood from many distinct senders), entries closest to becoming idle are evicted.
+ * Evicted entries start again with a full bucket, so the table may only be more lenient under pressure and its memory
+ * usage stays flat.
+ * <br>
+ * Time values passed to methods may be in any unit, but it has to be the same for all of them.
+ */
+public class RateLimitTable
+		extends SegmentedTable<RateLimitTable.Segment> {
+
+	/**
+	 * Creates table of rate limits.
+	 *
+	 * @param sizeLimit maximal number of entries
+	 */
+	public RateLimitTable(int sizeLimit) {
+		super(sizeLimit, 1);
+	}
+
+	/**
+	 * Records event for the key if it is within the limit.
+	 *
+	 * @param key key of the limit (ie. fingerprint of a sender)
+	 * @param interval minimal average interval between events (window divided by number of allowed events)
+	 * @param tolerance how much earlier than average an event may happen (window minus interval for a limit of events
+	 * within a window)
+	 * @param now current time
+	 *
+	 * @return false if event exceeds the limit (rejected events are not recorded)
+	 */
+	public boolean tryAcquire(long key, long interval, long tolerance, long now) {
+		key = normalize(key);
+		return segmentFor(key).tryAcquire(key, interval, tolerance, now);
+	}
+
+	@Override
+	protected Segment createSegment() {
+		return new Segment(this);
+	}
+
+	// idle entries are removed, entries with the most recent theoretical arrival time are farthest from being idle
+	@Override
+	protected long rank(long[] values, int offset, long now) {
+		long tat = values[offset];
+		return tat > now ? tat : REMOVE;
+	}
+
+	static class Segment
+			extends SegmentedTable.Segment {
+
+		Segment(RateLimitTable table) {
+			super(table);
+		}
+
+		synchronized boolean tryAcquire(long key, long interval, long tolerance, long now) {
+			int idx = find(key);
+			if (contains(idx, key)) {
+				long tat = Math.max(values[idx], now);
+				if (tat - now > tolerance) {
+					return false;
+				}
+				values[idx] = tat + interval;
+				return true;
+			}
+			idx = insert(key, idx, now);
+			values[idx] = now + interval;
+			return true;
+		}
+	}
+}
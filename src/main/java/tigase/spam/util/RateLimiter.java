@@ -0,0 +1,98 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free sliding window rate limiter allowing up to <code>limit</code> events within a time window.
+ * <br>
+ * Timestamps of the last <code>limit</code> events are kept in a ring of primitive values. Event is rejected if
+ * the oldest timestamp in the ring (the one which it replaces) is still within the window, so rejected events are
+ * counted as well and sender needs to slow down to be accepted again. Slots of the ring are claimed using atomic
+ * operations, without any locks or boxing. Under heavy contention timestamps may be written slightly out of order,
+ * which may only shift the moment when an event is accepted by a few milliseconds.
+ */
+public class RateLimiter {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final int limit;
+	// slot 0 contains sequence number of the next event, other slots contain timestamps of events
+	private final AtomicLongArray ring;
+	private final long window;
+
+	/**
+	 * Creates rate limiter.
+	 *
+	 * @param limit number of allowed events within the window
+	 * @param window length of the window in milliseconds
+	 */
+	public RateLimiter(int limit, long window) {
+		if (limit < 0 || window < 0) {
+			throw new IllegalArgumentException("Invalid rate limiter parameters");
+		}
+		this.limit = limit;
+		this.window = window;
+		this.ring = new AtomicLongArray(limit + 1);
+		for (int i = 1; i <= limit; i++) {
+			ring.set(i, EMPTY);
+		}
+	}
+
+	/**
+	 * Records event and checks if it is within the limit.
+	 *
+	 * @return false if limit of events within the window was exceeded
+	 */
+	public boolean check() {
+		return check(System.currentTimeMillis());
+	}
+
+	public boolean check(long now) {
+		if (limit == 0) {
+			return false;
+		}
+		int slot = (int) (ring.getAndIncrement(0) % limit) + 1;
+		long oldest = ring.getAndSet(slot, now);
+		return oldest == EMPTY || (now - oldest) > window;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Checks if there were no events within the window, so that rate limiter may be safely removed.
+	 */
+	public boolean isIdle(long now) {
+		if (limit == 0) {
+			return true;
+		}
+		long sequence = ring.get(0);
+		if (sequence == 0) {
+			return true;
+		}
+		long latest = ring.get((int) ((sequence - 1) % limit) + 1);
+		return latest == EMPTY || (now - latest) > window;
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.Arrays;
+
+/**
+ * Base of concurrent tables indexed by 64-bit keys (ie. fingerprints), which keep keys and a fixed number of
+ * <code>long</code> values per key in primitive arrays (open addressing with linear probing) without boxing or
+ * allocating objects per entry.
+ * <br>
+ * Table is split into segments guarded by separate locks to reduce contention. Size of the table is bounded: when
+ * number of entries in a segment exceeds its share of the size limit, the thread inserting an entry purges the segment,
+ * so there is no need for a separate cleaner thread. Purge asks the table for a rank of every entry (see
+ * {@link #rank(long[], int, long)}) - entries ranked {@link #REMOVE} are removed and, if there are still more entries
+ * than half of the limit, entries with the lowest rank are evicted. Entries ranked {@link #PINNED} are never evicted.
+ *
+ * @param <S> type of segments of the table
+ */
+public abstract class SegmentedTable<S extends SegmentedTable.Segment> {
+
+	/**
+	 * Rank of an entry which may not be evicted.
+	 */
+	protected static final long PINNED = Long.MAX_VALUE;
+	/**
+	 * Rank of an entry which is no longer needed and is removed by purge.
+	 */
+	protected static final long REMOVE = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int SEGMENTS = 64;
+	private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(SEGMENTS);
+	// key 0 marks empty slot
+	private static final long ZERO_KEY_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+	private final S[] segments;
+	private volatile int segmentSizeLimit;
+	private final int stride;
+
+	/**
+	 * Replaces key <code>0</code>, which marks empty slots, with a constant.
+	 */
+	protected static long normalize(long key) {
+		return key == 0 ? ZERO_KEY_REPLACEMENT : key;
+	}
+
+	/**
+	 * Creates a key stored in the same segment as the passed key.
+	 *
+	 * @param key key (which has to be normalized) selecting the segment
+	 * @param hash hash providing remaining bits of the created key
+	 */
+	protected static long keyInSegmentOf(long key, long hash) {
+		long result = ((key >>> SEGMENT_SHIFT) << SEGMENT_SHIFT) | (hash >>> (64 - SEGMENT_SHIFT));
+		// key 0 would be replaced by a key of another segment
+		return result == 0 ? 1 : result;
+	}
+
+	private static int slot(long key, int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * @param sizeLimit maximal number of entries (entries ranked {@link #PINNED} may exceed it)
+	 * @param stride number of values of each entry
+	 */
+	@SuppressWarnings("unchecked")
+	protected SegmentedTable(int sizeLimit, int stride) {
+		this.stride = stride;
+		this.segments = (S[]) new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = createSegment();
+		}
+		setSizeLimit(sizeLimit);
+	}
+
+	/**
+	 * Returns number of entries in the table.
+	 */
+	public int size() {
+		int size = 0;
+		for (S segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns number of entries which were evicted due to the size limit (entries ranked {@link #REMOVE} are not
+	 * counted).
+	 */
+	public long getEvictions() {
+		long evictions = 0;
+		for (S segment : segments) {
+			evictions += segment.evictions;
+		}
+		return evictions;
+	}
+
+	/**
+	 * Returns estimated number of bytes used by arrays of this table.
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (S segment : segments) {
+			usage += segment.capacity() * (stride + 1L) * Long.BYTES;
+		}
+		return usage;
+	}
+
+	public void clear() {
+		for (S segment : segments) {
+			segment.clear();
+		}
+	}
+
+	protected void setSizeLimit(int sizeLimit) {
+		this.segmentSizeLimit = Math.max(INITIAL_CAPACITY / 2, (sizeLimit + SEGMENTS - 1) / SEGMENTS);
+	}
+
+	/**
+	 * Returns segment of the key (which has to be normalized).
+	 */
+	protected S segmentFor(long key) {
+		return segments[(int) (key >>> SEGMENT_SHIFT)];
+	}
+
+	protected abstract S createSegment();
+
+	/**
+	 * Ranks entry during purge of a segment. Entries with higher rank are retained if some entries have to be evicted.
+	 *
+	 * @param values array of values of entries
+	 * @param offset offset of values of the entry
+	 * @param now time passed to {@link Segment#insert(long, int, long)}
+	 *
+	 * @return rank of the entry, {@link #REMOVE} or {@link #PINNED}
+	 */
+	protected abstract long rank(long[] values, int offset, long now);
+
+	/**
+	 * Segment of a table. Methods of subclasses accessing entries have to be synchronized.
+	 */
+	public static abstract class Segment {
+
+		volatile long evictions = 0;
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private int purgeAt = 0;
+		volatile int size = 0;
+		private final SegmentedTable<?> table;
+		/**
+		 * Values of entries, values of entry at slot <code>i</code> start at <code>i * stride</code>.
+		 */
+		protected long[] values;
+
+		protected Segment(SegmentedTable<?> table) {
+			this.table = table;
+			this.values = new long[INITIAL_CAPACITY * table.stride];
+		}
+
+		synchronized int capacity() {
+			return keys.length;
+		}
+
+		synchronized void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			values = new long[INITIAL_CAPACITY * table.stride];
+			size = 0;
+			purgeAt = 0;
+		}
+
+		/**
+		 * Finds slot of the key or an empty slot where key should be inserted.
+		 *
+		 * @return index of the slot
+		 */
+		protected int find(long key) {
+			int mask = keys.length - 1;
+			int idx = slot(key, mask);
+			long k;
+			while ((k = keys[idx]) != key && k != 0) {
+				idx = (idx + 1) & mask;
+			}
+			return idx;
+		}
+
+		/**
+		 * Checks if key is stored in the slot returned by {@link #find(long)}.
+		 */
+		protected boolean contains(int idx, long key) {
+			return keys[idx] == key;
+		}
+
+		/**
+		 * Inserts the key, purging or growing segment if needed.
+		 *
+		 * @param idx slot returned by {@link #find(long)} for this key
+		 * @param now current time passed to {@link #rank(long[], int, long)}
+		 *
+		 * @return offset of values of the inserted key (set to <code>0</code>)
+		 */
+		protected int insert(long key, int idx, long now) {
+			if (size >= Math.max(purgeAt, table.segmentSizeLimit)) {
+				purge(now);
+				idx = find(key);
+			}
+			if ((size + 1) * 2 > keys.length) {
+				rebuild(keys.length * 2, now, REMOVE, false);
+				idx = find(key);
+			}
+			keys[idx] = key;
+			size++;
+			return idx * table.stride;
+		}
+
+		private void purge(long now) {
+			// only half of the limit is retained, so that purge is not repeated too often
+			int retain = table.segmentSizeLimit / 2;
+			int stride = table.stride;
+			long[] ranks = new long[size];
+			int pinned = 0;
+			int evictable = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != 0) {
+					long rank = table.rank(values, i * stride, now);
+					if (rank == PINNED) {
+						pinned++;
+					} else if (rank != REMOVE) {
+						ranks[evictable++] = rank;
+					}
+				}
+			}
+			long threshold = REMOVE;
+			int kept = evictable;
+			if (pinned + evictable > retain) {
+				kept = Math.max(0, retain - pinned);
+				if (kept < evictable) {
+					Arrays.sort(ranks, 0, evictable);
+					// entries with the highest rank are retained
+					threshold = kept == 0 ? PINNED : ranks[evictable - kept];
+					evictions += evictable - kept;
+				}
+			}
+			int newCapacity = INITIAL_CAPACITY;
+			while ((pinned + kept) * 2 >= newCapacity) {
+				newCapacity <<= 1;
+			}
+			rebuild(newCapacity, now, threshold, true);
+			// if most of entries survived, do not try again until segment grows significantly
+			purgeAt = size * 2;
+		}
+
+		private void rebuild(int newCapacity, long now, long threshold, boolean filter) {
+			int stride = table.stride;
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new long[newCapacity];
+			values = new long[newCapacity * stride];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] == 0) {
+					continue;
+				}
+				long rank = filter ? table.rank(oldValues, i * stride, now) : PINNED;
+				if (rank == PINNED || (rank != REMOVE && rank > threshold)) {
+					copy(oldKeys[i], oldValues, i * stride);
+				}
+			}
+			if (threshold == REMOVE || threshold == PINNED) {
+				return;
+			}
+			// entries ranked the same as the threshold are retained only if there is space
+			for (int i = 0; i < oldKeys.length && (size + 1) * 2 <= newCapacity; i++) {
+				if (oldKeys[i] != 0 && table.rank(oldValues, i * stride, now) == threshold) {
+					copy(oldKeys[i], oldValues, i * stride);
+				}
+			}
+		}
+
+		private void copy(long key, long[] oldValues, int oldOffset) {
+			int idx = find(key);
+			keys[idx] = key;
+			System.arraycopy(oldValues, oldOffset, values, idx * table.stride, table.stride);
+			size++;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded locality-sensitive-hash index of MinHash signatures counting similar items within a time window.
+ * <br>
+ * Similar items (with estimated similarity of signatures not lower than configured threshold) are grouped into
+ * clusters with a counter of items seen within a window started by the first item of a cluster. Each cluster is
+ * indexed in {@link #BANDS} tables by hashes of consecutive pairs of signature values, so similar items are very
+ * likely to share at least one of them with the cluster.
+ * <br>
+ * All data are kept in preallocated arrays of primitive values, so memory usage is fixed. Clusters not updated within
+ * the window are expired and their slots are reused. Index is not locked, so concurrent updates may sometimes result
+ * in slightly inaccurate counts or in creation of a duplicated cluster, which is acceptable for detection of SPAM waves.
+ */
+public class SimilarityIndex {
+
+	public static final int BANDS = 8;
+
+	private static final int ROWS = MinHash.SIGNATURE_SIZE / BANDS;
+	private static final int BUCKET_SIZE = 4;
+	private static final int ALLOCATION_PROBES = 4;
+
+	private final AtomicInteger allocationCursor = new AtomicInteger();
+	private final AtomicIntegerArray buckets;
+	private final int bucketsMask;
+	private final int capacity;
+	private final AtomicIntegerArray counts;
+	private final AtomicLongArray lastSeen;
+	private final int minEqualValues;
+	private final AtomicIntegerArray signatures;
+	private final long window;
+	private final AtomicLongArray windowStarts;
+
+	/**
+	 * Creates index.
+	 *
+	 * @param capacity maximal number of clusters
+	 * @param similarity minimal estimated similarity (from 0 to 1) of items in the same cluster
+	 * @param window length of the time window in milliseconds
+	 */
+	public SimilarityIndex(int capacity, double similarity, long window) {
+		if (capacity < 1 || similarity <= 0 || similarity > 1 || window < 1) {
+			throw new IllegalArgumentException("Invalid index parameters");
+		}
+		int bucketsCount = 1;
+		while (bucketsCount * BUCKET_SIZE < capacity * 2) {
+			bucketsCount <<= 1;
+		}
+		this.capacity = capacity;
+		this.minEqualValues = (int) Math.ceil(similarity * MinHash.SIGNATURE_SIZE);
+		this.window = window;
+		this.bucketsMask = bucketsCount - 1;
+		this.buckets = new AtomicIntegerArray(BANDS * bucketsCount * BUCKET_SIZE);
+		this.counts = new AtomicIntegerArray(capacity);
+		this.signatures = new AtomicIntegerArray(capacity * MinHash.SIGNATURE_SIZE);
+		this.lastSeen = new AtomicLongArray(capacity);
+		this.windowStarts = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			lastSeen.set(i, Long.MIN_VALUE / 2);
+		}
+	}
+
+	/**
+	 * Adds MinHash signature of an item to the index.
+	 *
+	 * @return number of similar items seen within the window (including this one)
+	 */
+	public int add(int[] signature, long now) {
+		int best = -1;
+		int bestEqual = minEqualValues - 1;
+		search:
+		for (int band = 0; band < BANDS; band++) {
+			int base = bucketBase(signature, band);
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				int ref = buckets.get(base + i);
+				if (ref == 0) {
+					continue;
+				}
+				int idx = ref - 1;
+				if (idx == best || isExpired(idx, now) || !bandEquals(idx, signature, band)) {
+					continue;
+				}
+				int equal = equalValues(idx, signature);
+				if (equal > bestEqual) {
+					best = idx;
+					bestEqual = equal;
+					if (equal == MinHash.SIGNATURE_SIZE) {
+						break search;
+					}
+				}
+			}
+		}
+
+		if (best >= 0) {
+			lastSeen.set(best, now);
+			long windowStart = windowStarts.get(best);
+			if (now - windowStart > window && windowStarts.compareAndSet(best, windowStart, now)) {
+				counts.set(best, 1);
+				return 1;
+			}
+			return counts.incrementAndGet(best);
+		}
+
+		int idx = allocate(now);
+		int offset = idx * MinHash.SIGNATURE_SIZE;
+		for (int i = 0; i < MinHash.SIGNATURE_SIZE; i++) {
+			signatures.set(offset + i, signature[i]);
+		}
+		counts.set(idx, 1);
+		windowStarts.set(idx, now);
+		lastSeen.set(idx, now);
+		for (int band = 0; band < BANDS; band++) {
+			index(idx, signature, band, now);
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns number of clusters which were not expired.
+	 */
+	public int size(long now) {
+		int size = 0;
+		for (int i = 0; i < capacity; i++) {
+			if (!isExpired(i, now)) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	public long getMemoryUsage() {
+		return ((long) buckets.length() + signatures.length()) * Integer.BYTES +
+				((long) capacity) * (2 * Long.BYTES + Integer.BYTES);
+	}
+
+	private boolean isExpired(int idx, long now) {
+		return now - lastSeen.get(idx) > window;
+	}
+
+	private boolean bandEquals(int idx, int[] signature, int band) {
+		int offset = idx * MinHash.SIGNATURE_SIZE;
+		for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+			if (signatures.get(offset + i) != signature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int equalValues(int idx, int[] signature) {
+		int offset = idx * MinHash.SIGNATURE_SIZE;
+		int equal = 0;
+		for (int i = 0; i < MinHash.SIGNATURE_SIZE; i++) {
+			if (signatures.get(offset + i) == signature[i]) {
+				equal++;
+			}
+		}
+		return equal;
+	}
+
+	private int allocate(long now) {
+		int start = allocationCursor.getAndAdd(ALLOCATION_PROBES);
+		int selected = -1;
+		int selectedCount = Integer.MAX_VALUE;
+		for (int i = 0; i < ALLOCATION_PROBES; i++) {
+			int idx = Math.floorMod(start + i, capacity);
+			if (isExpired(idx, now)) {
+				return idx;
+			}
+			int count = counts.get(idx);
+			if (count < selectedCount) {
+				selected = idx;
+				selectedCount = count;
+			}
+		}
+		return selected;
+	}
+
+	private void index(int idx, int[] signature, int band, long now) {
+		int base = bucketBase(signature, band);
+		int selected = base;
+		long selectedLastSeen = Long.MAX_VALUE;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int ref = buckets.get(base + i);
+			if (ref == 0) {
+				selected = base + i;
+				break;
+			}
+			int other = ref - 1;
+			if (isExpired(other, now) || !bandEquals(other, signature, band)) {
+				selected = base + i;
+				break;
+			}
+			long otherLastSeen = lastSeen.get(other);
+			if (otherLastSeen < selectedLastSeen) {
+				selected = base + i;
+				selectedLastSeen = otherLastSeen;
+			}
+		}
+		buckets.set(selected, idx + 1);
+	}
+
+	private int bucketBase(int[] signature, int band) {
+		long key = band;
+		for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+			key = key * 0x9E3779B97F4A7C15L + signature[i];
+		}
+		int bucket = (int) XXHash64.mix(key) & bucketsMask;
+		return (band * (bucketsMask + 1) + bucket) * BUCKET_SIZE;
+	}
+}
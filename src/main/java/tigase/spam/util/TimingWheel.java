@@ -0,0 +1,127 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Hashed timing wheel of 64-bit keys (ie. fingerprints) scheduled for expiration.
+ * <br>
+ * Keys are stored in primitive arrays of buckets, each bucket covering single tick. Advancing the wheel touches only
+ * buckets of ticks which passed, so cost of a tick depends on number of keys due in this tick and not on number of
+ * all scheduled keys. Keys scheduled further than a single revolution of the wheel are passed to the consumer
+ * earlier, and consumer is expected to check the real deadline and to schedule them again.
+ * <br>
+ * Scheduling locks only a single bucket, so it does not contend with advancing the wheel.
+ */
+public class TimingWheel {
+
+	private static final int INITIAL_BUCKET_CAPACITY = 8;
+	private static final long[] EMPTY = new long[0];
+
+	private final Bucket[] buckets;
+	private volatile long currentTick;
+	private final int mask;
+	private final long tickDuration;
+
+	/**
+	 * Creates timing wheel.
+	 *
+	 * @param tickDuration duration of a single tick in ms
+	 * @param ticksPerWheel number of ticks in a single revolution of the wheel (rounded up to a power of 2)
+	 * @param now current time in ms
+	 */
+	public TimingWheel(long tickDuration, int ticksPerWheel, long now) {
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.tickDuration = tickDuration;
+		this.currentTick = now / tickDuration;
+	}
+
+	/**
+	 * Schedules key to be passed to the consumer when the wheel is advanced past its deadline. Keys with deadline
+	 * which already passed are scheduled for the next tick.
+	 */
+	public void schedule(long key, long deadline) {
+		long tick = Math.max(deadline / tickDuration, currentTick + 1);
+		buckets[(int) tick & mask].add(key);
+	}
+
+	/**
+	 * Advances the wheel to the current time and passes keys from all buckets of passed ticks to the consumer.
+	 * Must not be called concurrently.
+	 *
+	 * @return number of keys passed to the consumer
+	 */
+	public int advance(long now, LongConsumer consumer) {
+		long targetTick = now / tickDuration;
+		long tick = currentTick;
+		// no need to iterate over the same buckets more than once
+		long firstTick = Math.max(tick + 1, targetTick - mask);
+		int processed = 0;
+		currentTick = targetTick;
+		for (long t = firstTick; t <= targetTick; t++) {
+			Bucket bucket = buckets[(int) t & mask];
+			long[] keys;
+			int size;
+			synchronized (bucket) {
+				keys = bucket.keys;
+				size = bucket.size;
+				bucket.keys = EMPTY;
+				bucket.size = 0;
+			}
+			for (int i = 0; i < size; i++) {
+				consumer.accept(keys[i]);
+			}
+			processed += size;
+		}
+		return processed;
+	}
+
+	/**
+	 * Returns number of scheduled keys.
+	 */
+	public int size() {
+		int size = 0;
+		for (Bucket bucket : buckets) {
+			synchronized (bucket) {
+				size += bucket.size;
+			}
+		}
+		return size;
+	}
+
+	private static class Bucket {
+
+		private long[] keys = EMPTY;
+		private int size = 0;
+
+		synchronized void add(long key) {
+			if (size == keys.length) {
+				long[] newKeys = new long[Math.max(INITIAL_BUCKET_CAPACITY, keys.length * 2)];
+				System.arraycopy(keys, 0, newKeys, 0, size);
+				keys = newKeys;
+			}
+			keys[size++] = key;
+		}
+	}
+}
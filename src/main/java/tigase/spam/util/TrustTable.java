@@ -0,0 +1,178 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+/**
+ * Concurrent table of clean history of senders indexed by 64-bit keys (ie. fingerprints of senders). For each key it
+ * keeps number of clean packets, time of the first and of the last clean packet. Keys and values are kept in primitive
+ * arrays of {@link SegmentedTable}.
+ * <br>
+ * Entry expires if no clean packet was recorded for it within TTL. Revoked entry does not collect clean packets and
+ * is reported as revoked until TTL passes since it was revoked.
+ * <br>
+ * Size of the table is bounded. Expired entries are removed when number of entries in a segment exceeds its share of
+ * the size limit. If there are still too many entries, entries which were not seen for the longest time are evicted,
+ * so evicted sender has to earn trust again. Revoked entries are never evicted (they are removed only when they
+ * expire), so revoked sender cannot regain trust by pushing its entry out of the table.
+ * <br>
+ * Time values passed to methods may be in any unit, but it has to be the same for all of them and for TTL.
+ */
+public class TrustTable
+		extends SegmentedTable<TrustTable.Segment> {
+
+	private static final int COUNT = 0;
+	private static final int FIRST_SEEN = 1;
+	private static final int LAST_SEEN = 2;
+	// value of counter of revoked entries
+	private static final int REVOKED = -1;
+
+	private final long ttl;
+
+	/**
+	 * Creates table of clean history of senders.
+	 *
+	 * @param sizeLimit maximal number of entries (revoked entries may exceed it)
+	 * @param ttl time after which entry expires
+	 */
+	public TrustTable(int sizeLimit, long ttl) {
+		super(sizeLimit, 3);
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Checks trust of the key.
+	 *
+	 * @param key key (ie. fingerprint of a sender)
+	 * @param minCount minimal number of clean packets required for trust
+	 * @param minAge minimal time since the first clean packet required for trust
+	 * @param now current time
+	 */
+	public Trust check(long key, int minCount, long minAge, long now) {
+		key = normalize(key);
+		return segmentFor(key).check(key, minCount, minAge, now);
+	}
+
+	/**
+	 * Records clean packet of the key, unless it was revoked.
+	 */
+	public void recordClean(long key, long now) {
+		key = normalize(key);
+		segmentFor(key).recordClean(key, now);
+	}
+
+	/**
+	 * Revokes trust of the key. Key will not collect clean packets until TTL passes.
+	 */
+	public void revoke(long key, long now) {
+		key = normalize(key);
+		segmentFor(key).revoke(key, now);
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	@Override
+	protected Segment createSegment() {
+		return new Segment(this);
+	}
+
+	// entries which were seen most recently are retained
+	@Override
+	protected long rank(long[] values, int offset, long now) {
+		if (now - values[offset + LAST_SEEN] > ttl) {
+			return REMOVE;
+		}
+		return values[offset + COUNT] == REVOKED ? PINNED : values[offset + LAST_SEEN];
+	}
+
+	public enum Trust {
+		/**
+		 * Key has not collected enough clean history
+		 */
+		unknown,
+		/**
+		 * Key has collected enough clean history
+		 */
+		trusted,
+		/**
+		 * Trust of the key was revoked recently
+		 */
+		revoked
+	}
+
+	class Segment
+			extends SegmentedTable.Segment {
+
+		Segment(TrustTable table) {
+			super(table);
+		}
+
+		synchronized Trust check(long key, int minCount, long minAge, long now) {
+			int idx = find(key);
+			if (!contains(idx, key)) {
+				return Trust.unknown;
+			}
+			int offset = idx * 3;
+			if (now - values[offset + LAST_SEEN] > ttl) {
+				return Trust.unknown;
+			}
+			if (values[offset + COUNT] == REVOKED) {
+				return Trust.revoked;
+			}
+			return values[offset + COUNT] >= minCount && now - values[offset + FIRST_SEEN] >= minAge
+				   ? Trust.trusted
+				   : Trust.unknown;
+		}
+
+		synchronized void recordClean(long key, long now) {
+			int idx = find(key);
+			if (contains(idx, key)) {
+				int offset = idx * 3;
+				if (now - values[offset + LAST_SEEN] > ttl) {
+					// expired entry starts again
+					set(offset, 1, now, now);
+				} else if (values[offset + COUNT] != REVOKED) {
+					if (values[offset + COUNT] < Integer.MAX_VALUE) {
+						values[offset + COUNT]++;
+					}
+					values[offset + LAST_SEEN] = now;
+				}
+				return;
+			}
+			set(insert(key, idx, now), 1, now, now);
+		}
+
+		synchronized void revoke(long key, long now) {
+			int idx = find(key);
+			if (contains(idx, key)) {
+				int offset = idx * 3;
+				values[offset + COUNT] = REVOKED;
+				values[offset + LAST_SEEN] = now;
+				return;
+			}
+			set(insert(key, idx, now), REVOKED, now, now);
+		}
+
+		private void set(int offset, long count, long firstSeen, long lastSeen) {
+			values[offset + COUNT] = count;
+			values[offset + FIRST_SEEN] = firstSeen;
+			values[offset + LAST_SEEN] = lastSeen;
+		}
+	}
+}
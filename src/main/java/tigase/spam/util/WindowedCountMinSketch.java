@@ -0,0 +1,145 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Count-min sketch counting occurrences of 64-bit keys (ie. fingerprints) within a sliding time window.
+ * <br>
+ * Window is split into a number of time slices, each with its own sketch. Sketch of the oldest slice is replaced
+ * with a new (zeroed) one when a new slice starts, so memory usage is fixed, updates are O(1), counters are never
+ * cleared while other threads update them and there is no need for cleaner threads. Estimated count is a sum of counts from slices within the window, so window is effectively between
+ * <code>(slices - 1) / slices</code> and full configured length.
+ * <br>
+ * As any count-min sketch it may overestimate, but never underestimates count of a key (except for updates racing
+ * with replacement of a slice). Estimation error grows with number of distinct keys within the window and decreases with
+ * width of the sketch.
+ */
+public class WindowedCountMinSketch {
+
+	private final int depth;
+	private final int mask;
+	private final long sliceDuration;
+	private final AtomicReferenceArray<Slice> slices;
+
+	/**
+	 * Creates sketch.
+	 *
+	 * @param depth number of hash functions (rows)
+	 * @param width number of counters in a row (rounded up to power of 2)
+	 * @param slicesCount number of time slices in the window
+	 * @param window length of the window in milliseconds
+	 */
+	public WindowedCountMinSketch(int depth, int width, int slicesCount, long window) {
+		if (depth < 1 || width < 1 || slicesCount < 1 || window < slicesCount) {
+			throw new IllegalArgumentException("Invalid sketch parameters");
+		}
+		int size = 1;
+		while (size < width) {
+			size <<= 1;
+		}
+		this.depth = depth;
+		this.mask = size - 1;
+		this.sliceDuration = window / slicesCount;
+		this.slices = new AtomicReferenceArray<>(slicesCount);
+		for (int i = 0; i < slicesCount; i++) {
+			slices.set(i, new Slice(Long.MIN_VALUE, depth * size));
+		}
+	}
+
+	/**
+	 * Increments count of the key within current time slice.
+	 *
+	 * @return estimated count of the key within the window (including this occurrence)
+	 */
+	public int add(long key) {
+		return add(key, System.currentTimeMillis());
+	}
+
+	public int add(long key, long now) {
+		long epoch = now / sliceDuration;
+		AtomicIntegerArray counters = sliceFor(epoch).counters;
+		long h2 = XXHash64.mix(key);
+		int width = mask + 1;
+		for (int row = 0; row < depth; row++) {
+			counters.incrementAndGet(row * width + index(key, h2, row));
+		}
+		return estimate(key, h2, epoch);
+	}
+
+	/**
+	 * Returns estimated count of the key within the window.
+	 */
+	public int estimate(long key) {
+		return estimate(key, XXHash64.mix(key), System.currentTimeMillis() / sliceDuration);
+	}
+
+	public long getMemoryUsage() {
+		return ((long) slices.length()) * depth * (mask + 1) * Integer.BYTES;
+	}
+
+	private int estimate(long key, long h2, long epoch) {
+		int width = mask + 1;
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			int idx = row * width + index(key, h2, row);
+			int sum = 0;
+			for (int i = 0; i < slices.length(); i++) {
+				Slice slice = slices.get(i);
+				if (slice.epoch <= epoch && slice.epoch > epoch - slices.length()) {
+					sum += slice.counters.get(idx);
+				}
+			}
+			if (sum < min) {
+				min = sum;
+			}
+		}
+		return min;
+	}
+
+	private int index(long h1, long h2, int row) {
+		return (int) ((h1 + row * h2) >>> 16) & mask;
+	}
+
+	private Slice sliceFor(long epoch) {
+		int idx = (int) Math.floorMod(epoch, (long) slices.length());
+		Slice slice = slices.get(idx);
+		while (slice.epoch < epoch) {
+			// new slice is allocated zeroed, so threads still holding the old one never see counters being cleared
+			Slice newSlice = new Slice(epoch, slice.counters.length());
+			if (slices.compareAndSet(idx, slice, newSlice)) {
+				return newSlice;
+			}
+			slice = slices.get(idx);
+		}
+		return slice;
+	}
+
+	private static class Slice {
+
+		private final AtomicIntegerArray counters;
+		private final long epoch;
+
+		private Slice(long epoch, int size) {
+			this.epoch = epoch;
+			this.counters = new AtomicIntegerArray(size);
+		}
+	}
+}
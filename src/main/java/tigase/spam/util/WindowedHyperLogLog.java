@@ -0,0 +1,134 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import java.util.Arrays;
+
+/**
+ * Small HyperLogLog sketch estimating number of distinct 64-bit keys (ie. fingerprints of JIDs) seen within a sliding
+ * time window.
+ * <br>
+ * Window is split into two slices (epochs), each with its own set of registers. Estimation is based on registers of
+ * the current and of the previous slice, so window is effectively between a half and a full configured length.
+ * Registers are kept in a single byte array, so with default precision sketch uses about 300 bytes of memory. Estimate
+ * is cached and recalculated only when a register is changed.
+ */
+public class WindowedHyperLogLog {
+
+	public static final int DEFAULT_PRECISION = 7;
+
+	private final double alpha;
+	private final int precision;
+	private final int size;
+	private long epoch = Long.MIN_VALUE;
+	private int estimate = 0;
+	// registers of current slice are followed by registers of the previous slice
+	private final byte[] registers;
+
+	public WindowedHyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Creates sketch.
+	 *
+	 * @param precision number of bits of a key used to select a register (from 4 to 16)
+	 */
+	public WindowedHyperLogLog(int precision) {
+		if (precision < 4 || precision > 16) {
+			throw new IllegalArgumentException("Invalid precision " + precision);
+		}
+		this.precision = precision;
+		this.size = 1 << precision;
+		this.registers = new byte[size * 2];
+		this.alpha = 0.7213 / (1 + 1.079 / size);
+	}
+
+	/**
+	 * Adds key to the slice of passed epoch.
+	 *
+	 * @param key well distributed 64-bit key
+	 * @param epoch current epoch (ie. current time divided by half of the window length), older epochs are treated
+	 * as the current one
+	 *
+	 * @return estimated number of distinct keys within the window (including this key)
+	 */
+	public synchronized int add(long key, long epoch) {
+		rotate(epoch);
+		int idx = (int) (key >>> (64 - precision));
+		int rank = Math.min(Long.numberOfLeadingZeros(key << precision), 64 - precision) + 1;
+		if (registers[idx] < rank) {
+			registers[idx] = (byte) rank;
+			estimate = calculate();
+		}
+		return estimate;
+	}
+
+	/**
+	 * Returns estimated number of distinct keys within the window.
+	 */
+	public synchronized int estimate(long epoch) {
+		rotate(epoch);
+		return estimate;
+	}
+
+	/**
+	 * Checks if there were no keys added within the window.
+	 */
+	public synchronized boolean isIdle(long epoch) {
+		return this.epoch == Long.MIN_VALUE || epoch - this.epoch > 1;
+	}
+
+	public int getMemoryUsage() {
+		return registers.length;
+	}
+
+	private void rotate(long epoch) {
+		// epoch older than current may be passed by a thread which read the clock before another one rotated the
+		// sketch, its keys are counted in the current slice
+		if (epoch <= this.epoch) {
+			return;
+		}
+		if (epoch == this.epoch + 1) {
+			System.arraycopy(registers, 0, registers, size, size);
+		} else {
+			Arrays.fill(registers, size, size * 2, (byte) 0);
+		}
+		Arrays.fill(registers, 0, size, (byte) 0);
+		this.epoch = epoch;
+		this.estimate = calculate();
+	}
+
+	private int calculate() {
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < size; i++) {
+			int rank = Math.max(registers[i], registers[size + i]);
+			if (rank == 0) {
+				zeros++;
+			}
+			sum += Double.longBitsToDouble((1023L - rank) << 52);
+		}
+		double estimate = alpha * size * size / sum;
+		if (estimate <= 2.5 * size && zeros > 0) {
+			// linear counting is more accurate for small cardinalities
+			estimate = size * Math.log((double) size / zeros);
+		}
+		return (int) Math.round(estimate);
+	}
+}
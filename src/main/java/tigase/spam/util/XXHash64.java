@@ -0,0 +1,121 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+/**
+ * Implementation of the xxHash64 non-cryptographic hash function working directly on <code>char</code>s of a string.
+ * <br>
+ * Result is equal to xxHash64 of UTF-16LE encoded string, but there is no need to encode string to an array of bytes,
+ * so calculation of a hash does not allocate any memory.
+ */
+public final class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	public static long hash(CharSequence value, long seed) {
+		return hash(value, 0, value.length(), seed);
+	}
+
+	public static long hash(CharSequence value, int offset, int length, long seed) {
+		final int end = offset + length;
+		int pos = offset;
+		long h;
+
+		if (length >= 16) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			final int limit = end - 16;
+			do {
+				v1 = round(v1, lane(value, pos));
+				v2 = round(v2, lane(value, pos + 4));
+				v3 = round(v3, lane(value, pos + 8));
+				v4 = round(v4, lane(value, pos + 12));
+				pos += 16;
+			} while (pos <= limit);
+
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+
+		h += ((long) length) * 2;
+
+		while (pos + 4 <= end) {
+			h ^= round(0, lane(value, pos));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			pos += 4;
+		}
+		if (pos + 2 <= end) {
+			long k = (value.charAt(pos) & 0xFFFFL) | ((value.charAt(pos + 1) & 0xFFFFL) << 16);
+			h ^= k * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			pos += 2;
+		}
+		if (pos < end) {
+			char c = value.charAt(pos);
+			h ^= (c & 0xFFL) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			h ^= ((c >>> 8) & 0xFFL) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * Method finalizes (avalanches) 64-bit value. May be used to derive well distributed value from an already
+	 * calculated hash.
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long lane(CharSequence value, int pos) {
+		return (value.charAt(pos) & 0xFFFFL) | ((value.charAt(pos + 1) & 0xFFFFL) << 16) |
+				((value.charAt(pos + 2) & 0xFFFFL) << 32) | ((value.charAt(pos + 3) & 0xFFFFL) << 48);
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	private XXHash64() {
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.spam.filters.AbstractSpamFilter;
+import tigase.spam.filters.KnownSpammersFilter;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveFilterOrderingTest {
+
+	@Test
+	public void testReorder() {
+		KnownSpammersFilter knownSpammers = new KnownSpammersFilter();
+		// expensive filter detecting a lot of spam
+		MeasuredFilter expensive = new MeasuredFilter("expensive");
+		// cheap filter detecting little spam
+		MeasuredFilter cheap = new MeasuredFilter("cheap");
+		// filter which never detects spam
+		MeasuredFilter useless = new MeasuredFilter("useless");
+
+		AdaptiveFilterOrdering ordering = new AdaptiveFilterOrdering(100);
+		List<SpamFilter> filters = Arrays.asList(knownSpammers, useless, expensive, cheap);
+		assertEquals(filters, ordering.reorder(filters));
+
+		expensive.measured(1000, 500, 100_000_000);
+		cheap.measured(1000, 100, 1_000_000);
+		useless.measured(1000, 0, 1_000);
+		assertEquals(Arrays.asList(knownSpammers, cheap, expensive, useless), ordering.reorder(filters));
+
+		// cheap filter stops detecting spam
+		expensive.measured(2000, 1000, 200_000_000);
+		cheap.measured(2000, 100, 2_000_000);
+		useless.measured(2000, 0, 2_000);
+		assertEquals(Arrays.asList(knownSpammers, expensive, useless, cheap), ordering.reorder(filters));
+
+		// not enough data, order is kept
+		expensive.measured(2010, 1000, 300_000_000);
+		assertEquals(Arrays.asList(knownSpammers, expensive, useless, cheap), ordering.reorder(filters));
+	}
+
+	private static class MeasuredFilter
+			extends AbstractSpamFilter {
+
+		private final String id;
+		private long filtered;
+		private long spam;
+		private long time;
+
+		MeasuredFilter(String id) {
+			this.id = id;
+		}
+
+		void measured(long filtered, long spam, long time) {
+			this.filtered = filtered;
+			this.spam = spam;
+			this.time = time;
+		}
+
+		@Override
+		public long getFilteredPackets() {
+			return filtered;
+		}
+
+		@Override
+		public long getSpamPackets() {
+			return spam;
+		}
+
+		@Override
+		public long getMeasuredPackets() {
+			return filtered;
+		}
+
+		@Override
+		public long getMeasuredProcessingTime() {
+			return time;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		protected boolean filterPacket(Packet packet, XMPPResourceConnection session) {
+			return true;
+		}
+	}
+}
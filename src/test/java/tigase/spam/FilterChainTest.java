@@ -0,0 +1,60 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import org.junit.Test;
+import tigase.server.Iq;
+import tigase.server.Message;
+import tigase.server.Presence;
+import tigase.spam.filters.KnownSpammersFilter;
+import tigase.spam.filters.MessageErrorFilterEnsureErrorChild;
+import tigase.spam.filters.MessageFilterSameLongBody;
+import tigase.spam.filters.PresenceSubscribeFilter;
+import tigase.xmpp.StanzaType;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FilterChainTest {
+
+	@Test
+	public void testIndex() {
+		KnownSpammersFilter knownSpammers = new KnownSpammersFilter();
+		MessageErrorFilterEnsureErrorChild messageError = new MessageErrorFilterEnsureErrorChild();
+		MessageFilterSameLongBody sameLongBody = new MessageFilterSameLongBody();
+		PresenceSubscribeFilter presenceSubscribe = new PresenceSubscribeFilter();
+
+		FilterChain chain = new FilterChain(
+				Arrays.asList(knownSpammers, messageError, sameLongBody, presenceSubscribe));
+
+		assertArrayEquals(new SpamFilter[]{knownSpammers, sameLongBody},
+						  chain.getFilters(Message.ELEM_NAME, StanzaType.chat));
+		assertArrayEquals(new SpamFilter[]{knownSpammers, sameLongBody}, chain.getFilters(Message.ELEM_NAME, null));
+		assertArrayEquals(new SpamFilter[]{knownSpammers, messageError, sameLongBody},
+						  chain.getFilters(Message.ELEM_NAME, StanzaType.error));
+		assertArrayEquals(new SpamFilter[]{knownSpammers}, chain.getFilters(Message.ELEM_NAME, StanzaType.groupchat));
+		assertArrayEquals(new SpamFilter[]{knownSpammers, presenceSubscribe},
+						  chain.getFilters(Presence.ELEM_NAME, StanzaType.subscribe));
+		assertArrayEquals(new SpamFilter[]{knownSpammers}, chain.getFilters(Presence.ELEM_NAME, null));
+		assertArrayEquals(new SpamFilter[]{knownSpammers}, chain.getFilters(Iq.ELEM_NAME, StanzaType.get));
+		assertEquals(4, chain.getFilters("custom", null).length);
+	}
+
+}
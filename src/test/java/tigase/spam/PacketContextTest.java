@@ -0,0 +1,88 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.spam.filters.SpammersTable;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import static org.junit.Assert.*;
+
+public class PacketContextTest {
+
+	@Test
+	public void testMessage() throws TigaseStringprepException {
+		Packet packet = createMessage("spammer@example.com/res1", "Some long message body");
+		PacketContext context = PacketContext.of(packet, null);
+
+		assertSame(packet, context.getPacket());
+		assertEquals("Some long message body", context.getBody());
+		assertNotEquals(0, context.getBodyFingerprint());
+		assertEquals(BareJID.bareJIDInstanceNS("spammer@example.com"), context.getSender());
+		assertEquals(SpammersTable.fingerprint(BareJID.bareJIDInstanceNS("spammer@example.com")),
+					 context.getSenderFingerprint());
+		assertFalse(context.isSenderLocalUser());
+		assertFalse(context.isSenderLocalDomain());
+
+		// context is reused while processing the same packet
+		assertSame(context, PacketContext.of(packet, null));
+	}
+
+	@Test
+	public void testRebind() throws TigaseStringprepException {
+		Packet packet1 = createMessage("spammer@example.com/res1", "Some long message body");
+		Packet packet2 = createMessage("user@example.com/res1", "Other message body");
+		Packet packet3 = createMessage("spammer@example.com/res2", "Some long message body");
+
+		long fingerprint = PacketContext.of(packet1, null).getBodyFingerprint();
+		PacketContext context = PacketContext.of(packet2, null);
+		assertEquals("Other message body", context.getBody());
+		assertNotEquals(fingerprint, context.getBodyFingerprint());
+		assertEquals(BareJID.bareJIDInstanceNS("user@example.com"), context.getSender());
+
+		context = PacketContext.of(packet3, null);
+		assertEquals(fingerprint, context.getBodyFingerprint());
+		assertEquals(BareJID.bareJIDInstanceNS("spammer@example.com"), context.getSender());
+	}
+
+	@Test
+	public void testNoBody() throws TigaseStringprepException {
+		Packet packet = Packet.packetInstance(
+				new Element("presence", new String[]{"from", "to", "type"},
+							new String[]{"spammer@example.com/res1", "user@example.com", "subscribe"}));
+		PacketContext context = PacketContext.bind(packet, null);
+		try {
+			assertNull(context.getBody());
+			assertEquals(0, context.getBodyFingerprint());
+			assertEquals(BareJID.bareJIDInstanceNS("spammer@example.com"), context.getSender());
+		} finally {
+			context.release();
+		}
+		assertNull(context.getPacket());
+	}
+
+	private static Packet createMessage(String from, String body) throws TigaseStringprepException {
+		Element message = new Element("message", new String[]{"from", "to", "type"},
+									  new String[]{from, "user@example.com", "chat"});
+		message.addChild(new Element("body", body));
+		return Packet.packetInstance(message);
+	}
+}
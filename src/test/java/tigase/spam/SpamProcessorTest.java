@@ -0,0 +1,135 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.xmpp.XMPPResourceConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SpamProcessorTest {
+
+	@Test
+	public void testDetectSpam() {
+		TestFilter clean = new TestFilter("clean", true, 0, 0);
+		TestFilter spam = new TestFilter("spam", false, 0, 0);
+
+		assertNull(SpamProcessor.detectSpam(new SpamFilter[]{clean}, null, null, 0));
+		assertSame(spam, SpamProcessor.detectSpam(new SpamFilter[]{clean, spam, clean}, null, null, 0));
+		assertEquals(2, clean.filtered);
+		assertEquals(1, spam.filtered);
+	}
+
+	@Test
+	public void testScoring() {
+		TestFilter weak1 = new TestFilter("weak-1", true, 0.4, 0.5);
+		TestFilter weak2 = new TestFilter("weak-2", true, 0.4, 0.5);
+		TestFilter weak3 = new TestFilter("weak-3", true, 0.4, 0.5);
+
+		// scoring disabled, only verdicts are used
+		assertNull(SpamProcessor.detectSpam(new SpamFilter[]{weak1, weak2, weak3}, null, null, 0));
+		assertEquals(0, weak1.scored);
+
+		// filter which raised score above the threshold is reported
+		assertSame(weak3, SpamProcessor.detectSpam(new SpamFilter[]{weak1, weak2, weak3}, null, null, 1.0));
+		assertEquals(1, weak3.scored);
+
+		// scoring stops as soon as threshold is reached
+		TestFilter strong = new TestFilter("strong", true, 1.0, 1.0);
+		assertSame(strong, SpamProcessor.detectSpam(new SpamFilter[]{strong, weak1}, null, null, 1.0));
+		assertEquals(1, weak1.scored);
+	}
+
+	@Test
+	public void testScoringEarlyTermination() {
+		TestFilter none = new TestFilter("none", true, 0, 0.5);
+		TestFilter weak = new TestFilter("weak", true, 0.2, 0.5);
+		TestFilter expensive = new TestFilter("expensive", true, 0.5, 0.5);
+		TestFilter verdict = new TestFilter("verdict", true, 0, 0);
+
+		// 0 + 0.5 + 0.5 < 1.5, so none of remaining filters is able to push the score over the threshold
+		assertNull(SpamProcessor.detectSpam(new SpamFilter[]{none, weak, expensive, verdict}, null, null, 1.5));
+		assertEquals(1, none.scored);
+		assertEquals(0, weak.scored);
+		assertEquals(0, expensive.scored);
+		// filters which do not support scoring are still executed
+		assertEquals(1, verdict.filtered);
+
+		// borderline packet, expensive filter is executed
+		TestFilter high = new TestFilter("high", true, 0.5, 0.5);
+		assertSame(expensive,
+				   SpamProcessor.detectSpam(new SpamFilter[]{high, weak, expensive}, null, null, 1.2));
+		assertEquals(1, expensive.scored);
+
+		// low score of the first filter, expensive filter is skipped
+		assertNull(SpamProcessor.detectSpam(new SpamFilter[]{none, weak, expensive}, null, null, 1.2));
+		assertEquals(1, weak.scored);
+		assertEquals(1, expensive.scored);
+	}
+
+	@Test
+	public void testScoringWithVerdict() {
+		TestFilter weak = new TestFilter("weak", true, 0.2, 0.5);
+		TestFilter spam = new TestFilter("spam", false, 0, 0);
+
+		assertSame(spam, SpamProcessor.detectSpam(new SpamFilter[]{weak, spam}, null, null, 1.0));
+	}
+
+	private static class TestFilter
+			implements SpamFilter {
+
+		private final String id;
+		private final double maxScore;
+		private final boolean result;
+		private final double score;
+		private int filtered = 0;
+		private int scored = 0;
+
+		private TestFilter(String id, boolean result, double score, double maxScore) {
+			this.id = id;
+			this.result = result;
+			this.score = score;
+			this.maxScore = maxScore;
+		}
+
+		@Override
+		public boolean filter(Packet packet, XMPPResourceConnection session) {
+			filtered++;
+			return result;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public double getMaxScore() {
+			return maxScore;
+		}
+
+		@Override
+		public double score(Packet packet, XMPPResourceConnection session) {
+			scored++;
+			return score;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.cluster;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class SpamDetectionsBroadcasterTest {
+
+	private static final BareJID SPAMMER1 = BareJID.bareJIDInstanceNS("spammer1@example.com");
+	private static final BareJID SPAMMER2 = BareJID.bareJIDInstanceNS("spammer2@example.com");
+
+	@Test
+	public void testEncodeDecode() {
+		List<SpamDetection> detections = Arrays.asList(
+				new SpamDetection(SPAMMER1, 3, 0.30000000000000004, 1500000001000L, true),
+				new SpamDetection(SPAMMER2, 1, 0.1, 1500000000000L, false));
+		List<SpamDetection> decoded = SpamDetectionsBroadcaster.decode(SpamDetectionsBroadcaster.encode(detections));
+		assertEquals(2, decoded.size());
+		for (int i = 0; i < detections.size(); i++) {
+			assertEquals(detections.get(i).getJid(), decoded.get(i).getJid());
+			assertEquals(detections.get(i).getCounter(), decoded.get(i).getCounter());
+			assertEquals(detections.get(i).getProbability(), decoded.get(i).getProbability(), 0.0);
+			assertEquals(detections.get(i).getTimestamp(), decoded.get(i).getTimestamp());
+			assertEquals(detections.get(i).isLocalUser(), decoded.get(i).isLocalUser());
+		}
+	}
+
+	@Test
+	public void testCoalescing() {
+		FakeTransport transportA = new FakeTransport();
+		FakeTransport transportB = new FakeTransport();
+		transportA.connect(transportB);
+		List<SpamDetection> received = new CopyOnWriteArrayList<>();
+		SpamDetectionsBroadcaster nodeA = new SpamDetectionsBroadcaster(transportA, detection -> fail(), 100, 60000);
+		SpamDetectionsBroadcaster nodeB = new SpamDetectionsBroadcaster(transportB, received::add, 100, 60000);
+
+		nodeA.spamDetected(SPAMMER1, 0.1, false);
+		nodeA.spamDetected(SPAMMER2, 0.1, false);
+		nodeA.spamDetected(SPAMMER1, 0.2, true);
+		assertEquals(0, transportA.sent);
+		nodeA.flush();
+
+		assertEquals(1, transportA.sent);
+		assertEquals(2, received.size());
+		assertEquals(SPAMMER1, received.get(0).getJid());
+		assertEquals(2, received.get(0).getCounter());
+		assertEquals(0.3, received.get(0).getProbability(), 0.0001);
+		assertTrue(received.get(0).isLocalUser());
+		assertEquals(SPAMMER2, received.get(1).getJid());
+		assertEquals(1, received.get(1).getCounter());
+
+		nodeA.flush();
+		assertEquals(1, transportA.sent);
+		assertEquals(2, nodeB.getReceived());
+
+		nodeA.close();
+		nodeB.close();
+	}
+
+	@Test
+	public void testBatchSize() {
+		FakeTransport transportA = new FakeTransport();
+		FakeTransport transportB = new FakeTransport();
+		transportA.connect(transportB);
+		List<SpamDetection> received = new CopyOnWriteArrayList<>();
+		SpamDetectionsBroadcaster nodeA = new SpamDetectionsBroadcaster(transportA, detection -> {}, 2, 60000);
+		SpamDetectionsBroadcaster nodeB = new SpamDetectionsBroadcaster(transportB, received::add, 2, 60000);
+
+		nodeA.spamDetected(SPAMMER1, 0.1, false);
+		nodeA.spamDetected(SPAMMER1, 0.1, false);
+		assertEquals(0, transportA.sent);
+		nodeA.spamDetected(SPAMMER2, 0.1, false);
+		assertEquals(1, transportA.sent);
+		assertEquals(2, received.size());
+
+		nodeA.close();
+		nodeB.close();
+	}
+
+	@Test
+	public void testMaxDelay() throws InterruptedException {
+		FakeTransport transportA = new FakeTransport();
+		FakeTransport transportB = new FakeTransport();
+		transportA.connect(transportB);
+		List<SpamDetection> received = new CopyOnWriteArrayList<>();
+		SpamDetectionsBroadcaster nodeA = new SpamDetectionsBroadcaster(transportA, detection -> {}, 100, 50);
+		SpamDetectionsBroadcaster nodeB = new SpamDetectionsBroadcaster(transportB, received::add, 100, 50);
+
+		nodeA.spamDetected(SPAMMER1, 0.1, false);
+		for (int i = 0; i < 100 && received.isEmpty(); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, received.size());
+		assertEquals(1, transportA.sent);
+
+		nodeA.close();
+		nodeB.close();
+	}
+
+	private static class FakeTransport
+			implements SpamDetectionsTransport {
+
+		private final List<FakeTransport> nodes = new ArrayList<>();
+		private volatile Consumer<String> listener;
+		private volatile int sent = 0;
+
+		void connect(FakeTransport node) {
+			nodes.add(node);
+			node.nodes.add(this);
+		}
+
+		@Override
+		public void send(String payload) {
+			sent++;
+			for (FakeTransport node : nodes) {
+				Consumer<String> listener = node.listener;
+				if (listener != null) {
+					listener.accept(payload);
+				}
+			}
+		}
+
+		@Override
+		public void setListener(Consumer<String> listener) {
+			this.listener = listener;
+		}
+	}
+}
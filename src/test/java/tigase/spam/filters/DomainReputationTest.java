@@ -0,0 +1,69 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DomainReputationTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	@Test
+	public void testBlocking() {
+		DomainReputation reputation = new DomainReputation(60 * MINUTE, 15 * MINUTE);
+		long now = 1000000;
+		for (int i = 0; i < 9; i++) {
+			assertFalse(reputation.spamDetected("spam.example.com", 0.1, 1.0, now));
+		}
+		assertFalse(reputation.isBlocked("spam.example.com", now));
+		assertTrue(reputation.spamDetected("spam.example.com", 0.15, 1.0, now));
+		assertTrue(reputation.isBlocked("spam.example.com", now));
+		assertFalse(reputation.isBlocked("example.com", now));
+
+		// already blocked
+		assertFalse(reputation.spamDetected("spam.example.com", 0.1, 1.0, now));
+		assertFalse(reputation.isBlocked("spam.example.com", now + 16 * MINUTE));
+	}
+
+	@Test
+	public void testDecay() {
+		DomainReputation reputation = new DomainReputation(60 * MINUTE, 15 * MINUTE);
+		long now = 1000000;
+		reputation.spamDetected("spam.example.com", 0.8, 0, now);
+		assertEquals(0.4, reputation.getScore("spam.example.com", now + 60 * MINUTE), 0.0001);
+		assertFalse(reputation.spamDetected("spam.example.com", 0.5, 1.0, now + 60 * MINUTE));
+		assertFalse(reputation.isBlocked("spam.example.com", now + 60 * MINUTE));
+
+		reputation.cleanUp(0.01, now + 60 * MINUTE);
+		assertEquals(1, reputation.size());
+		reputation.cleanUp(0.01, now + 600 * MINUTE);
+		assertEquals(0, reputation.size());
+	}
+
+	@Test
+	public void testDisabledThreshold() {
+		DomainReputation reputation = new DomainReputation(60 * MINUTE, 15 * MINUTE);
+		long now = 1000000;
+		for (int i = 0; i < 100; i++) {
+			assertFalse(reputation.spamDetected("example.com", 0.1, 0, now));
+		}
+		assertFalse(reputation.isBlocked("example.com", now));
+	}
+}
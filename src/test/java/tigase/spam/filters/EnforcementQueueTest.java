@@ -0,0 +1,113 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.Test;
+import tigase.db.AuthRepository;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class EnforcementQueueTest {
+
+	private static final BareJID SPAMMER1 = BareJID.bareJIDInstanceNS("spammer1@example.com");
+	private static final BareJID SPAMMER2 = BareJID.bareJIDInstanceNS("spammer2@example.com");
+
+	@Test
+	public void testCoalescing() throws InterruptedException {
+		List<BareJID> disabled = new CopyOnWriteArrayList<>();
+		AuthRepository repository = createRepository(disabled, new AtomicInteger());
+		EnforcementQueue queue = new EnforcementQueue(100, 100, 3, 10);
+		for (int i = 0; i < 10; i++) {
+			queue.disableAccount(SPAMMER1, repository);
+			queue.disableAccount(SPAMMER2, repository);
+		}
+		queue.stop();
+
+		assertEquals(0, queue.size());
+		// coalescing is best effort, as worker may take a batch before all actions are requested
+		assertEquals(queue.getDisabledAccounts(), disabled.size());
+		assertEquals(2, disabled.stream().distinct().count());
+	}
+
+	@Test
+	public void testRetry() throws InterruptedException {
+		List<BareJID> disabled = new CopyOnWriteArrayList<>();
+		AtomicInteger failures = new AtomicInteger(2);
+		AuthRepository repository = createRepository(disabled, failures);
+		EnforcementQueue queue = new EnforcementQueue(100, 100, 3, 10);
+		queue.disableAccount(SPAMMER1, repository);
+		for (int i = 0; i < 100 && disabled.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		queue.stop();
+
+		assertEquals(1, disabled.size());
+		assertEquals(0, failures.get());
+		assertEquals(1, queue.getDisabledAccounts());
+		assertEquals(0, queue.getFailedAccounts());
+	}
+
+	@Test
+	public void testMaxRetries() throws InterruptedException {
+		List<BareJID> disabled = new CopyOnWriteArrayList<>();
+		AtomicInteger failures = new AtomicInteger(100);
+		AuthRepository repository = createRepository(disabled, failures);
+		EnforcementQueue queue = new EnforcementQueue(100, 100, 2, 10);
+		queue.disableAccount(SPAMMER1, repository);
+		for (int i = 0; i < 100 && queue.getFailedAccounts() == 0; i++) {
+			Thread.sleep(10);
+		}
+		queue.stop();
+
+		assertEquals(0, disabled.size());
+		assertEquals(97, failures.get());
+		assertEquals(1, queue.getFailedAccounts());
+	}
+
+	@Test
+	public void testCallerRuns() throws InterruptedException {
+		List<BareJID> disabled = new CopyOnWriteArrayList<>();
+		AuthRepository repository = createRepository(disabled, new AtomicInteger());
+		EnforcementQueue queue = new EnforcementQueue(0, 100, 2, 10);
+		queue.disableAccount(SPAMMER1, repository);
+		assertEquals(1, disabled.size());
+		assertEquals(1, queue.getCallerRuns());
+		queue.stop();
+	}
+
+	private static AuthRepository createRepository(List<BareJID> disabled, AtomicInteger failures) {
+		return (AuthRepository) Proxy.newProxyInstance(AuthRepository.class.getClassLoader(),
+													   new Class[]{AuthRepository.class}, (proxy, method, args) -> {
+					if ("setAccountStatus".equals(method.getName())) {
+						if (failures.getAndUpdate(value -> Math.max(0, value - 1)) > 0) {
+							throw new TigaseDBException("Repository unavailable");
+						}
+						disabled.add((BareJID) args[0]);
+						return null;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
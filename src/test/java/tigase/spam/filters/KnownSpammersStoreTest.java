@@ -0,0 +1,206 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class KnownSpammersStoreTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("known-spammers");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testJournalAndSnapshot() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		KnownSpammersStore store = new KnownSpammersStore(file);
+		store.append(entry("spammer1@example.com", 1, 1000, 0.1, false));
+		store.append(entry("spammer2@example.com", 1, 2000, 0.1, true));
+		store.append(entry("spammer1@example.com", 2, 3000, 0.2, false));
+		store.close();
+
+		Map<String, SpammersTable.Entry> loaded = load(file);
+		assertEquals(2, loaded.size());
+		assertEquals(2, loaded.get("spammer1@example.com").getCounter());
+		assertEquals(3000, loaded.get("spammer1@example.com").getLastSpamTimestamp());
+		assertEquals(0.2, loaded.get("spammer1@example.com").getProbability(), 0.0001);
+		assertTrue(loaded.get("spammer2@example.com").isLocalUser());
+
+		store = new KnownSpammersStore(file);
+		store.snapshot(loaded.values());
+		store.append(entry("spammer3@example.com", 1, 4000, 0.1, false));
+		store.close();
+		assertEquals(0, Files.size(dir.resolve("spammers.bin.journal")) - 8 - recordSize("spammer3@example.com"));
+
+		loaded = load(file);
+		assertEquals(3, loaded.size());
+		assertEquals(2, loaded.get("spammer1@example.com").getCounter());
+		assertFalse(loaded.get("spammer3@example.com").isLocalUser());
+	}
+
+	@Test
+	public void testTruncatedJournal() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		KnownSpammersStore store = new KnownSpammersStore(file);
+		store.append(entry("spammer1@example.com", 1, 1000, 0.1, false));
+		store.append(entry("spammer2@example.com", 1, 2000, 0.1, false));
+		store.close();
+
+		Path journal = dir.resolve("spammers.bin.journal");
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+
+		Map<String, SpammersTable.Entry> loaded = load(file);
+		assertEquals(Arrays.asList("spammer1@example.com"), Arrays.asList(loaded.keySet().toArray()));
+
+		store = new KnownSpammersStore(file);
+		store.load(record -> {});
+		store.append(entry("spammer3@example.com", 1, 3000, 0.1, false));
+		store.close();
+
+		loaded = load(file);
+		assertEquals(Arrays.asList("spammer1@example.com", "spammer3@example.com"),
+					 Arrays.asList(loaded.keySet().toArray()));
+	}
+
+	@Test
+	public void testAppendDuringLoad() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		KnownSpammersStore store = new KnownSpammersStore(file);
+		store.append(entry("spammer1@example.com", 1, 1000, 0.1, false));
+		store.append(entry("spammer2@example.com", 1, 2000, 0.1, false));
+		store.close();
+
+		Path journal = dir.resolve("spammers.bin.journal");
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+
+		KnownSpammersStore loadingStore = new KnownSpammersStore(file);
+		List<SpammersTable.Entry> loadedRecords = new ArrayList<>();
+		loadingStore.load(record -> {
+			loadedRecords.add(record);
+			try {
+				// detections made while loading are neither loaded back nor appended after a partial record
+				loadingStore.append(entry("spammer3@example.com", 1, 3000, 0.1, false));
+				loadingStore.flush();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		});
+		loadingStore.close();
+		assertEquals(1, loadedRecords.size());
+
+		Map<String, SpammersTable.Entry> loaded = load(file);
+		assertEquals(Arrays.asList("spammer1@example.com", "spammer3@example.com"),
+					 Arrays.asList(loaded.keySet().toArray()));
+	}
+
+	private static Map<String, SpammersTable.Entry> load(Path file) throws IOException {
+		Map<String, SpammersTable.Entry> records = new LinkedHashMap<>();
+		new KnownSpammersStore(file).load(record -> records.put(record.getJid().toString(), record));
+		return records;
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnsupportedVersion() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+			out.writeInt(0x54534B53);
+			out.writeInt(2);
+		}
+		load(file);
+	}
+
+	@Test
+	public void testDiscardAfterFailedLoad() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+			out.writeInt(0x54534B53);
+			out.writeInt(2);
+		}
+		KnownSpammersStore store = new KnownSpammersStore(file);
+		try {
+			store.load(record -> {});
+			fail("Loading of unsupported version should fail");
+		} catch (IOException ex) {
+			// expected
+		}
+		store.discard();
+		assertFalse(Files.exists(file));
+		assertTrue(Files.exists(dir.resolve("spammers.bin.failed")));
+
+		store.snapshot(Collections.singletonList(entry("spammer1@example.com", 1, 1000, 0.1, false)));
+		store.append(entry("spammer2@example.com", 1, 2000, 0.1, false));
+		store.close();
+
+		Map<String, SpammersTable.Entry> loaded = load(file);
+		assertEquals(2, loaded.size());
+		assertEquals(1000, loaded.get("spammer1@example.com").getLastSpamTimestamp());
+	}
+
+	@Test
+	public void testRecordWithoutJid() throws IOException {
+		Path file = dir.resolve("spammers.bin");
+		KnownSpammersStore store = new KnownSpammersStore(file);
+		store.append(new SpammersTable.Entry(123, null, 1, 1000, 0.1, false));
+		store.close();
+
+		List<SpammersTable.Entry> loaded = new ArrayList<>();
+		new KnownSpammersStore(file).load(loaded::add);
+		assertEquals(1, loaded.size());
+		assertEquals(123, loaded.get(0).getFingerprint());
+		assertNull(loaded.get(0).getJid());
+	}
+
+	private static SpammersTable.Entry entry(String jid, long counter, long timestamp, double probability,
+											 boolean localUser) {
+		return new SpammersTable.Entry(SpammersTable.fingerprint(jid), BareJID.bareJIDInstanceNS(jid), counter,
+									   timestamp, probability, localUser);
+	}
+
+	private static int recordSize(String jid) {
+		return 8 + 2 + jid.length() + 8 + 8 + 8 + 1;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.spam.util.NaiveBayesModel;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MessageFilterBayesTest {
+
+	private static final String[] HAM = {"see you tomorrow at the office", "thanks for the photos from holidays",
+										 "are we going for lunch today", "please call me when you are back home"};
+	private static final String[] SPAM = {"cheap pills available buy now discount", "win free prize click link now",
+										  "buy cheap watches discount offer now", "free casino bonus click now"};
+
+	private MessageFilterBayes filter;
+
+	@Before
+	public void setUp() throws Exception {
+		filter = new MessageFilterBayes();
+		set("recentMessages", 10);
+		filter.beanConfigurationChanged(Collections.singleton("recentMessages"));
+		filter.initialize();
+	}
+
+	@After
+	public void tearDown() {
+		filter.beforeUnregister();
+	}
+
+	@Test
+	public void testDefaultSettingsClassify() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			assertTrue(filter.filterPacket(message("user" + i + "@example.com", HAM[i % HAM.length]), null));
+		}
+		MessageFilterSameLongBody detector = new MessageFilterSameLongBody();
+		for (int i = 0; i < 200; i++) {
+			filter.identifiedSpam(message("spammer" + i + "@example-ext", SPAM[i % SPAM.length]), null, detector);
+		}
+		NaiveBayesModel model = waitForTraining(190, 200);
+
+		assertFalse(filter.filterPacket(message("spammer@example-ext", "cheap pills click now"), null));
+		assertTrue(filter.filterPacket(message("user@example.com", "see you at lunch tomorrow"), null));
+		assertEquals(200, model.getSpamTexts());
+	}
+
+	@Test
+	public void testNotTrainedWithOtherDetections() throws Exception {
+		RateLimitFilter rateLimit = new RateLimitFilter();
+		MessageFilterSameLongBody detector = new MessageFilterSameLongBody();
+		filter.identifiedSpam(message("user1@example.com", HAM[0]), null, rateLimit);
+		filter.identifiedSpam(message("spammer@example-ext", SPAM[0]), null, detector);
+		NaiveBayesModel model = waitForTraining(0, 1);
+		assertEquals(1, model.getSpamTexts());
+	}
+
+	private NaiveBayesModel waitForTraining(long hamTexts, long spamTexts) throws Exception {
+		Field field = MessageFilterBayes.class.getDeclaredField("model");
+		field.setAccessible(true);
+		NaiveBayesModel model = (NaiveBayesModel) field.get(filter);
+		for (int i = 0; i < 500 && (model.getHamTexts() < hamTexts || model.getSpamTexts() < spamTexts); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(hamTexts, model.getHamTexts());
+		assertEquals(spamTexts, model.getSpamTexts());
+		return model;
+	}
+
+	private void set(String name, Object value) throws Exception {
+		Field field = MessageFilterBayes.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(filter, value);
+	}
+
+	private static Packet message(String from, String body) throws TigaseStringprepException {
+		Element message = new Element("message", new String[]{"from", "to", "type"},
+									  new String[]{from, "user0@example.com", "chat"});
+		message.addChild(new Element("body", body));
+		return Packet.packetInstance(message);
+	}
+}
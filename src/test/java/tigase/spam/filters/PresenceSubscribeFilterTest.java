@@ -22,6 +22,8 @@ import org.junit.Before;
 import org.junit.Test;
 import tigase.server.Packet;
 import tigase.server.Presence;
+import tigase.spam.PacketContext;
+import tigase.spam.util.RateLimiter;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.NotAuthorizedException;
@@ -101,12 +103,51 @@ public class PresenceSubscribeFilterTest extends ProcessorTestCase {
 		assertEquals("test 1 after reset",true, filter.filterPacket(packet, session));
 	}
 
+	@Test
+	public void testRemoteDomainFlood() throws TigaseStringprepException, NotAuthorizedException {
+		setDomainLimit(100);
+		JID targetJid = JID.jidInstance(UUID.randomUUID().toString(), "example.com");
+		XMPPResourceConnection session = this.getSession(targetJid, targetJid);
+
+		for (int i=0; i<150; i++) {
+			JID spammerJid = JID.jidInstance(UUID.randomUUID().toString(), "example-ext");
+			Packet packet = createSubscriptionRequest(spammerJid, targetJid);
+			assertEquals("test no: " + i, i<100, filter.filterPacket(packet, session));
+			// exceeding limit of a domain does not make this sender a spammer
+			assertEquals("test no: " + i, i<100, PacketContext.of(packet, session).isSenderBlamed());
+		}
+		assertEquals(100, getCounters().size());
+
+		JID otherJid = JID.jidInstance(UUID.randomUUID().toString(), "other-ext");
+		assertEquals(true, filter.filterPacket(createSubscriptionRequest(otherJid, targetJid), session));
+	}
+
+	private Map<BareJID, RateLimiter> getCounters() {
+		try {
+			Field f = PresenceSubscribeFilter.class.getDeclaredField("counters");
+			f.setAccessible(true);
+			return (Map<BareJID, RateLimiter>) f.get(filter);
+		} catch (ReflectiveOperationException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private void setDomainLimit(int limit) {
+		try {
+			Field f = PresenceSubscribeFilter.class.getDeclaredField("numberOfAllowedDomainRequests");
+			f.setAccessible(true);
+			f.set(filter, limit);
+		} catch (ReflectiveOperationException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 	private void cleanUpCounters() {
 		try {
 			Field f = PresenceSubscribeFilter.class
 					.getDeclaredField("counters");
 			f.setAccessible(true);
-			Map<BareJID, PresenceSubscribeFilter.Counter> counters = (Map<BareJID, PresenceSubscribeFilter.Counter>) f
+			Map<BareJID, RateLimiter> counters = (Map<BareJID, RateLimiter>) f
 					.get(filter);
 			counters.clear();
 		} catch (Throwable ex) {}
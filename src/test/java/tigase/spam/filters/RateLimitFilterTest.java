@@ -0,0 +1,153 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.Test;
+import tigase.server.Message;
+import tigase.server.Packet;
+import tigase.spam.PacketContext;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.impl.roster.RosterFactory;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RateLimitFilterTest extends ProcessorTestCase {
+
+	@Test
+	public void testParseRule() {
+		RateLimitFilter.Rule rule = RateLimitFilter.Rule.parse(
+				"element=message, type=chat, contact=false, scope=jid, limit=10, window=60", 0);
+		assertEquals("element=message,type=chat,contact=false,scope=jid,limit=10,window=60", rule.toString());
+		assertTrue(rule.appliesTo("message", StanzaType.chat));
+		assertFalse(rule.appliesTo("message", StanzaType.groupchat));
+		assertFalse(rule.appliesTo("presence", StanzaType.chat));
+
+		rule = RateLimitFilter.Rule.parse("element=iq,type=get,xmlns=vcard-temp,scope=domain,limit=100,window=1", 1);
+		assertEquals("element=iq,type=get,xmlns=vcard-temp,scope=domain,limit=100,window=1", rule.toString());
+
+		rule = RateLimitFilter.Rule.parse("element=*,scope=session,limit=0,window=1", 2);
+		assertTrue(rule.appliesTo("presence", null));
+		assertTrue(rule.appliesTo("iq", StanzaType.set));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRuleWithoutLimit() {
+		RateLimitFilter.Rule.parse("element=message,scope=jid,window=60", 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRuleWithUnknownScope() {
+		RateLimitFilter.Rule.parse("element=message,scope=user,limit=10,window=60", 0);
+	}
+
+	@Test
+	public void testCompile() {
+		RateLimitFilter.Rule[] rules = RateLimitFilter.compile(
+				new String[]{"element=message,type=chat,scope=jid,limit=10,window=60", "element=message,limit=10",
+							 "element=message,xmlns=jabber:x:conference,scope=jid,limit=5,window=60"});
+		assertEquals(2, rules.length);
+		assertEquals("element=message,xmlns=jabber:x:conference,scope=jid,limit=5,window=60", rules[1].toString());
+	}
+
+	@Test
+	public void testAppliesTo() {
+		RateLimitFilter filter = new RateLimitFilter();
+		assertTrue(filter.appliesTo("message", StanzaType.chat));
+		// rules are selected when packet is filtered, so that changed rules are applied to any stanza
+		assertTrue(filter.appliesTo("presence", null));
+	}
+
+	@Test
+	public void testRuleChangedAtRuntime() throws Exception {
+		RateLimitFilter filter = new RateLimitFilter();
+		setRules(filter, "element=presence,type=subscribe,scope=jid,limit=0,window=1");
+		Packet presence = Packet.packetInstance(
+				new Element("presence", new String[]{"from", "to", "type"},
+							new String[]{"user2@example-ext", "user1@example.com", "subscribe"}));
+		assertTrue(filter.appliesTo(presence.getElemName(), presence.getType()));
+		assertFalse(filter.filterPacket(presence, null));
+		assertTrue(filter.filterPacket(createMessage(JID.jidInstance("user2@example-ext"),
+													 JID.jidInstance("user1@example.com")), null));
+	}
+
+	@Test
+	public void testDomainLimitDoesNotBlameSender() throws Exception {
+		RateLimitFilter filter = new RateLimitFilter();
+		setRules(filter, "element=message,type=chat,scope=domain,limit=10,window=1");
+		JID userJid = JID.jidInstance("user1@example.com");
+		XMPPResourceConnection session = getSession(userJid, userJid);
+
+		for (int i = 0; i < 11; i++) {
+			Packet packet = createMessage(JID.jidInstance("sender" + i + "@example-ext"), userJid);
+			assertEquals("message no: " + i, i < 10, filter.filterPacket(packet, session));
+			assertEquals("message no: " + i, i < 10, PacketContext.of(packet, session).isSenderBlamed());
+		}
+	}
+
+	private static void setRules(RateLimitFilter filter, String... rules) throws Exception {
+		Field field = RateLimitFilter.class.getDeclaredField("rules");
+		field.setAccessible(true);
+		field.set(filter, rules);
+		filter.beanConfigurationChanged(Collections.singleton("rules"));
+	}
+
+	@Test
+	public void testFilterPacket() throws Exception {
+		RateLimitFilter filter = new RateLimitFilter();
+		JID userJid = JID.jidInstance("user1@example.com");
+		XMPPResourceConnection session = getSession(userJid, userJid);
+
+		JID strangerJid = JID.jidInstance("stranger@example-ext");
+		for (int i = 0; i < 11; i++) {
+			assertEquals("stranger message no: " + i, i < 10,
+						 filter.filterPacket(createMessage(strangerJid, userJid), session));
+		}
+
+		// roster item created by a subscription request does not make a sender a contact
+		RosterAbstract roster = RosterFactory.getRosterImplementation(true);
+		JID requesterJid = JID.jidInstance("requester@example-ext");
+		roster.addBuddy(session, requesterJid, null, null, null);
+		roster.setBuddySubscription(session, RosterAbstract.SubscriptionType.none_pending_in, requesterJid);
+		for (int i = 0; i < 11; i++) {
+			assertEquals("requester message no: " + i, i < 10,
+						 filter.filterPacket(createMessage(requesterJid, userJid), session));
+		}
+
+		JID contactJid = JID.jidInstance("contact@example-ext");
+		roster.addBuddy(session, contactJid, null, null, null);
+		roster.setBuddySubscription(session, RosterAbstract.SubscriptionType.both, contactJid);
+		for (int i = 0; i < 20; i++) {
+			assertTrue("contact message no: " + i, filter.filterPacket(createMessage(contactJid, userJid), session));
+		}
+	}
+
+	private static Packet createMessage(JID from, JID to) {
+		Message message = new Message(
+				new Element("message", new String[]{"type"}, new String[]{StanzaType.chat.name()}), from, to);
+		message.setPacketFrom(from);
+		return message;
+	}
+}
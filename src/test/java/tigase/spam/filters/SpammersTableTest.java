@@ -0,0 +1,105 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.filters;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpammersTableTest {
+
+	@Test
+	public void testUpdate() {
+		SpammersTable table = new SpammersTable();
+		BareJID jid = BareJID.bareJIDInstanceNS("spammer@example.com");
+		long fingerprint = SpammersTable.fingerprint(jid);
+		assertEquals(Long.MIN_VALUE, table.getLastSpamTimestamp(fingerprint));
+		assertNull(table.get(fingerprint));
+
+		table.update(fingerprint, jid, 1, 0.1, 1000, false);
+		SpammersTable.Entry entry = table.update(fingerprint, jid, 1, 0.2, 500, true);
+		assertEquals(2, entry.getCounter());
+		assertEquals(0.3, entry.getProbability(), 0.0001);
+		assertEquals(1000, entry.getLastSpamTimestamp());
+		assertTrue(entry.isLocalUser());
+		assertEquals(jid, entry.getJid());
+		assertEquals(1000, table.getLastSpamTimestamp(fingerprint));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void testRemoteJids() {
+		SpammersTable table = new SpammersTable();
+		BareJID jid = BareJID.bareJIDInstanceNS("spammer@example.com");
+		long fingerprint = SpammersTable.fingerprint(jid);
+		assertNull(table.update(fingerprint, jid, 1, 0.1, 1000, false).getJid());
+
+		table.setKeepRemoteJids(true);
+		assertEquals(jid, table.update(fingerprint, jid, 1, 0.1, 1000, false).getJid());
+	}
+
+	@Test
+	public void testManyEntries() {
+		SpammersTable table = new SpammersTable();
+		for (int i = 0; i < 100000; i++) {
+			table.update(SpammersTable.fingerprint("spammer-" + i + "@example.com"), null, 1, 0.1, i, false);
+		}
+		assertEquals(100000, table.size());
+		for (int i = 0; i < 100000; i++) {
+			assertEquals(i, table.getLastSpamTimestamp(SpammersTable.fingerprint("spammer-" + i + "@example.com")));
+		}
+
+		assertEquals(50000, table.removeIf(entry -> entry.getLastSpamTimestamp() % 2 == 0));
+		assertEquals(50000, table.size());
+		for (int i = 0; i < 100000; i++) {
+			long timestamp = table.getLastSpamTimestamp(SpammersTable.fingerprint("spammer-" + i + "@example.com"));
+			assertEquals(i % 2 == 0 ? Long.MIN_VALUE : i, timestamp);
+		}
+
+		List<SpammersTable.Entry> entries = new ArrayList<>();
+		table.forEach(entries::add);
+		assertEquals(50000, entries.size());
+	}
+
+	@Test
+	public void testRemoveSingleEntry() {
+		SpammersTable table = new SpammersTable();
+		for (int i = 0; i < 10000; i++) {
+			SpammersTable.Entry entry = table.update(SpammersTable.fingerprint("spammer-" + i + "@example.com"),
+													 null, 1, 0.1, i, false);
+			assertTrue(entry.isCreated());
+		}
+		for (int i = 0; i < 10000; i += 3) {
+			long fingerprint = SpammersTable.fingerprint("spammer-" + i + "@example.com");
+			assertNotNull(table.removeIf(fingerprint, entry -> false));
+			assertNull(table.removeIf(fingerprint, entry -> true));
+			assertNull(table.removeIf(fingerprint, entry -> true));
+		}
+		assertEquals(10000 - 3334, table.size());
+		for (int i = 0; i < 10000; i++) {
+			long timestamp = table.getLastSpamTimestamp(SpammersTable.fingerprint("spammer-" + i + "@example.com"));
+			assertEquals(i % 3 == 0 ? Long.MIN_VALUE : i, timestamp);
+		}
+		assertFalse(table.update(SpammersTable.fingerprint("spammer-1@example.com"), null, 1, 0.1, 1, false)
+							.isCreated());
+	}
+}
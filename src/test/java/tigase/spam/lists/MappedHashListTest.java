@@ -0,0 +1,123 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.lists;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedHashListTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("spam-lists");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Path file : Files.newDirectoryStream(dir)) {
+			Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testCompileTextFile() throws IOException {
+		Path input = dir.resolve("deny.txt");
+		Files.write(input, Arrays.asList("# known spammers", "", "Spammer@Example.com", " spam.example.net ",
+										 "spammer@example.com"), StandardCharsets.UTF_8);
+		Path output = dir.resolve("deny.bin");
+		assertEquals(2, ListCompiler.compile(input, output));
+
+		MappedHashList list = MappedHashList.open(output);
+		assertEquals(2, list.size());
+		assertTrue(list.contains("spammer@example.com"));
+		assertTrue(list.contains("spam.example.net"));
+		assertFalse(list.contains("example.com"));
+		assertFalse(list.contains("# known spammers"));
+	}
+
+	@Test
+	public void testLargeList() throws IOException {
+		List<String> entries = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			entries.add("user-" + i + "@example.com");
+		}
+		Path output = dir.resolve("large.bin");
+		assertEquals(entries.size(), ListCompiler.compile(entries, output));
+
+		MappedHashList list = MappedHashList.open(output);
+		assertEquals(entries.size(), list.size());
+		for (String entry : entries) {
+			assertTrue(list.contains(entry));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (list.contains("other-" + i + "@example.com")) {
+				falsePositives++;
+			}
+		}
+		assertEquals(0, falsePositives);
+		assertTrue(list.getMappedSize() <= MappedHashList.HEADER_SIZE + 4L * 8 * entries.size());
+	}
+
+	@Test
+	public void testReplacingMappedFile() throws IOException {
+		Path output = dir.resolve("allow.bin");
+		ListCompiler.compile(Arrays.asList("bot@example.com"), output);
+		MappedHashList oldList = MappedHashList.open(output);
+
+		ListCompiler.compile(Arrays.asList("other-bot@example.com"), output);
+		MappedHashList newList = MappedHashList.open(output);
+
+		assertTrue(oldList.contains("bot@example.com"));
+		assertFalse(newList.contains("bot@example.com"));
+		assertTrue(newList.contains("other-bot@example.com"));
+	}
+
+	@Test
+	public void testEmptyList() throws IOException {
+		Path output = dir.resolve("empty.bin");
+		assertEquals(0, ListCompiler.compile(new ArrayList<>(), output));
+		assertFalse(MappedHashList.open(output).contains("example.com"));
+	}
+
+	@Test
+	public void testInvalidFile() throws IOException {
+		Path output = dir.resolve("invalid.bin");
+		Files.write(output, "example.com\nexample.net\nexample.org\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			MappedHashList.open(output);
+			fail("Invalid file was opened");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+}
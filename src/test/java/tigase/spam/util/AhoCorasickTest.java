@@ -0,0 +1,70 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AhoCorasickTest {
+
+	@Test
+	public void testFind() {
+		AhoCorasick automaton = new AhoCorasick(Arrays.asList("he", "she", "his", "hers", "spam.example.com"));
+		assertEquals(-1, automaton.find("nothing to see"));
+		assertEquals(0, automaton.find("ahe"));
+		// "she" ends before "he" could be reported on its own
+		assertEquals(1, automaton.find("ushers"));
+		assertEquals(2, automaton.find("this"));
+		assertEquals(4, automaton.find("Visit HTTPS://SPAM.example.com/offer now!"));
+		assertEquals(-1, automaton.find("spam.example.org"));
+	}
+
+	@Test
+	public void testFailureLinks() {
+		AhoCorasick automaton = new AhoCorasick(Arrays.asList("abcd", "bce", "cx"));
+		assertEquals(1, automaton.find("abce"));
+		assertEquals(2, automaton.find("abcx"));
+		assertEquals(0, automaton.find("ababcd"));
+		assertEquals(-1, automaton.find("abcbcabd"));
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(-1, AhoCorasick.EMPTY.find("some text"));
+		assertEquals(-1, new AhoCorasick(Collections.singletonList("")).find("some text"));
+		assertEquals(1, AhoCorasick.EMPTY.getStatesCount());
+	}
+
+	@Test
+	public void testManyPatterns() {
+		List<String> patterns = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			patterns.add("+48 600 " + (100000 + i));
+		}
+		AhoCorasick automaton = new AhoCorasick(patterns);
+		assertEquals(5000, automaton.getPatternsCount());
+		assertEquals(4321, automaton.find("call me at +48 600 104321 today"));
+		assertEquals(-1, automaton.find("call me at +48 600 204321 today"));
+	}
+}
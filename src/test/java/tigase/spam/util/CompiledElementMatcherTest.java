@@ -0,0 +1,65 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompiledElementMatcherTest {
+
+	private static final int NONE = Integer.MAX_VALUE;
+
+	@Test
+	public void testChildRules() {
+		CompiledElementMatcher matcher = new CompiledElementMatcher(
+				new String[]{"/message/fallback[urn:xmpp:fallback:0]", "/message/encrypted[eu.siacs.conversations.axolotl]",
+							 "/message/openpgp[urn:xmpp:openpgp:0]", "/message/encrypted[urn:xmpp:omemo:1]"});
+		assertEquals(4, matcher.getRulesCount());
+
+		assertEquals(0, matcher.match("message", "fallback", "urn:xmpp:fallback:0", NONE));
+		assertEquals(1, matcher.match("message", "encrypted", "eu.siacs.conversations.axolotl", NONE));
+		assertEquals(3, matcher.match("message", "encrypted", "urn:xmpp:omemo:1", NONE));
+		assertEquals(NONE, matcher.match("message", "encrypted", "urn:xmpp:omemo:2", NONE));
+		assertEquals(NONE, matcher.match("message", "body", null, NONE));
+		assertEquals(NONE, matcher.match("presence", "openpgp", "urn:xmpp:openpgp:0", NONE));
+	}
+
+	@Test
+	public void testOrderOfRules() {
+		CompiledElementMatcher matcher = new CompiledElementMatcher(
+				new String[]{"-/message/encrypted[urn:xmpp:omemo:1]", "/*/*[urn:xmpp:omemo:1]", "/message/encrypted"});
+		assertEquals(3, matcher.getRulesCount());
+
+		assertEquals(0, matcher.match("message", "encrypted", "urn:xmpp:omemo:1", NONE));
+		assertEquals(1, matcher.match("iq", "encrypted", "urn:xmpp:omemo:1", NONE));
+		assertEquals(2, matcher.match("message", "encrypted", "eu.siacs.conversations.axolotl", NONE));
+		// rule matched by an earlier child is not replaced by a later rule
+		assertEquals(1, matcher.match("message", "encrypted", "eu.siacs.conversations.axolotl", 1));
+
+		assertEquals(false, matcher.getValue(0));
+		assertEquals(true, matcher.getValue(1));
+	}
+
+	@Test
+	public void testInvalidRules() {
+		CompiledElementMatcher matcher = new CompiledElementMatcher(new String[]{"", "/message/body[urn:test", null});
+		assertEquals(0, matcher.getRulesCount());
+		assertEquals(true, matcher.isEmpty());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		for (long value : new long[]{0, 1, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(LatencyHistogram.lowerBound(index) <= value);
+			if (value < Long.MAX_VALUE / 2) {
+				assertTrue(LatencyHistogram.lowerBound(index + 1) > value);
+			}
+		}
+	}
+
+	@Test
+	public void testQuantiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getTotal());
+		assertEquals(500_000, snapshot.getQuantile(0.5), 500_000 * 0.125);
+		assertEquals(990_000, snapshot.getQuantile(0.99), 990_000 * 0.125);
+		assertEquals(999_000, snapshot.getQuantile(0.999), 999_000 * 0.125);
+	}
+
+	@Test
+	public void testInterval() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 100; i++) {
+			histogram.record(100);
+		}
+		LatencyHistogram.Snapshot first = histogram.snapshot();
+		for (int i = 0; i < 100; i++) {
+			histogram.record(1_000_000);
+		}
+		LatencyHistogram.Snapshot interval = histogram.snapshot().minus(first);
+		assertEquals(100, interval.getTotal());
+		assertEquals(1_000_000, interval.getQuantile(0.5), 1_000_000 * 0.125);
+		assertEquals(0, LatencyHistogram.Snapshot.EMPTY.getQuantile(0.5));
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongCounterTableTest {
+
+	@Test
+	public void testIncrementDistinct() {
+		LongCounterTable table = new LongCounterTable(1000, Integer.MAX_VALUE);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, table.incrementDistinct(12345L, 1));
+		}
+		assertEquals(2, table.incrementDistinct(12345L, 2));
+		assertEquals(2, table.incrementDistinct(12345L, 1));
+		assertEquals(1, table.incrementDistinct(54321L, 1));
+		assertEquals(2, table.get(12345L));
+
+		table.block(12345L, System.currentTimeMillis() + 60 * 1000);
+		assertEquals(LongCounterTable.BLOCKED, table.incrementDistinct(12345L, 3));
+
+		// markers are purged together with counters
+		for (long key = 1; key <= 64 * 1000; key++) {
+			table.incrementDistinct(XXHash64.mix(key), 1);
+		}
+		assertTrue(table.size() <= 2 * 1000 + 1);
+	}
+
+	@Test
+	public void testIncrement() {
+		LongCounterTable table = new LongCounterTable(1000, 10);
+		for (int i = 1; i <= 15; i++) {
+			assertEquals(i, table.increment(12345L));
+		}
+		assertEquals(1, table.increment(0L));
+		assertEquals(2, table.increment(0L));
+		assertEquals(15, table.get(12345L));
+		assertEquals(0, table.get(54321L));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testPurge() {
+		LongCounterTable table = new LongCounterTable(1000, 10);
+		long spam = XXHash64.hash("spam", 0);
+		for (int i = 0; i < 20; i++) {
+			table.increment(spam);
+		}
+		for (int i = 0; i < 100000; i++) {
+			table.increment(XXHash64.mix(i));
+		}
+		assertTrue("table size exceeded limit: " + table.size(), table.size() <= 2000);
+		assertEquals(20, table.get(spam));
+	}
+
+	@Test
+	public void testBlock() {
+		LongCounterTable table = new LongCounterTable(1000, 10);
+		long now = System.currentTimeMillis();
+		table.increment(12345L);
+		table.block(12345L, now + 60 * 1000);
+		table.block(54321L, now + 60 * 1000);
+		assertEquals(LongCounterTable.BLOCKED, table.increment(12345L));
+		assertEquals(LongCounterTable.BLOCKED, table.increment(54321L));
+		assertTrue(table.isBlocked(54321L));
+
+		// expired block restarts counter
+		table.block(12345L, now - 2 * 60 * 1000);
+		assertEquals(0, table.get(12345L));
+		assertEquals(1, table.increment(12345L));
+	}
+
+	@Test
+	public void testBlockedKeysAreNotPurged() {
+		LongCounterTable table = new LongCounterTable(1000, 10);
+		long spam = XXHash64.hash("spam", 0);
+		table.block(spam, System.currentTimeMillis() + 60 * 60 * 1000);
+		for (int i = 0; i < 100000; i++) {
+			table.increment(XXHash64.mix(i));
+		}
+		assertTrue("table size exceeded limit: " + table.size(), table.size() <= 2000);
+		assertTrue(table.isBlocked(spam));
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NaiveBayesModelTest {
+
+	private static final String[] HAM = {"Hi, are we still meeting for lunch tomorrow?",
+										 "I have sent you the report, please check it", "See you at the office",
+										 "Could you call me when you are back home?",
+										 "Thanks for the photos from the trip!"};
+	private static final String[] SPAM = {"Cheap pills online, buy now at http://pills.example.com",
+										  "Win a free iPhone now! Click http://win.example.com",
+										  "Buy cheap watches now, best price http://watches.example.com",
+										  "Free bitcoin giveaway, click now http://coins.example.com",
+										  "Best price for cheap pills, buy now!"};
+
+	@Test
+	public void testTokenize() {
+		int[] features = new int[16];
+		int count = NaiveBayesModel.tokenize("Buy NOW, buy now! a", features, 0xFFFF);
+		// "a" is too short, other tokens are case-insensitive
+		assertEquals(2, count);
+		assertTrue(features[0] < features[1]);
+
+		count = NaiveBayesModel.tokenize("one two three four five", new int[3], 0xFFFF);
+		assertEquals(3, count);
+	}
+
+	@Test
+	public void testClassification() {
+		NaiveBayesModel model = createModel();
+		int[] features = new int[64];
+		assertTrue(model.spamProbability("Buy cheap pills now http://example.com", features, 2) > 0.9);
+		assertTrue(model.spamProbability("Are we meeting at the office tomorrow?", features, 2) < 0.1);
+		assertEquals(0.5, model.spamProbability("Lorem ipsum dolor sit amet", features, 2), 0.0001);
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		NaiveBayesModel model = createModel();
+		Path file = Files.createTempFile("bayes", ".bin");
+		try {
+			model.save(file);
+			NaiveBayesModel loaded = NaiveBayesModel.load(file, 64);
+			assertEquals(model.getSpamTexts(), loaded.getSpamTexts());
+			assertEquals(model.getHamTexts(), loaded.getHamTexts());
+			int[] features = new int[64];
+			String text = "Buy cheap pills now http://example.com";
+			assertEquals(model.spamProbability(text, features, 2), loaded.spamProbability(text, features, 2),
+						 0.0000001);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private NaiveBayesModel createModel() {
+		NaiveBayesModel model = new NaiveBayesModel(16, 64);
+		for (int i = 0; i < 3; i++) {
+			for (String text : SPAM) {
+				model.train(text, true);
+			}
+			for (String text : HAM) {
+				model.train(text, false);
+			}
+		}
+		assertEquals(15, model.getSpamTexts());
+		assertEquals(15, model.getHamTexts());
+		return model;
+	}
+}
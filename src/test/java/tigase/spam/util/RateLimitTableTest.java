@@ -0,0 +1,76 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimitTableTest {
+
+	@Test
+	public void testLimit() {
+		RateLimitTable table = new RateLimitTable(1000);
+		long now = 1000000;
+		// 5 events within 60000
+		long interval = 60000 / 5;
+		long tolerance = 60000 - interval;
+		for (int i = 0; i < 5; i++) {
+			assertTrue("event no: " + i, table.tryAcquire(12345L, interval, tolerance, now));
+		}
+		assertFalse(table.tryAcquire(12345L, interval, tolerance, now));
+		// other keys are not affected
+		assertTrue(table.tryAcquire(0L, interval, tolerance, now));
+		assertEquals(2, table.size());
+
+		// bucket is refilled at constant rate
+		assertFalse(table.tryAcquire(12345L, interval, tolerance, now + interval - 1));
+		assertTrue(table.tryAcquire(12345L, interval, tolerance, now + interval));
+		assertFalse(table.tryAcquire(12345L, interval, tolerance, now + interval));
+		for (int i = 0; i < 5; i++) {
+			assertTrue("event no: " + i, table.tryAcquire(12345L, interval, tolerance, now + 10 * 60000));
+		}
+	}
+
+	@Test
+	public void testIdleEviction() {
+		RateLimitTable table = new RateLimitTable(6400);
+		long now = 1000000;
+		for (int i = 0; i < 100000; i++) {
+			table.tryAcquire(XXHash64.mix(i), 1000, 0, now + i * 10);
+		}
+		assertTrue("table size exceeded limit: " + table.size(), table.size() <= 6400);
+		// all entries except the most recent ones were idle
+		assertEquals(0, table.getEvictions());
+	}
+
+	@Test
+	public void testFloodEviction() {
+		RateLimitTable table = new RateLimitTable(6400);
+		long now = 1000000;
+		long spammer = XXHash64.hash("spammer", 0);
+		assertTrue(table.tryAcquire(spammer, 60000, 0, now));
+		for (int i = 0; i < 100000; i++) {
+			table.tryAcquire(XXHash64.mix(i), 1000, 0, now);
+		}
+		assertTrue("table size exceeded limit: " + table.size(), table.size() <= 6400);
+		assertTrue(table.getEvictions() > 0);
+		// entry farthest from being idle is retained
+		assertFalse(table.tryAcquire(spammer, 60000, 0, now));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+	@Test
+	public void testLimit() {
+		long now = 1000000;
+		RateLimiter limiter = new RateLimiter(5, 60 * 1000);
+		assertTrue(limiter.isIdle(now));
+		for (int i = 0; i < 5; i++) {
+			assertTrue("request no: " + i, limiter.check(now + i));
+		}
+		assertFalse(limiter.check(now + 10));
+		assertFalse(limiter.isIdle(now + 10));
+
+		// rejected requests are counted as well
+		assertFalse(limiter.check(now + 60 * 1000));
+		assertTrue(limiter.check(now + 60 * 1000 + 10));
+		assertFalse(limiter.isIdle(now + 60 * 1000 + 10));
+		assertTrue(limiter.isIdle(now + 3 * 60 * 1000));
+	}
+
+	@Test
+	public void testSlidingWindow() {
+		long now = 1000000;
+		RateLimiter limiter = new RateLimiter(2, 1000);
+		assertTrue(limiter.check(now));
+		assertTrue(limiter.check(now + 600));
+		assertFalse(limiter.check(now + 900));
+		// request at now + 600 is still within the window
+		assertFalse(limiter.check(now + 1500));
+		assertTrue(limiter.check(now + 2000));
+	}
+
+	@Test
+	public void testZeroLimit() {
+		RateLimiter limiter = new RateLimiter(0, 1000);
+		assertFalse(limiter.check(1000));
+		assertTrue(limiter.isIdle(1000));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws InterruptedException {
+		int threads = 8;
+		int requests = 1000;
+		RateLimiter limiter = new RateLimiter(100, 60 * 60 * 1000);
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(threads);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < threads; i++) {
+			new Thread(() -> {
+				for (int j = 0; j < requests; j++) {
+					if (limiter.check(now)) {
+						accepted.incrementAndGet();
+					}
+				}
+				latch.countDown();
+			}).start();
+		}
+		latch.await();
+		assertEquals(100, accepted.get());
+	}
+}
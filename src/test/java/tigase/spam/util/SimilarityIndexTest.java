@@ -0,0 +1,73 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimilarityIndexTest {
+
+	private static final String SPAM = "Congratulations! You have been selected to receive an exclusive reward from our " +
+			"company. Visit our website to claim your prize before it expires. This limited time offer is available " +
+			"only for selected users, so do not wait and claim it today. Unsubscribe by replying STOP to this message.";
+	private static final String CLEAN =
+			"Hi, are we still meeting tomorrow at the office? I have prepared the slides for the review and would " +
+					"like to go through them with you before lunch.";
+
+	@Test
+	public void testSignatureOfSimilarTexts() {
+		int[] signature = MinHash.signature(SPAM, 2).clone();
+		assertEquals(1.0, MinHash.similarity(signature, MinHash.signature(SPAM.toUpperCase(), 2)), 0.001);
+		assertTrue(MinHash.similarity(signature, MinHash.signature(SPAM + " x7f3k2", 2)) >= 0.7);
+		assertTrue(MinHash.similarity(signature, MinHash.signature(SPAM.replace("website", "page"), 2)) >= 0.7);
+		assertTrue(MinHash.similarity(signature, MinHash.signature(CLEAN, 2)) < 0.3);
+	}
+
+	@Test
+	public void testCountingSimilar() {
+		SimilarityIndex index = new SimilarityIndex(1024, 0.7, 60 * 1000);
+		Random random = new Random(1);
+		String[] words = SPAM.split(" ");
+		long now = 1_000_000;
+		int count = 0;
+		for (int i = 0; i < 30; i++) {
+			String[] modified = words.clone();
+			modified[random.nextInt(modified.length)] = Long.toHexString(random.nextLong());
+			count = index.add(MinHash.signature(String.join(" ", modified) + " " + random.nextInt(), 2), now + i);
+		}
+		assertTrue("count " + count, count >= 25);
+		assertEquals(1, index.add(MinHash.signature(CLEAN, 2), now));
+		// window passed
+		assertEquals(1, index.add(MinHash.signature(SPAM, 2), now + 2 * 60 * 1000));
+	}
+
+	@Test
+	public void testBoundedCapacity() {
+		SimilarityIndex index = new SimilarityIndex(128, 0.7, 60 * 1000);
+		long now = 1_000_000;
+		for (int i = 0; i < 10000; i++) {
+			index.add(MinHash.signature("message number " + i + " " + (i * 7), 1), now);
+		}
+		assertTrue(index.size(now) <= 128);
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testAdvance() {
+		long now = 1000000;
+		TimingWheel wheel = new TimingWheel(1000, 16, now);
+		wheel.schedule(1, now + 1500);
+		wheel.schedule(2, now + 3500);
+		wheel.schedule(3, now - 5000);
+		assertEquals(3, wheel.size());
+
+		List<Long> due = new ArrayList<>();
+		assertEquals(0, wheel.advance(now + 500, due::add));
+		assertEquals(2, wheel.advance(now + 2000, due::add));
+		assertEquals(Arrays.asList(1L, 3L), due);
+
+		due.clear();
+		assertEquals(1, wheel.advance(now + 10000, due::add));
+		assertEquals(Arrays.asList(2L), due);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testDeadlineAfterRevolution() {
+		long now = 1000000;
+		TimingWheel wheel = new TimingWheel(1000, 16, now);
+		wheel.schedule(1, now + 20000);
+
+		List<Long> due = new ArrayList<>();
+		// passed earlier as it is in the same bucket, consumer has to reschedule it
+		wheel.advance(now + 4000, due::add);
+		assertEquals(Arrays.asList(1L), due);
+	}
+
+	@Test
+	public void testMissedTicks() {
+		long now = 1000000;
+		TimingWheel wheel = new TimingWheel(1000, 16, now);
+		for (int i = 1; i <= 100; i++) {
+			wheel.schedule(i, now + i * 1000);
+		}
+		List<Long> due = new ArrayList<>();
+		assertEquals(100, wheel.advance(now + 1000000, due::add));
+		assertEquals(100, due.size());
+		assertTrue(due.contains(100L));
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrustTableTest {
+
+	@Test
+	public void testTrust() {
+		TrustTable table = new TrustTable(1000, 100);
+		long now = 1000;
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 3, 10, now));
+
+		table.recordClean(1, now);
+		table.recordClean(1, now + 1);
+		table.recordClean(1, now + 2);
+		// enough packets but not enough time
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 3, 10, now + 5));
+		assertEquals(TrustTable.Trust.trusted, table.check(1, 3, 10, now + 10));
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 4, 10, now + 10));
+		assertEquals(TrustTable.Trust.unknown, table.check(2, 3, 10, now + 10));
+	}
+
+	@Test
+	public void testExpiration() {
+		TrustTable table = new TrustTable(1000, 100);
+		for (int i = 0; i < 10; i++) {
+			table.recordClean(1, i);
+		}
+		assertEquals(TrustTable.Trust.trusted, table.check(1, 10, 0, 109));
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 10, 0, 110));
+
+		// history starts again
+		table.recordClean(1, 200);
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 2, 0, 200));
+		table.recordClean(1, 201);
+		assertEquals(TrustTable.Trust.trusted, table.check(1, 2, 0, 201));
+	}
+
+	@Test
+	public void testRevoke() {
+		TrustTable table = new TrustTable(1000, 100);
+		for (int i = 0; i < 10; i++) {
+			table.recordClean(1, i);
+		}
+		assertEquals(TrustTable.Trust.trusted, table.check(1, 10, 0, 10));
+		table.revoke(1, 10);
+		assertEquals(TrustTable.Trust.revoked, table.check(1, 10, 0, 10));
+
+		// clean packets are not recorded for revoked key
+		for (int i = 11; i < 50; i++) {
+			table.recordClean(1, i);
+		}
+		assertEquals(TrustTable.Trust.revoked, table.check(1, 10, 0, 50));
+		assertEquals(TrustTable.Trust.revoked, table.check(1, 10, 0, 110));
+		assertEquals(TrustTable.Trust.unknown, table.check(1, 10, 0, 111));
+
+		// unknown key may be revoked as well
+		table.revoke(2, 10);
+		assertEquals(TrustTable.Trust.revoked, table.check(2, 0, 0, 10));
+	}
+
+	@Test
+	public void testSizeLimit() {
+		int limit = 64 * 16;
+		TrustTable table = new TrustTable(limit, Long.MAX_VALUE / 2);
+		long now = 0;
+		for (long key = 1; key <= limit * 10; key++) {
+			table.recordClean(XXHash64.mix(key), now++);
+		}
+		assertTrue(table.size() <= limit);
+		assertTrue(table.getEvictions() > 0);
+
+		// most recently seen keys are retained
+		long last = XXHash64.mix(limit * 10);
+		table.recordClean(last, now);
+		assertEquals(TrustTable.Trust.trusted, table.check(last, 2, 0, now));
+	}
+
+	@Test
+	public void testRevokedSurvivesSizeLimit() {
+		int limit = 64 * 16;
+		TrustTable table = new TrustTable(limit, 1000000);
+		long now = 0;
+		long revoked = XXHash64.mix(-1);
+		table.revoke(revoked, now++);
+		for (long key = 1; key <= limit * 10; key++) {
+			table.recordClean(XXHash64.mix(key), now++);
+		}
+		assertTrue(table.getEvictions() > 0);
+		assertEquals(TrustTable.Trust.revoked, table.check(revoked, 0, 0, now));
+
+		// revoked entry is removed when it expires
+		now += 1000001;
+		for (long key = 1; key <= limit * 10; key++) {
+			table.recordClean(XXHash64.mix(key), now++);
+		}
+		assertEquals(TrustTable.Trust.unknown, table.check(revoked, 0, 0, now));
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedCountMinSketchTest {
+
+	@Test
+	public void testCounting() {
+		WindowedCountMinSketch sketch = new WindowedCountMinSketch(4, 4096, 6, 60 * 1000);
+		long now = 1_000_000;
+		for (int i = 1; i <= 30; i++) {
+			assertEquals(i, sketch.add(7L, now));
+		}
+		for (int i = 0; i < 1000; i++) {
+			sketch.add(XXHash64.mix(i), now);
+		}
+		int estimate = sketch.add(7L, now);
+		assertTrue("estimate " + estimate, estimate >= 31 && estimate < 35);
+		assertTrue(sketch.add(8L, now) < 5);
+	}
+
+	@Test
+	public void testWindow() {
+		WindowedCountMinSketch sketch = new WindowedCountMinSketch(4, 1024, 6, 60 * 1000);
+		long now = 1_000_000;
+		for (int i = 0; i < 10; i++) {
+			sketch.add(7L, now + i * 5 * 1000);
+		}
+		assertEquals(11, sketch.add(7L, now + 55 * 1000));
+		// first slices are out of the window now
+		assertEquals(8, sketch.add(7L, now + 75 * 1000));
+		assertEquals(1, sketch.add(7L, now + 10 * 60 * 1000));
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedHyperLogLogTest {
+
+	@Test
+	public void testSmallCardinality() {
+		WindowedHyperLogLog sketch = new WindowedHyperLogLog();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1, sketch.add(XXHash64.hash("user@example.com", 0), 100));
+		}
+		int estimate = 0;
+		for (int i = 0; i < 50; i++) {
+			estimate = sketch.add(XXHash64.hash("user-" + i + "@example.com", 0), 100);
+		}
+		assertTrue("estimate: " + estimate, Math.abs(estimate - 51) <= 5);
+	}
+
+	@Test
+	public void testLargeCardinality() {
+		WindowedHyperLogLog sketch = new WindowedHyperLogLog();
+		for (int i = 0; i < 10000; i++) {
+			sketch.add(XXHash64.mix(i), 100);
+		}
+		int estimate = sketch.estimate(100);
+		// standard error of precision 7 is about 9%
+		assertTrue("estimate: " + estimate, Math.abs(estimate - 10000) <= 3000);
+	}
+
+	@Test
+	public void testWindow() {
+		WindowedHyperLogLog sketch = new WindowedHyperLogLog();
+		assertTrue(sketch.isIdle(100));
+		for (int i = 0; i < 20; i++) {
+			sketch.add(XXHash64.mix(i), 100);
+		}
+		int estimate = sketch.estimate(100);
+		// keys from previous slice are still within the window
+		assertEquals(estimate, sketch.estimate(101));
+		assertFalse(sketch.isIdle(101));
+		assertEquals(estimate + 1, sketch.add(XXHash64.mix(1000), 101), 1);
+		// keys from slice before previous are not
+		assertEquals(1, sketch.estimate(102));
+		assertEquals(0, sketch.estimate(104));
+		assertTrue(sketch.isIdle(106));
+	}
+
+	@Test
+	public void testStaleEpoch() {
+		WindowedHyperLogLog sketch = new WindowedHyperLogLog();
+		for (int i = 0; i < 20; i++) {
+			sketch.add(XXHash64.mix(i), 100);
+		}
+		int estimate = sketch.add(XXHash64.mix(1000), 101);
+		// stale epoch does not reset the window and its keys are counted in the current slice
+		assertEquals(estimate, sketch.estimate(100));
+		assertEquals(estimate + 1, sketch.add(XXHash64.mix(1001), 100), 1);
+		assertEquals(2, sketch.estimate(102), 1);
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Tigase Spam Filter - SPAM filters for Tigase XMPP Server
+ * Copyright (C) 2017 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.spam.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class XXHash64Test {
+
+	@Test
+	public void testKnownValues() {
+		// values of xxHash64 of UTF-16LE encoded strings with seed 0
+		assertEquals(0xEF46DB3751D8E999L, XXHash64.hash("", 0));
+		assertEquals(0xAFF0F2A2F8B32731L, XXHash64.hash("abc", 0));
+		assertEquals(0xF7D3C192C4FBF9DFL, XXHash64.hash("Here we need some long and ugly spam message!", 0));
+	}
+
+	@Test
+	public void testSeedAndRange() {
+		String value = "Here we need some long and ugly spam message!";
+		assertNotEquals(XXHash64.hash(value, 0), XXHash64.hash(value, 1));
+		assertEquals(XXHash64.hash("abc", 5), XXHash64.hash("--abc--", 2, 3, 5));
+	}
+
+}